@@ -0,0 +1,209 @@
+package me.drton.jmavsim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Recorded actuator controls: HIL_ACTUATOR_CONTROLS messages of a telemetry log or actuator_outputs topic of a
+ * ULog, kept as time column and dense float rows for open loop replay.
+ * <p/>
+ * Times are relative to the first row [us]. ULog outputs of real vehicles are PWM values, normalizePWM() maps them
+ * to the [0, 1] motor and [-1, 1] servo range of AbstractVehicle.setControl().
+ */
+public class ActuatorLog {
+    public static final int MAX_CONTROLS = 16;
+    public static final int HIL_ACTUATOR_CONTROLS = 93;
+    public static final String ULOG_TOPIC = "actuator_outputs";
+
+    private final String fileName;
+    private final long startTime;
+    private final long[] times;
+    private final float[] controls;
+    private final int size;
+    private final int count;
+
+    private ActuatorLog(String fileName, long startTime, long[] times, float[] controls, int size, int count) {
+        this.fileName = fileName;
+        this.startTime = startTime;
+        this.times = times;
+        this.controls = controls;
+        this.size = size;
+        this.count = count;
+    }
+
+    /**
+     * Load log by file extension, ".ulg" is read as ULog, anything else as telemetry log.
+     */
+    public static ActuatorLog load(String fileName) throws IOException {
+        return fileName.endsWith(".ulg") ? fromULog(fileName) : fromTLog(fileName);
+    }
+
+    /**
+     * Read HIL_ACTUATOR_CONTROLS of the first system sending them, times are the telemetry log timestamps.
+     */
+    public static ActuatorLog fromTLog(String fileName) throws IOException {
+        TLogReader reader = new TLogReader(fileName);
+        Builder builder = new Builder();
+        int systemId = -1;
+        while (reader.next()) {
+            if (reader.getMsgId() != HIL_ACTUATOR_CONTROLS) {
+                continue;
+            }
+            if (systemId < 0) {
+                systemId = reader.getSystemId();
+            } else if (reader.getSystemId() != systemId) {
+                continue;
+            }
+            // time_usec, flags, controls[16], mode
+            ByteBuffer payload = reader.getPayload();
+            float[] row = builder.add(reader.getTimestamp());
+            for (int i = 0; i < MAX_CONTROLS; i++) {
+                row[i] = payload.getFloat(16 + i * 4);
+            }
+        }
+        return builder.build(fileName, MAX_CONTROLS);
+    }
+
+    /**
+     * Read first instance of actuator_outputs, times are the ULog timestamps.
+     */
+    public static ActuatorLog fromULog(String fileName) throws IOException {
+        ULogStream stream = new ULogStream(fileName);
+        try {
+            ULogStream.Topic topic = stream.subscribe(ULOG_TOPIC);
+            ULogStream.Field output = topic != null ? topic.getField("output") : null;
+            if (output == null) {
+                throw new IOException("No " + ULOG_TOPIC + " in " + fileName);
+            }
+            ULogStream.Field noutputs = topic.getField("noutputs");
+            int n = Math.min(output.getLength(), MAX_CONTROLS);
+            Builder builder = new Builder();
+            int count = 0;
+            while (stream.read(Long.MAX_VALUE) != null) {
+                float[] row = builder.add(stream.getTimestamp(topic));
+                for (int i = 0; i < n; i++) {
+                    row[i] = (float) stream.getDouble(output, i);
+                }
+                count = Math.max(count, noutputs != null ? (int) stream.getLong(noutputs) : n);
+            }
+            return builder.build(fileName, Math.min(count, n));
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static final class Builder {
+        private long[] times = new long[1024];
+        private float[] controls = new float[1024 * MAX_CONTROLS];
+        private int size = 0;
+        private final float[] row = new float[MAX_CONTROLS];
+
+        /**
+         * Commit the previous row and start a new one.
+         */
+        float[] add(long time) {
+            commit();
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                controls = Arrays.copyOf(controls, size * 2 * MAX_CONTROLS);
+            }
+            times[size] = time;
+            Arrays.fill(row, 0.0f);
+            size++;
+            return row;
+        }
+
+        private void commit() {
+            if (size > 0) {
+                System.arraycopy(row, 0, controls, (size - 1) * MAX_CONTROLS, MAX_CONTROLS);
+            }
+        }
+
+        ActuatorLog build(String fileName, int count) throws IOException {
+            commit();
+            if (size == 0) {
+                throw new IOException("No actuator controls in " + fileName);
+            }
+            long start = times[0];
+            for (int i = 0; i < size; i++) {
+                times[i] -= start;
+            }
+            return new ActuatorLog(fileName, start, times, controls, size, count);
+        }
+    }
+
+    /**
+     * Map PWM outputs [us] to control range if the log has any value out of [-1, 1]: motors 1000..2000 to [0, 1],
+     * other outputs 1500 +- 500 to [-1, 1]. Non-finite outputs are mapped to 0 (disarmed).
+     *
+     * @param motors number of motor outputs, the first outputs of the log
+     * @return true if the log was in PWM
+     */
+    public boolean normalizePWM(int motors) {
+        boolean pwm = false;
+        for (int i = 0; i < size * MAX_CONTROLS && !pwm; i++) {
+            pwm = Float.isFinite(controls[i]) && Math.abs(controls[i]) > 1.0f + 1e-3f;
+        }
+        if (!pwm) {
+            return false;
+        }
+        for (int r = 0; r < size; r++) {
+            for (int i = 0; i < count; i++) {
+                int p = r * MAX_CONTROLS + i;
+                float v = controls[p];
+                if (!Float.isFinite(v)) {
+                    controls[p] = 0.0f;
+                } else if (i < motors) {
+                    controls[p] = Math.max(0.0f, Math.min((v - 1000.0f) / 1000.0f, 1.0f));
+                } else {
+                    controls[p] = Math.max(-1.0f, Math.min((v - 1500.0f) / 500.0f, 1.0f));
+                }
+            }
+        }
+        return true;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return timestamp of the first row in the log time base [us]
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of controls used by the log
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return time of the row since the first one [us]
+     */
+    public long getTime(int row) {
+        return times[row];
+    }
+
+    /**
+     * @return time of the last row since the first one [us]
+     */
+    public long getDuration() {
+        return times[size - 1];
+    }
+
+    public float get(int row, int control) {
+        return controls[row * MAX_CONTROLS + control];
+    }
+}
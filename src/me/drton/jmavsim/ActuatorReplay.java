@@ -0,0 +1,385 @@
+package me.drton.jmavsim;
+
+import me.drton.jmavsim.vehicle.AbstractVehicle;
+import me.drton.jmavsim.vehicle.VehicleFactory;
+import me.drton.jmavsim.vehicle.VehiclePrototype;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Open loop replay of recorded actuator controls for physics regression tests.
+ * <p/>
+ * Each log (see ActuatorLog) is fed into AbstractVehicle.setControl() of a fresh headless world without
+ * autopilot, stepped in simulation time as fast as possible. The resulting trajectory is compared with a reference
+ * trajectory: sim_ground_truth or vehicle_local_position of a ULog or LOCAL_POSITION_NED of a telemetry log, by
+ * default the control log itself. Positions are compared as displacement from the first sample, the vehicle starts
+ * at rest on the ground in calm air, so logs should start before takeoff. Logs are independent and can be replayed
+ * in parallel.
+ * <p/>
+ * Usage: ActuatorReplay -drone-config-file name [-r rate] [-j threads] [-reference file] [-out dir]
+ * [-tolerance m] log|dir...
+ * <p/>
+ * Exits with status 1 if any log fails to load or its RMS error exceeds the tolerance or isn't a number.
+ */
+public class ActuatorReplay {
+    public static final int DEFAULT_RATE = 250;  // [Hz]
+    public static final String TRAJECTORY_TOPIC = "replay_trajectory";
+    private static final String TRAJECTORY_FORMAT = "uint64_t timestamp;float[3] position;float[3] velocity;" +
+                                                    "float[4] q;";
+    private static final int LOCAL_POSITION_NED = 32;
+
+    private final VehiclePrototype prototype;
+    private final long interval;  // [ms]
+    private String referenceFile = null;
+    private File outputDir = null;
+
+    /**
+     * Reference trajectory, times relative to the first control row [us].
+     */
+    static final class Trajectory {
+        long[] times = new long[1024];
+        double[] positions = new double[1024 * 3];
+        int size = 0;
+
+        void add(long time, double x, double y, double z) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                positions = Arrays.copyOf(positions, size * 6);
+            }
+            times[size] = time;
+            positions[size * 3] = x;
+            positions[size * 3 + 1] = y;
+            positions[size * 3 + 2] = z;
+            size++;
+        }
+
+        void shift(long offset) {
+            for (int i = 0; i < size; i++) {
+                times[i] -= offset;
+            }
+        }
+    }
+
+    /**
+     * Replay result of one log.
+     */
+    public static final class Result {
+        public String name;
+        public double duration;  // [s]
+        public long steps;
+        public int samples;
+        public double rmsError;  // [m]
+        public double maxError;  // [m]
+        public double finalError;  // [m]
+        public double wallTime;  // [s]
+        public String error;
+
+        @Override
+        public String toString() {
+            if (error != null) {
+                return String.format("%-40s ERROR %s", name, error);
+            }
+            return String.format("%-40s %8.1f s %8d steps %6d samples  RMS %7.3f m  max %7.3f m  final %7.3f m" +
+                                 "  %6.0fx", name, duration, steps, samples, rmsError, maxError, finalError,
+                                 duration / Math.max(wallTime, 1e-6));
+        }
+    }
+
+    /**
+     * @param rate simulation rate [Hz], must divide 1000 as the world is updated in whole milliseconds
+     */
+    public ActuatorReplay(VehiclePrototype prototype, int rate) {
+        if (!isValidRate(rate)) {
+            throw new IllegalArgumentException("Rate " + rate + " Hz doesn't divide 1000");
+        }
+        this.prototype = prototype;
+        this.interval = 1000 / rate;
+    }
+
+    public static boolean isValidRate(int rate) {
+        return rate >= 1 && rate <= 1000 && 1000 % rate == 0;
+    }
+
+    /**
+     * @param fileName reference trajectory for all logs, null to use each control log
+     */
+    public void setReferenceFile(String fileName) {
+        this.referenceFile = fileName;
+    }
+
+    /**
+     * @param dir directory for trajectory ULog files, null to not write them
+     */
+    public void setOutputDir(File dir) {
+        this.outputDir = dir;
+    }
+
+    /**
+     * Replay one log, errors are returned in the result.
+     */
+    public Result replay(String fileName) {
+        Result result = new Result();
+        result.name = new File(fileName).getName();
+        try {
+            replay(fileName, result);
+        } catch (IOException | RuntimeException e) {
+            result.error = e.toString();
+        }
+        return result;
+    }
+
+    private void replay(String fileName, Result result) throws IOException {
+        long wallStart = System.nanoTime();
+        ActuatorLog log = ActuatorLog.load(fileName);
+        String refName = referenceFile != null ? referenceFile : fileName;
+        Trajectory reference = loadReference(refName);
+        if (reference.size == 0) {
+            throw new IOException("No reference positions in " + refName);
+        }
+        // same log: common time base, otherwise align starts
+        reference.shift(refName.equals(fileName) ? log.getStartTime() : reference.times[0]);
+
+        World world = new World();
+        world.setGlobalReference(Simulator.DEFAULT_ORIGIN_POS);
+        AbstractVehicle vehicle = prototype.spawn(world, false, 0.0);
+        world.addObject(new SimpleEnvironment(world, new WeatherProvider(vehicle)));
+        world.addObject(vehicle);
+        log.normalizePWM(vehicle.getRotorCount());
+
+        ULogWriter writer = null;
+        int msgId = 0;
+        if (outputDir != null) {
+            writer = new ULogWriter(new File(outputDir, result.name + ".replay.ulg").getPath(), 0, 1 << 20);
+            writer.writeFormat(TRAJECTORY_TOPIC, TRAJECTORY_FORMAT);
+            writer.writeInfo("sys_name", "jMAVSim");
+            writer.writeInfo("ver_sw", "actuator replay");
+            msgId = writer.addLogged(TRAJECTORY_TOPIC);
+        }
+        try {
+            List<Double> control = new ArrayList<Double>(log.getCount());
+            for (int i = 0; i < log.getCount(); i++) {
+                control.add(0.0);
+            }
+            Quat4d q = new Quat4d();
+            Vector3d start = new Vector3d(vehicle.getPosition());
+            int row = -1;
+            int ref = 0;
+            double sumSq = 0.0;
+            long end = log.getDuration() / 1000 + interval;
+            long steps = 0;
+            for (long t = interval; t <= end; t += interval) {
+                long tu = (t - interval) * 1000;
+                int newRow = row;
+                while (newRow + 1 < log.size() && log.getTime(newRow + 1) <= tu) {
+                    newRow++;
+                }
+                if (newRow != row) {
+                    row = newRow;
+                    for (int i = 0; i < control.size(); i++) {
+                        // a NaN would poison the whole trajectory, treat it as disarmed
+                        float v = log.get(row, i);
+                        control.set(i, Float.isFinite(v) ? (double) v : 0.0);
+                    }
+                    vehicle.setControl(control);
+                }
+                world.update(t, false);
+                steps++;
+
+                Vector3d pos = vehicle.getPosition();
+                while (ref < reference.size && reference.times[ref] <= tu) {
+                    double dx = pos.x - start.x - (reference.positions[ref * 3] - reference.positions[0]);
+                    double dy = pos.y - start.y - (reference.positions[ref * 3 + 1] - reference.positions[1]);
+                    double dz = pos.z - start.z - (reference.positions[ref * 3 + 2] - reference.positions[2]);
+                    double e = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                    sumSq += e * e;
+                    result.maxError = Math.max(result.maxError, e);
+                    result.finalError = e;
+                    ref++;
+                }
+                if (writer != null) {
+                    ByteBuffer b = writer.beginData(msgId, 8 + 10 * 4);
+                    b.putLong(tu);
+                    putVector(b, pos);
+                    putVector(b, vehicle.getVelocity());
+                    q.set(vehicle.getRotation());
+                    b.putFloat((float) q.w);
+                    b.putFloat((float) q.x);
+                    b.putFloat((float) q.y);
+                    b.putFloat((float) q.z);
+                }
+            }
+            result.steps = steps;
+            result.samples = ref;
+            result.duration = log.getDuration() / 1e6;
+            result.rmsError = ref > 0 ? Math.sqrt(sumSq / ref) : 0.0;
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        result.wallTime = (System.nanoTime() - wallStart) / 1e9;
+    }
+
+    private static void putVector(ByteBuffer b, Vector3d v) {
+        b.putFloat((float) v.x);
+        b.putFloat((float) v.y);
+        b.putFloat((float) v.z);
+    }
+
+    /**
+     * Load reference positions in the time base of the file [us].
+     */
+    static Trajectory loadReference(String fileName) throws IOException {
+        Trajectory trajectory = new Trajectory();
+        if (fileName.endsWith(".ulg")) {
+            ULogStream stream = new ULogStream(fileName);
+            try {
+                ULogStream.Topic topic = stream.subscribe(GroundTruthRecorder.TOPIC);
+                if (topic != null) {
+                    ULogStream.Field position = topic.getField("position");
+                    while (stream.read(Long.MAX_VALUE) != null) {
+                        trajectory.add(stream.getTimestamp(topic), stream.getDouble(position, 0),
+                                       stream.getDouble(position, 1), stream.getDouble(position, 2));
+                    }
+                    return trajectory;
+                }
+                topic = stream.subscribe("vehicle_local_position");
+                if (topic == null) {
+                    throw new IOException("No " + GroundTruthRecorder.TOPIC + " or vehicle_local_position in " +
+                                          fileName);
+                }
+                ULogStream.Field x = topic.getField("x");
+                ULogStream.Field y = topic.getField("y");
+                ULogStream.Field z = topic.getField("z");
+                while (stream.read(Long.MAX_VALUE) != null) {
+                    trajectory.add(stream.getTimestamp(topic), stream.getDouble(x), stream.getDouble(y),
+                                   stream.getDouble(z));
+                }
+            } finally {
+                stream.close();
+            }
+        } else {
+            TLogReader reader = new TLogReader(fileName);
+            while (reader.next()) {
+                if (reader.getMsgId() == LOCAL_POSITION_NED) {
+                    // time_boot_ms, x, y, z, vx, vy, vz
+                    ByteBuffer payload = reader.getPayload();
+                    trajectory.add(reader.getTimestamp(), payload.getFloat(4), payload.getFloat(8),
+                                   payload.getFloat(12));
+                }
+            }
+        }
+        return trajectory;
+    }
+
+    private static void collectLogs(File file, List<String> logs) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File f : files) {
+                    String name = f.getName();
+                    if (name.endsWith(".ulg") || name.endsWith(".tlog")) {
+                        logs.add(f.getPath());
+                    }
+                }
+            }
+        } else {
+            logs.add(file.getPath());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String droneConfig = null;
+        String reference = null;
+        String output = null;
+        int rate = DEFAULT_RATE;
+        int threads = 1;
+        double tolerance = Double.POSITIVE_INFINITY;
+        List<String> logs = new ArrayList<String>();
+        int i = 0;
+        while (i < args.length) {
+            String arg = args[i++];
+            boolean hasValue = i < args.length;
+            if (arg.equalsIgnoreCase("-drone-config-file") && hasValue) {
+                droneConfig = args[i++];
+            } else if (arg.equals("-r") && hasValue) {
+                rate = Integer.parseInt(args[i++]);
+            } else if (arg.equals("-j") && hasValue) {
+                threads = Integer.parseInt(args[i++]);
+            } else if (arg.equals("-reference") && hasValue) {
+                reference = args[i++];
+            } else if (arg.equals("-out") && hasValue) {
+                output = args[i++];
+            } else if (arg.equals("-tolerance") && hasValue) {
+                tolerance = Double.parseDouble(args[i++]);
+            } else if (arg.startsWith("-")) {
+                System.err.println("Unknown or incomplete option: " + arg);
+                System.exit(1);
+            } else {
+                collectLogs(new File(arg), logs);
+            }
+        }
+        if (droneConfig == null || logs.isEmpty() || threads < 1) {
+            System.err.println("Usage: ActuatorReplay -drone-config-file name [-r rate] [-j threads] " +
+                               "[-reference file] [-out dir] [-tolerance m] log|dir...");
+            System.exit(1);
+        }
+        if (!isValidRate(rate)) {
+            System.err.println("Rate " + rate + " Hz doesn't divide 1000, use e.g. 250, 500 or 1000");
+            System.exit(1);
+        }
+
+        VehiclePrototype prototype = VehicleFactory.getCatalog().getPrototype(droneConfig);
+        final ActuatorReplay replay = new ActuatorReplay(prototype, rate);
+        replay.setReferenceFile(reference);
+        if (output != null) {
+            File dir = new File(output);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                System.err.println("Can't create output directory " + dir);
+                System.exit(1);
+            }
+            replay.setOutputDir(dir);
+        }
+
+        long wallStart = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (final String log : logs) {
+            futures.add(executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return replay.replay(log);
+                }
+            }));
+        }
+        int failed = 0;
+        double simTime = 0.0;
+        for (Future<Result> future : futures) {
+            Result result = future.get();
+            boolean fail = result.error != null || Double.isNaN(result.rmsError) || result.rmsError > tolerance;
+            if (fail) {
+                failed++;
+            } else {
+                simTime += result.duration;
+            }
+            System.out.println((fail ? "FAIL " : "OK   ") + result);
+        }
+        executor.shutdown();
+        double wallTime = (System.nanoTime() - wallStart) / 1e9;
+        System.out.println(String.format("%d logs, %d failed, %.0f s simulated in %.1f s (%.0fx)", logs.size(),
+                                         failed, simTime, wallTime, simTime / Math.max(wallTime, 1e-6)));
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}
@@ -0,0 +1,125 @@
+package me.drton.jmavsim;
+
+/**
+ * International Standard Atmosphere up to 20 km.
+ * <p/>
+ * Pressure is tabulated on class load together with its analytic derivative and interpolated with cubic Hermite
+ * splines, so lookups need only a few multiplications and no pow/exp. Table nodes include the tropopause, where
+ * the temperature gradient changes. The interpolation error is far below 1e-6 Pa, the closed form is used outside
+ * of the table range.
+ * <p/>
+ * Temperature offset shifts the temperature profile (ISA + dT), pressure at given altitude doesn't depend on it.
+ */
+public final class Atmosphere {
+    public static final double Pb = 101325.0;  // static pressure at sea level [Pa]
+    public static final double Tb = 288.15;    // standard temperature at sea level [K]
+    public static final double Lb = -0.0065;   // standard temperature lapse rate [K/m]
+    public static final double M = 0.0289644;  // molar mass of Earth's air [kg/mol]
+    public static final double G = 9.80665;    // gravity
+    public static final double R = 8.31432;    // universal gas constant
+    public static final double R_AIR = R / M;  // specific gas constant of air [J/(kg*K)]
+    public static final double GAMMA = 1.4;    // heat capacity ratio of air
+    public static final double TROPOPAUSE = 11000.0;  // [m]
+    public static final double MAX_ALTITUDE = 20000.0;  // [m]
+
+    private static final double TABLE_MIN = -1000.0;  // [m]
+    private static final double TABLE_STEP = 10.0;    // [m], tropopause must be on a node
+    private static final double TABLE_INV_STEP = 1.0 / TABLE_STEP;
+    private static final int TABLE_SIZE = (int) Math.round((MAX_ALTITUDE - TABLE_MIN) / TABLE_STEP) + 1;
+
+    private static final double[] pressureTable = new double[TABLE_SIZE];
+    // derivative of pressure scaled by the table step
+    private static final double[] pressureSlopeTable = new double[TABLE_SIZE];
+
+    static {
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            double alt = TABLE_MIN + i * TABLE_STEP;
+            double p = pressureClosedForm(alt);
+            pressureTable[i] = p;
+            pressureSlopeTable[i] = -p * G * M / (R * temperature(alt, 0.0)) * TABLE_STEP;
+        }
+    }
+
+    private Atmosphere() {
+    }
+
+    /**
+     * Static pressure, closed form.
+     *
+     * @param alt altitude [m]
+     * @return pressure [Pa], 0 above 20 km
+     */
+    public static double pressureClosedForm(double alt) {
+        if (alt <= TROPOPAUSE) {
+            return Pb * Math.pow(Tb / (Tb + (Lb * alt)), (G * M) / (R * Lb));
+        } else if (alt <= MAX_ALTITUDE) {
+            double a = pressureClosedForm(TROPOPAUSE);
+            double c = Tb + (TROPOPAUSE * Lb);
+            return a * Math.exp(((-G) * M * (alt - TROPOPAUSE)) / (R * c));
+        }
+        return 0.0;
+    }
+
+    /**
+     * Static pressure.
+     *
+     * @param alt altitude [m]
+     * @return pressure [Pa], 0 above 20 km
+     */
+    public static double pressure(double alt) {
+        double x = (alt - TABLE_MIN) * TABLE_INV_STEP;
+        if (!(x >= 0.0) || alt > MAX_ALTITUDE) {
+            return pressureClosedForm(alt);
+        }
+        int i = Math.min((int) x, TABLE_SIZE - 2);
+        double t = x - i;
+        double t2 = t * t;
+        double t3 = t2 * t;
+        return (2.0 * t3 - 3.0 * t2 + 1.0) * pressureTable[i] + (t3 - 2.0 * t2 + t) * pressureSlopeTable[i] +
+               (-2.0 * t3 + 3.0 * t2) * pressureTable[i + 1] + (t3 - t2) * pressureSlopeTable[i + 1];
+    }
+
+    /**
+     * Air temperature.
+     *
+     * @param alt    altitude [m]
+     * @param offset temperature offset from ISA [K]
+     * @return temperature [K]
+     */
+    public static double temperature(double alt, double offset) {
+        return (alt <= TROPOPAUSE ? Tb + Lb * alt : Tb + Lb * TROPOPAUSE) + offset;
+    }
+
+    /**
+     * Air density.
+     *
+     * @param alt    altitude [m]
+     * @param offset temperature offset from ISA [K]
+     * @return density [kg/m^3]
+     */
+    public static double density(double alt, double offset) {
+        return pressure(alt) / (R_AIR * temperature(alt, offset));
+    }
+
+    /**
+     * Speed of sound.
+     *
+     * @param alt    altitude [m]
+     * @param offset temperature offset from ISA [K]
+     * @return speed of sound [m/s]
+     */
+    public static double speedOfSound(double alt, double offset) {
+        return Math.sqrt(GAMMA * R_AIR * temperature(alt, offset));
+    }
+
+    /**
+     * Temperature offset from ISA for measured temperature.
+     *
+     * @param alt          altitude [m]
+     * @param temperatureC measured temperature [C]
+     * @return offset [K]
+     */
+    public static double temperatureOffset(double alt, double temperatureC) {
+        return temperatureC + 273.15 - temperature(alt, 0.0);
+    }
+}
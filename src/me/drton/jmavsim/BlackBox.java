@@ -0,0 +1,303 @@
+package me.drton.jmavsim;
+
+import me.drton.jmavsim.vehicle.AbstractVehicle;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Flight data recorder: keeps the last seconds of vehicle state and MAVLink traffic in memory and dumps them to a
+ * ULog file when something goes wrong.
+ * <p/>
+ * State (vehicle, sensors, rotors, control) is copied once per update into a preallocated ring of float records,
+ * routed MAVLink message ids go to a second ring, so memory is fixed and recording costs one copy per tick. A dump
+ * is triggered by an exception in World.update(), a ground impact faster than the threshold, heartbeat timeout
+ * of the HIL system or manually. The rings are copied into a second preallocated set of arrays and written by a
+ * background thread, triggers arriving while a dump is being written are ignored.
+ * <p/>
+ * The rings must be written on the simulation thread, trigger() can be called from any thread.
+ */
+public class BlackBox extends WorldObject implements ReportingObject {
+    public static final double DEFAULT_DURATION = 60.0;  // [s]
+    public static final double DEFAULT_IMPACT_VELOCITY = 3.0;  // [m/s]
+    public static final int MESSAGE_CAPACITY = 16384;
+    public static final int RX = 0;
+    public static final int TX = 1;
+    private static final int MAX_ROTORS = 8;
+    private static final int MAX_CONTROLS = 16;
+    private static final String STATE_TOPIC = "blackbox_state";
+    private static final String STATE_FORMAT = "uint64_t timestamp;float[3] position;float[3] velocity;float[4] q;" +
+                                               "float[3] rates;float[3] acc;float[3] gyro;float[3] mag;" +
+                                               "float baro_alt;float baro_pressure;float[" + MAX_ROTORS +
+                                               "] rotor_rpm;float[" + MAX_CONTROLS + "] control;";
+    private static final int WIDTH = 3 + 3 + 4 + 3 + 3 + 3 + 3 + 2 + MAX_ROTORS + MAX_CONTROLS;
+    private static final String MESSAGE_TOPIC = "blackbox_mavlink";
+    private static final String MESSAGE_FORMAT = "uint64_t timestamp;uint32_t msg_id;uint8_t direction;" +
+                                                 "uint8_t system_id;uint8_t[2] _padding0;";
+
+    private final AbstractVehicle vehicle;
+    private final File directory;
+    private final Ring live;
+    private final Ring snapshot;
+    private double impactVelocity = DEFAULT_IMPACT_VELOCITY;
+    private double prevDownVelocity = 0.0;
+    private long lastT = 0;
+    private final AtomicReference<String> pendingTrigger = new AtomicReference<String>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private int dumps = 0;
+    private int ignoredTriggers = 0;
+    private String lastDump = "none";
+    private final Quat4d q = new Quat4d();
+
+    /**
+     * State and message rings, the live one and the copy being written.
+     */
+    private static final class Ring {
+        final long[] times;
+        final float[] records;
+        int head = 0;
+        int size = 0;
+        final long[] msgTimes = new long[MESSAGE_CAPACITY];
+        final int[] msgIds = new int[MESSAGE_CAPACITY];
+        final byte[] msgInfo = new byte[MESSAGE_CAPACITY * 2];
+        int msgHead = 0;
+        int msgSize = 0;
+
+        Ring(int capacity) {
+            times = new long[capacity];
+            records = new float[capacity * WIDTH];
+        }
+
+        void copyFrom(Ring other) {
+            System.arraycopy(other.times, 0, times, 0, times.length);
+            System.arraycopy(other.records, 0, records, 0, records.length);
+            head = other.head;
+            size = other.size;
+            System.arraycopy(other.msgTimes, 0, msgTimes, 0, MESSAGE_CAPACITY);
+            System.arraycopy(other.msgIds, 0, msgIds, 0, MESSAGE_CAPACITY);
+            System.arraycopy(other.msgInfo, 0, msgInfo, 0, MESSAGE_CAPACITY * 2);
+            msgHead = other.msgHead;
+            msgSize = other.msgSize;
+        }
+    }
+
+    /**
+     * @param directory directory for dump files
+     * @param capacity  number of state records, e.g. duration * simulation rate
+     */
+    public BlackBox(World world, AbstractVehicle vehicle, File directory, int capacity) {
+        super(world);
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Black box capacity must be positive");
+        }
+        this.vehicle = vehicle;
+        this.directory = directory;
+        this.live = new Ring(capacity);
+        this.snapshot = new Ring(capacity);
+    }
+
+    /**
+     * @param velocity descent velocity that triggers a dump when the vehicle hits the ground [m/s]
+     */
+    public void setImpactVelocity(double velocity) {
+        this.impactVelocity = velocity;
+    }
+
+    /**
+     * Request dump, it's taken on the next update of the simulation thread.
+     *
+     * @param reason reason, used in the file name
+     */
+    public void trigger(String reason) {
+        pendingTrigger.compareAndSet(null, reason);
+    }
+
+    /**
+     * Dump now, must be called on the simulation thread, e.g. from World.update() when it fails.
+     */
+    public void dump(String reason) {
+        if (!writing.compareAndSet(false, true)) {
+            ignoredTriggers++;
+            return;
+        }
+        snapshot.copyFrom(live);
+        dumps++;
+        // millisecond time and sequence number keep names of quick successive dumps apart
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        final File file = new File(directory, String.format("blackbox-%s-%03d-%s.ulg", time, dumps,
+                                                            reason.replaceAll("[^A-Za-z0-9_]+", "_")));
+        lastDump = file.getName();
+        System.out.println("Black box: " + reason + ", dumping to " + file);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(file);
+                } catch (IOException e) {
+                    System.err.println("Black box dump to " + file + " failed: " + e);
+                } finally {
+                    writing.set(false);
+                }
+            }
+        }, "BlackBox");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Record routed MAVLink message, called by MAVLinkConnection on the simulation thread.
+     *
+     * @param direction RX for messages from external systems, TX for messages from the simulator
+     */
+    public void recordMessage(int msgId, int systemId, int direction) {
+        Ring r = live;
+        int cap = MESSAGE_CAPACITY;
+        int i = (r.msgHead + r.msgSize) % cap;
+        if (r.msgSize == cap) {
+            r.msgHead = (r.msgHead + 1) % cap;
+        } else {
+            r.msgSize++;
+        }
+        r.msgTimes[i] = lastT;
+        r.msgIds[i] = msgId;
+        r.msgInfo[i * 2] = (byte) direction;
+        r.msgInfo[i * 2 + 1] = (byte) systemId;
+    }
+
+    @Override
+    public void update(long t, boolean paused) {
+        String reason = pendingTrigger.getAndSet(null);
+        if (reason != null) {
+            dump(reason);
+        }
+        if (paused) {
+            return;
+        }
+        lastT = t;
+        record(t);
+
+        // ground contact zeroes the velocity, impact velocity is the one of the previous tick
+        Vector3d velocity = vehicle.getVelocity();
+        if (prevDownVelocity > impactVelocity && velocity.z == 0.0 && velocity.x == 0.0 && velocity.y == 0.0 &&
+                vehicle.getPosition().z >= world.getEnvironment().getGroundLevelAt(vehicle.getPosition())) {
+            dump(String.format("impact %.1f m/s", prevDownVelocity));
+        }
+        prevDownVelocity = velocity.z;
+    }
+
+    private void record(long t) {
+        Ring r = live;
+        int cap = r.times.length;
+        int i = (r.head + r.size) % cap;
+        if (r.size == cap) {
+            r.head = (r.head + 1) % cap;
+        } else {
+            r.size++;
+        }
+        r.times[i] = t * 1000;
+        float[] a = r.records;
+        int p = i * WIDTH;
+        p = put(a, p, vehicle.getPosition());
+        p = put(a, p, vehicle.getVelocity());
+        q.set(vehicle.getRotation());
+        a[p++] = (float) q.w;
+        a[p++] = (float) q.x;
+        a[p++] = (float) q.y;
+        a[p++] = (float) q.z;
+        p = put(a, p, vehicle.getRotationRate());
+        Sensors sensors = vehicle.getSensors();
+        if (sensors != null) {
+            SensorFrame frame = sensors.getFrame();
+            p = put(a, p, frame.acc);
+            p = put(a, p, frame.gyro);
+            p = put(a, p, frame.mag);
+            a[p++] = (float) frame.pressureAlt;
+            a[p++] = (float) frame.pressure;
+        } else {
+            for (int e = p + 11; p < e; p++) {
+                a[p] = 0.0f;
+            }
+        }
+        int rotors = Math.min(vehicle.getRotorCount(), MAX_ROTORS);
+        for (int k = 0; k < MAX_ROTORS; k++) {
+            a[p++] = k < rotors ? (float) vehicle.getRotor(k).getRPM() : 0.0f;
+        }
+        for (int k = 0; k < MAX_CONTROLS; k++) {
+            a[p++] = (float) vehicle.getControl(k);
+        }
+    }
+
+    private static int put(float[] a, int p, Vector3d v) {
+        a[p] = (float) v.x;
+        a[p + 1] = (float) v.y;
+        a[p + 2] = (float) v.z;
+        return p + 3;
+    }
+
+    private void write(File file) throws IOException {
+        Ring r = snapshot;
+        // log starts at the oldest record, in simulation time as the data
+        long start = Long.MAX_VALUE;
+        if (r.size > 0) {
+            start = r.times[r.head];
+        }
+        if (r.msgSize > 0) {
+            start = Math.min(start, r.msgTimes[r.msgHead] * 1000);
+        }
+        ULogWriter writer = new ULogWriter(file.getPath(), start == Long.MAX_VALUE ? 0 : start, 1 << 20);
+        try {
+            writer.writeFormat(STATE_TOPIC, STATE_FORMAT);
+            writer.writeFormat(MESSAGE_TOPIC, MESSAGE_FORMAT);
+            writer.writeInfo("sys_name", "jMAVSim");
+            writer.writeInfo("ver_sw", "black box");
+            int stateId = writer.addLogged(STATE_TOPIC);
+            int messageId = writer.addLogged(MESSAGE_TOPIC);
+            // merge both rings by time
+            int cap = r.times.length;
+            int s = 0;
+            int m = 0;
+            while (s < r.size || m < r.msgSize) {
+                int si = (r.head + s) % cap;
+                int mi = (r.msgHead + m) % MESSAGE_CAPACITY;
+                if (m >= r.msgSize || (s < r.size && r.times[si] <= r.msgTimes[mi] * 1000)) {
+                    ByteBuffer b = writer.beginData(stateId, 8 + WIDTH * 4);
+                    b.putLong(r.times[si]);
+                    for (int k = si * WIDTH, e = k + WIDTH; k < e; k++) {
+                        b.putFloat(r.records[k]);
+                    }
+                    s++;
+                } else {
+                    ByteBuffer b = writer.beginData(messageId, 16);
+                    b.putLong(r.msgTimes[mi] * 1000);
+                    b.putInt(r.msgIds[mi]);
+                    b.put(r.msgInfo[mi * 2]);
+                    b.put(r.msgInfo[mi * 2 + 1]);
+                    b.putShort((short) 0);
+                    m++;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public void report(StringBuilder builder) {
+        builder.append("BLACK BOX");
+        builder.append(newLine);
+        builder.append("=========");
+        builder.append(newLine);
+        builder.append(String.format("Records: %d/%d; Messages: %d", live.size, live.times.length, live.msgSize));
+        builder.append(newLine);
+        builder.append(String.format("Dumps: %d; Ignored: %d; Last: %s", dumps, ignoredTriggers, lastDump));
+        builder.append(newLine);
+        builder.append(newLine);
+    }
+}
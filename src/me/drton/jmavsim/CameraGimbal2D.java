@@ -15,7 +15,6 @@ import javax.vecmath.Vector3d;
 import com.sun.j3d.utils.geometry.Sphere;
 import com.sun.j3d.utils.image.TextureLoader;
 
-import java.util.List;
 
 /**
  * User: ton Date: 21.03.14 Time: 23:22
@@ -118,19 +117,19 @@ public class CameraGimbal2D extends KinematicObject implements ReportingObject {
         this.attitude = (Vector3d) baseObject.attitude.clone();
         this.rotation.rotZ(this.attitude.z);
         if ((pitchChannel >= 0 || rollChannel >= 0) && baseObject instanceof AbstractVehicle &&
-                ((AbstractVehicle) baseObject).getControl().size() > 0) {
+                ((AbstractVehicle) baseObject).getControlCount() > 0) {
             // Control camera pitch/roll
-            List<Double> control = ((AbstractVehicle) baseObject).getControl();
+            AbstractVehicle vehicle = (AbstractVehicle) baseObject;
 
             if (rollChannel >= 0) {
-                if (control.size() > rollChannel) {
-                    this.controls[0] = control.get(rollChannel);
+                if (vehicle.getControlCount() > rollChannel) {
+                    this.controls[0] = vehicle.getControl(rollChannel);
                 }
                 this.attitude.x = (this.controls[0] * rollScale);
             }
             if (pitchChannel >= 0) {
-                if (control.size() > pitchChannel) {
-                    this.controls[1] = control.get(pitchChannel);
+                if (vehicle.getControlCount() > pitchChannel) {
+                    this.controls[1] = vehicle.getControl(pitchChannel);
                 }
                 this.attitude.y = (this.controls[1] * pitchScale);
             }
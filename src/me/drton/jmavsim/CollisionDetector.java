@@ -0,0 +1,273 @@
+package me.drton.jmavsim;
+
+import javax.vecmath.Vector3d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collision detection between kinematic objects of the world.
+ * <p/>
+ * Broadphase: every tick all objects with positive collision radius are binned into a uniform spatial hash with
+ * cell size equal to the largest bounding diameter, so each object only needs to be tested against objects in the
+ * 27 surrounding cells. Cost is O(n) for objects spread over the world instead of O(n^2) for all pairs.
+ * <p/>
+ * Narrowphase: bounding spheres. Each overlapping pair produces a CollisionEvent and a simple impulse response
+ * (restitution along the contact normal plus positional correction), weighted by inverse mass. Objects that are
+ * not DynamicObject are treated as immovable.
+ * <p/>
+ * Should be added to the world after all objects it checks, so that it sees positions of the current tick.
+ */
+public class CollisionDetector extends WorldObject implements ReportingObject {
+    private static final double MIN_CELL_SIZE = 0.1;  // [m]
+    private static final long CELL_MASK = 0x1FFFFFL;  // 21 bits per axis in the packed cell key
+    private static final long EMPTY = -1L;           // never produced by cellKey(), top bit is always clear
+    private static final int MIN_TABLE_SIZE = 32;
+
+    private double restitution = 0.3;
+    private List<CollisionListener> listeners = new ArrayList<CollisionListener>();
+    private List<CollisionEvent> events = new ArrayList<CollisionEvent>();
+    private List<CollisionEvent> eventPool = new ArrayList<CollisionEvent>();
+    private long collisionsTotal = 0;
+
+    // objects collected in current tick, 'next' links objects sharing the same cell
+    private KinematicObject[] bodies = new KinematicObject[16];
+    private int[] next = new int[16];
+    private int bodyCount = 0;
+
+    // open addressing hash table: packed cell key -> index of first object in the cell
+    private long[] tableKeys = new long[MIN_TABLE_SIZE];
+    private int[] tableHeads = new int[MIN_TABLE_SIZE];
+    private int tableMask = MIN_TABLE_SIZE - 1;
+
+    private double invCellSize = 1.0;
+
+    public CollisionDetector(World world) {
+        super(world);
+    }
+
+    public void addListener(CollisionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CollisionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Set coefficient of restitution used for impulse response.
+     *
+     * @param restitution 0 for perfectly inelastic, 1 for perfectly elastic collisions
+     */
+    public void setRestitution(double restitution) {
+        this.restitution = restitution;
+    }
+
+    public double getRestitution() {
+        return restitution;
+    }
+
+    /**
+     * Get collisions detected during the last update.
+     * Events are reused on the next update.
+     */
+    public List<CollisionEvent> getEvents() {
+        return Collections.unmodifiableList(events);
+    }
+
+    public long getCollisionsTotal() {
+        return collisionsTotal;
+    }
+
+    @Override
+    public void update(long t, boolean paused) {
+        if (paused) {
+            return;
+        }
+        eventPool.addAll(events);
+        events.clear();
+
+        double maxRadius = collectBodies();
+        if (bodyCount < 2) {
+            return;
+        }
+        invCellSize = 1.0 / Math.max(2.0 * maxRadius, MIN_CELL_SIZE);
+        buildTable();
+
+        for (int i = 0; i < bodyCount; i++) {
+            Vector3d p = bodies[i].getPosition();
+            long cx = cellCoord(p.x);
+            long cy = cellCoord(p.y);
+            long cz = cellCoord(p.z);
+            for (long dx = -1; dx <= 1; dx++) {
+                for (long dy = -1; dy <= 1; dy++) {
+                    for (long dz = -1; dz <= 1; dz++) {
+                        int j = lookup(cellKey(cx + dx, cy + dy, cz + dz));
+                        while (j >= 0) {
+                            // each pair is tested only once
+                            if (j > i) {
+                                testPair(bodies[i], bodies[j], t);
+                            }
+                            j = next[j];
+                        }
+                    }
+                }
+            }
+        }
+
+        // don't keep references to objects between ticks
+        Arrays.fill(bodies, 0, bodyCount, null);
+    }
+
+    private double collectBodies() {
+        double maxRadius = 0.0;
+        bodyCount = 0;
+        for (WorldObject obj : getWorld().getObjects()) {
+            if (!(obj instanceof KinematicObject)) {
+                continue;
+            }
+            KinematicObject body = (KinematicObject) obj;
+            double r = body.getCollisionRadius();
+            if (r <= 0.0) {
+                continue;
+            }
+            if (bodyCount == bodies.length) {
+                bodies = Arrays.copyOf(bodies, bodyCount * 2);
+                next = new int[bodyCount * 2];
+            }
+            bodies[bodyCount++] = body;
+            maxRadius = Math.max(maxRadius, r);
+        }
+        return maxRadius;
+    }
+
+    private void buildTable() {
+        int size = MIN_TABLE_SIZE;
+        while (size < bodyCount * 2) {
+            size <<= 1;
+        }
+        if (size > tableKeys.length) {
+            tableKeys = new long[size];
+            tableHeads = new int[size];
+        }
+        tableMask = tableKeys.length - 1;
+        Arrays.fill(tableKeys, EMPTY);
+
+        for (int i = 0; i < bodyCount; i++) {
+            Vector3d p = bodies[i].getPosition();
+            long key = cellKey(cellCoord(p.x), cellCoord(p.y), cellCoord(p.z));
+            int slot = slotOf(key);
+            while (tableKeys[slot] != EMPTY && tableKeys[slot] != key) {
+                slot = (slot + 1) & tableMask;
+            }
+            if (tableKeys[slot] == EMPTY) {
+                tableKeys[slot] = key;
+                tableHeads[slot] = -1;
+            }
+            next[i] = tableHeads[slot];
+            tableHeads[slot] = i;
+        }
+    }
+
+    private int lookup(long key) {
+        int slot = slotOf(key);
+        while (tableKeys[slot] != EMPTY) {
+            if (tableKeys[slot] == key) {
+                return tableHeads[slot];
+            }
+            slot = (slot + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    private int slotOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & tableMask;
+    }
+
+    private long cellCoord(double v) {
+        return (long) Math.floor(v * invCellSize);
+    }
+
+    private static long cellKey(long cx, long cy, long cz) {
+        return ((cx & CELL_MASK) << 42) | ((cy & CELL_MASK) << 21) | (cz & CELL_MASK);
+    }
+
+    private static double inverseMass(KinematicObject obj) {
+        if (obj instanceof DynamicObject) {
+            double mass = ((DynamicObject) obj).getMass();
+            return mass > 0.0 ? 1.0 / mass : 0.0;
+        }
+        return 0.0;
+    }
+
+    private void testPair(KinematicObject a, KinematicObject b, long t) {
+        Vector3d pa = a.getPosition();
+        Vector3d pb = b.getPosition();
+        double dx = pb.x - pa.x;
+        double dy = pb.y - pa.y;
+        double dz = pb.z - pa.z;
+        double r = a.getCollisionRadius() + b.getCollisionRadius();
+        double distSq = dx * dx + dy * dy + dz * dz;
+        if (distSq >= r * r) {
+            return;
+        }
+
+        CollisionEvent event = eventPool.isEmpty() ? new CollisionEvent() : eventPool.remove(eventPool.size() - 1);
+        double dist = Math.sqrt(distSq);
+        if (dist > 1e-9) {
+            event.normal.set(dx / dist, dy / dist, dz / dist);
+        } else {
+            // coincident centers, separate vertically
+            event.normal.set(0.0, 0.0, 1.0);
+        }
+        Vector3d n = event.normal;
+        event.objectA = a;
+        event.objectB = b;
+        event.penetration = r - dist;
+        event.time = t;
+        event.impulse = 0.0;
+
+        Vector3d va = a.getVelocity();
+        Vector3d vb = b.getVelocity();
+        double vn = (vb.x - va.x) * n.x + (vb.y - va.y) * n.y + (vb.z - va.z) * n.z;
+        event.impactSpeed = -vn;
+
+        double invMassA = inverseMass(a);
+        double invMassB = inverseMass(b);
+        double invMassSum = invMassA + invMassB;
+        if (invMassSum > 0.0) {
+            if (vn < 0.0) {
+                // objects are approaching
+                double j = -(1.0 + restitution) * vn / invMassSum;
+                va.scaleAdd(-j * invMassA, n, va);
+                vb.scaleAdd(j * invMassB, n, vb);
+                event.impulse = j;
+            }
+            // push apart so that spheres are just touching
+            double c = event.penetration / invMassSum;
+            pa.scaleAdd(-c * invMassA, n, pa);
+            pb.scaleAdd(c * invMassB, n, pb);
+        }
+
+        events.add(event);
+        collisionsTotal++;
+        for (CollisionListener listener : listeners) {
+            listener.collisionDetected(event);
+        }
+    }
+
+    @Override
+    public void report(StringBuilder builder) {
+        builder.append("COLLISIONS");
+        builder.append(newLine);
+        builder.append("===========");
+        builder.append(newLine);
+        builder.append(String.format("Objects: %d; Current: %d; Total: %d", bodyCount, events.size(),
+                                     collisionsTotal));
+        builder.append(newLine);
+        builder.append(newLine);
+    }
+}
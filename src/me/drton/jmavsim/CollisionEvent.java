@@ -0,0 +1,23 @@
+package me.drton.jmavsim;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Collision between two kinematic objects.
+ * Instances are pooled by CollisionDetector and are only valid until the next world update.
+ */
+public class CollisionEvent {
+    public KinematicObject objectA;
+    public KinematicObject objectB;
+    public final Vector3d normal = new Vector3d();  // unit vector from A to B, NED frame
+    public double penetration;   // overlap of bounding spheres [m]
+    public double impactSpeed;   // closing speed along normal before response [m/s]
+    public double impulse;       // magnitude of the applied impulse [N * s]
+    public long time;            // simulation time [ms]
+
+    @Override
+    public String toString() {
+        return String.format("<CollisionEvent t=%d penetration=%.3f impactSpeed=%.3f impulse=%.3f />",
+                             time, penetration, impactSpeed, impulse);
+    }
+}
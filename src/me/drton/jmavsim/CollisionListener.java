@@ -0,0 +1,12 @@
+package me.drton.jmavsim;
+
+/**
+ * Receives collision events from CollisionDetector.
+ */
+public interface CollisionListener {
+    /**
+     * Called once per colliding pair and tick, after the impulse response has been applied.
+     * The event object is reused by the detector, copy it if it needs to be kept.
+     */
+    void collisionDetected(CollisionEvent event);
+}
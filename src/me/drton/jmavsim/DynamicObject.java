@@ -40,6 +40,14 @@ public abstract class DynamicObject extends KinematicObject {
         this.momentOfInertiaInv.invert(momentOfInertia);
     }
 
+    /**
+     * Set moment of inertia together with its already computed inverse (e.g. shared by a vehicle prototype).
+     */
+    public void setMomentOfInertia(Matrix3d momentOfInertia, Matrix3d momentOfInertiaInv) {
+        this.momentOfInertia.set(momentOfInertia);
+        this.momentOfInertiaInv.set(momentOfInertiaInv);
+    }
+
     @Override
     public void update(long t, boolean paused) {
         if (paused) {
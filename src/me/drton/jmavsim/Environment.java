@@ -3,6 +3,9 @@ import me.drton.jmavlib.geo.LatLonAlt;
 import javax.vecmath.Matrix3d;
 import javax.vecmath.Vector3d;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 /**
  * User: ton Date: 28.11.13 Time: 20:35
  */
@@ -18,10 +21,21 @@ public abstract class Environment extends WorldObject implements ReportingObject
     protected Float magDecl = 0.0f;
     protected double magHIntensity;
     protected double magTIntensity;
-    protected WeatherProvider weather;
+    protected WeatherSource weather;
     private Boolean landing_height_updated = false;
+    protected WindField windField = null;
+    protected Turbulence turbulence = null;
+    protected MagneticFieldGrid magFieldGrid = null;
+    protected Terrain terrain = null;
+    private final Vector3d magFieldPoint = new Vector3d();
+    protected double windFieldTime = 0.0;  // [s]
+    private long windFieldStartTime = -1;
+    // wind field cursors by query point, vehicles always pass their own position vector
+    private final Map<Vector3d, WindField.Cursor> windCursors =
+        new IdentityHashMap<Vector3d, WindField.Cursor>();
+    private static final int MAX_WIND_CURSORS = 256;
 
-    public Environment(World world, WeatherProvider weather) {
+    public Environment(World world, WeatherSource weather) {
         super(world);
         this.weather = weather;
     }
@@ -53,6 +67,20 @@ public abstract class Environment extends WorldObject implements ReportingObject
         builder.append("Wind Cur: ");
         builder.append(ReportUtil.vector2str(windCurrent));
         builder.append(newLine);
+        if (windField != null) {
+            builder.append(String.format("Wind Field: %s; t: %.2f", windField, windFieldTime));
+            builder.append(newLine);
+        }
+        if (turbulence != null) {
+            builder.append("Turbulence: ");
+            builder.append(turbulence.getModel());
+            builder.append(newLine);
+        }
+        if (terrain != null) {
+            builder.append("Terrain: ");
+            builder.append(terrain);
+            builder.append(newLine);
+        }
         builder.append(newLine);
         this.weather.report(builder);
     }
@@ -76,12 +104,101 @@ public abstract class Environment extends WorldObject implements ReportingObject
 
     /**
      * Get wind (air velocity) vector in specified point.
+     * If a wind field is set, the field value in the point is added to the current (global) wind.
+     * If turbulence is set and the point is the position of a dynamic object, its gust is added.
+     * The returned vector is reused by subsequent calls with the same point.
      *
-     * @param point point in NED frame
+     * @param point point in NED frame, null to get the global wind that can be modified
      * @return wind vector
      */
     public Vector3d getCurrentWind(Vector3d point) {
-        return windCurrent;
+        if (point == null) {
+            return windCurrent;
+        }
+        Vector3d wind = windCurrent;
+        if (windField != null) {
+            WindField.Cursor cursor;
+            synchronized (windCursors) {
+                cursor = windCursors.get(point);
+                if (cursor == null) {
+                    if (windCursors.size() >= MAX_WIND_CURSORS) {
+                        windCursors.clear();
+                    }
+                    cursor = windField.createCursor();
+                    windCursors.put(point, cursor);
+                }
+            }
+            wind = windField.getWind(cursor, point, windFieldTime);
+            wind.add(windCurrent);
+        }
+        if (turbulence != null) {
+            wind = turbulence.addGust(point, wind);
+        }
+        return wind;
+    }
+
+    /**
+     * Get wind for many points at once, e.g. for all vehicles of a swarm.
+     *
+     * @param cursors one cursor per point created by WindField.createCursor(), used only if a wind field is set
+     * @param points  points in NED frame
+     * @param count   number of points
+     * @param result  wind vectors are written to result[0..count-1]
+     */
+    public void getCurrentWind(WindField.Cursor[] cursors, Vector3d[] points, int count, Vector3d[] result) {
+        if (windField != null) {
+            windField.getWind(cursors, points, count, windFieldTime, result);
+            for (int i = 0; i < count; i++) {
+                result[i].add(windCurrent);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                result[i].set(windCurrent);
+            }
+        }
+    }
+
+    public Turbulence getTurbulence() {
+        return turbulence;
+    }
+
+    /**
+     * Set turbulence model, its per-vehicle gusts are added to the global wind (including its simple gusts).
+     *
+     * @param turbulence turbulence or null to disable
+     */
+    public void setTurbulence(Turbulence turbulence) {
+        this.turbulence = turbulence;
+    }
+
+    public WindField getWindField() {
+        return windField;
+    }
+
+    /**
+     * Set spatially varying wind field, time of the field is relative to the first update after this call.
+     *
+     * @param windField wind field or null to use only the global wind
+     */
+    public void setWindField(WindField windField) {
+        synchronized (windCursors) {
+            windCursors.clear();
+        }
+        this.windField = windField;
+        this.windFieldStartTime = -1;
+        this.windFieldTime = 0.0;
+    }
+
+    /**
+     * Advance wind field time, should be called by update().
+     *
+     * @param t simulation time [ms]
+     */
+    protected void updateWindFieldTime(long t) {
+        if (windFieldStartTime < 0) {
+            windFieldStartTime = t;
+        }
+        windFieldTime = (t - windFieldStartTime) / 1000.0;
     }
 
     // Celsius degs
@@ -89,6 +206,16 @@ public abstract class Environment extends WorldObject implements ReportingObject
         return weather.getTemperature();
     }
     
+    /**
+     * Get offset of current temperature from ISA temperature, see Atmosphere.
+     *
+     * @param alt altitude [m]
+     * @return temperature offset [K]
+     */
+    public double getTemperatureOffset(double alt) {
+        return Atmosphere.temperatureOffset(alt, getCurrentTemperature());
+    }
+
     public void setCurrentWind(Vector3d wind) {
         this.windCurrent = wind;
     }
@@ -111,9 +238,45 @@ public abstract class Environment extends WorldObject implements ReportingObject
      * @return ground level in NED frame
      */
     public double getGroundLevelAt(Vector3d point) {
+        if (terrain != null) {
+            return getGroundLevel() - terrain.getHeight(point.x, point.y);
+        }
         return getGroundLevel();
     }
 
+    public Terrain getTerrain() {
+        return terrain;
+    }
+
+    /**
+     * Set terrain height map on top of the base ground level.
+     *
+     * @param terrain terrain or null for flat ground
+     */
+    public void setTerrain(Terrain terrain) {
+        this.terrain = terrain;
+    }
+
+    /**
+     * Get distance to the ground along a ray.
+     *
+     * @param origin    ray origin in NED frame
+     * @param direction normalized ray direction in NED frame
+     * @param maxRange  max distance [m]
+     * @return distance [m], infinity if the ground is farther than maxRange or not hit at all
+     */
+    public double getGroundDistance(Vector3d origin, Vector3d direction, double maxRange) {
+        double height = getGroundLevel() - origin.z;
+        if (terrain != null) {
+            return terrain.rayCast(origin.x, origin.y, height, direction.x, direction.y, -direction.z, maxRange);
+        }
+        if (direction.z <= 0.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double distance = height / direction.z;
+        return distance >= 0.0 && distance <= maxRange ? distance : Double.POSITIVE_INFINITY;
+    }
+
     /**
      * Get gravity vector.
      * Should be pointed to ground.
@@ -133,12 +296,33 @@ public abstract class Environment extends WorldObject implements ReportingObject
 
     /**
      * Get magnetic field vector in specified point.
+     * If a magnetic field grid is set, the returned vector is reused by the next call.
      *
      * @param point point in NED frame
      * @return magnetic field vector
      */
     public Vector3d getMagField(Vector3d point) {
-        return magField;
+        if (magFieldGrid == null || point == null) {
+            return magField;
+        }
+        magFieldGrid.getField(point, magFieldPoint);
+        return magFieldPoint;
+    }
+
+    public MagneticFieldGrid getMagFieldGrid() {
+        return magFieldGrid;
+    }
+
+    /**
+     * Set position dependent magnetic field, the field in the origin is used for reports.
+     *
+     * @param grid magnetic field grid or null to use the constant field only
+     */
+    public void setMagFieldGrid(MagneticFieldGrid grid) {
+        if (grid != null) {
+            setMagField(new Vector3d(grid.getOriginField()));
+        }
+        this.magFieldGrid = grid;
     }
 
     /**
@@ -1,19 +1,48 @@
 package me.drton.jmavsim;
 
-import me.drton.jmavlib.geo.LatLonAlt;
 import javax.vecmath.Vector3d;
 
 /**
  * GNSS Report.
  */
 public class GNSSReport {
-    public LatLonAlt position;
+    public static final int SAMPLE_WIDTH = 10;  // values in a packed sample, see write()
+
+    public final MutableLatLonAlt position = new MutableLatLonAlt();
     public float eph;
     public float epv;
-    public Vector3d velocity;
+    public final Vector3d velocity = new Vector3d();
     public int fix;     // 0 = no fix, 1 = time only, 2 = 2D fix, 3 = 3D fix
     public long time;   // UTC time in [us]
 
+    /**
+     * Pack report into sample, e.g. for SensorDelayLine.
+     */
+    public void write(double[] sample) {
+        sample[0] = position.lat;
+        sample[1] = position.lon;
+        sample[2] = position.alt;
+        sample[3] = velocity.x;
+        sample[4] = velocity.y;
+        sample[5] = velocity.z;
+        sample[6] = eph;
+        sample[7] = epv;
+        sample[8] = fix;
+        sample[9] = time;
+    }
+
+    /**
+     * Unpack report from sample written by write().
+     */
+    public void read(double[] sample) {
+        position.set(sample[0], sample[1], sample[2]);
+        velocity.set(sample[3], sample[4], sample[5]);
+        eph = (float) sample[6];
+        epv = (float) sample[7];
+        fix = (int) sample[8];
+        time = (long) sample[9];
+    }
+
     /**
      * Get scalar horizontal speed.
      *
@@ -0,0 +1,78 @@
+package me.drton.jmavsim;
+
+/**
+ * Ring buffer of standard normal samples generated in blocks.
+ * <p/>
+ * A block is filled in two flat loops: uniform pairs from a xorshift generator, then the Box-Muller transform that
+ * yields two samples per log/sqrt/sin/cos. Reading a sample is an array load, so the cost of the transcendental
+ * functions is amortized over the block instead of being paid on every call.
+ */
+public class GaussianNoiseBuffer {
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private static final double TWO_PI = 2.0 * Math.PI;
+    private static final double INV_2_53 = 1.0 / (1L << 53);
+
+    private final double[] buffer;
+    private int index;
+    private long state;
+
+    /**
+     * @param seed      seed of the generator, equal seeds give equal sequences
+     * @param blockSize number of samples generated at once, must be even
+     */
+    public GaussianNoiseBuffer(long seed, int blockSize) {
+        if (blockSize < 2 || (blockSize & 1) != 0) {
+            throw new IllegalArgumentException("Block size must be even and positive, got " + blockSize);
+        }
+        buffer = new double[blockSize];
+        // state must be non-zero, mix the seed so that close seeds give unrelated streams
+        state = mix(seed);
+        if (state == 0) {
+            state = 0x9E3779B97F4A7C15L;
+        }
+        index = blockSize;
+    }
+
+    public GaussianNoiseBuffer(long seed) {
+        this(seed, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Get next sample with zero mean and unit variance.
+     */
+    public double next() {
+        if (index == buffer.length) {
+            refill();
+        }
+        return buffer[index++];
+    }
+
+    private void refill() {
+        int n = buffer.length;
+        long s = state;
+        // uniforms, first half in (0, 1] for the log, second half in [0, 1)
+        for (int i = 0; i < n; i++) {
+            s ^= s << 13;
+            s ^= s >>> 7;
+            s ^= s << 17;
+            buffer[i] = ((s * 0x2545F4914F6CDD1DL) >>> 11) * INV_2_53;
+        }
+        state = s;
+        int half = n / 2;
+        for (int i = 0; i < half; i++) {
+            double r = Math.sqrt(-2.0 * Math.log(1.0 - buffer[i]));
+            double a = TWO_PI * buffer[i + half];
+            buffer[i] = r * Math.cos(a);
+            buffer[i + half] = r * Math.sin(a);
+        }
+        index = 0;
+    }
+
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
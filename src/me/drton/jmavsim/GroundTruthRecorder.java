@@ -0,0 +1,218 @@
+package me.drton.jmavsim;
+
+import me.drton.jmavsim.vehicle.AbstractVehicle;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records ground truth state of a vehicle into a ULog file.
+ * <p/>
+ * Each update the simulation thread copies the state into a fixed size record of a preallocated single producer,
+ * single consumer ring and publishes it with an ordered store, it never locks or waits for the disk. If the ring is
+ * full the record is dropped and counted. A background thread encodes records into ULog data messages and writes
+ * them in large buffered batches.
+ * <p/>
+ * All records are logged as topic "sim_ground_truth" with timestamps of the HIL messages, so the file can be opened
+ * in the usual ULog tools next to the autopilot log. Should be added to the world after the vehicle.
+ */
+public class GroundTruthRecorder extends WorldObject implements ReportingObject {
+    public static final String TOPIC = "sim_ground_truth";
+    public static final int MAX_ROTORS = 8;
+    public static final int MAX_CONTROLS = 16;
+    public static final int DEFAULT_CAPACITY = 8192;  // records
+    private static final String FORMAT = "uint64_t timestamp;float[3] position;float[3] velocity;float[4] q;" +
+                                         "float[3] rates;float[3] wind;float[" + MAX_ROTORS + "] rotor_rpm;" +
+                                         "float[" + MAX_CONTROLS + "] control;uint8_t rotor_count;" +
+                                         "uint8_t control_count;uint8_t[6] _padding0;";
+    private static final int WIDTH = 3 + 3 + 4 + 3 + 3 + MAX_ROTORS + MAX_CONTROLS;  // floats in a record
+    private static final int DATA_SIZE = 8 + WIDTH * 4 + 8;
+    private static final long IDLE_PARK = 2000000;  // [ns]
+    private static final long FLUSH_INTERVAL = 1000000000;  // [ns]
+
+    private final AbstractVehicle vehicle;
+    private final String fileName;
+    private final int mask;
+    private final long[] times;
+    private final float[] records;
+    private final byte[] counts;
+    private final AtomicLong head = new AtomicLong();  // next record to encode, owned by the writer thread
+    private final AtomicLong tail = new AtomicLong();  // next record to fill, owned by the simulation thread
+    private final ULogWriter writer;
+    private final int msgId;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    private volatile boolean failed = false;
+    private long interval = 0;  // [ms]
+    private long next = 0;
+    private long dropped = 0;
+    private final Quat4d q = new Quat4d();
+
+    /**
+     * Create output file and start the writer thread.
+     *
+     * @param capacity ring capacity [records], rounded up to power of 2
+     */
+    public GroundTruthRecorder(World world, AbstractVehicle vehicle, String fileName, int capacity)
+        throws IOException {
+        super(world);
+        this.vehicle = vehicle;
+        this.fileName = fileName;
+        int n = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = n - 1;
+        this.times = new long[n];
+        this.records = new float[n * WIDTH];
+        this.counts = new byte[n * 2];
+        // header timestamp is set to the first record's, the log start is in simulation time as the data
+        writer = new ULogWriter(fileName, 0, 1 << 20);
+        writer.writeFormat(TOPIC, FORMAT);
+        writer.writeInfo("sys_name", "jMAVSim");
+        writer.writeInfo("ver_sw", "ground truth");
+        msgId = writer.addLogged(TOPIC);
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "GroundTruthRecorder");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public GroundTruthRecorder(World world, AbstractVehicle vehicle, String fileName) throws IOException {
+        this(world, vehicle, fileName, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param rate record rate [Hz], 0 to record every update
+     */
+    public void setRate(double rate) {
+        this.interval = rate > 0.0 ? Math.max(Math.round(1000.0 / rate), 1) : 0;
+    }
+
+    /**
+     * Number of records dropped because the writer didn't keep up.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public void update(long t, boolean paused) {
+        if (paused || failed || t < next) {
+            return;
+        }
+        next = interval > 0 ? (next + interval > t ? next + interval : t + interval) : t;
+        long slot = tail.get();
+        if (slot - head.get() > mask) {
+            dropped++;
+            return;
+        }
+        int i = (int) slot & mask;
+        int p = i * WIDTH;
+        float[] r = records;
+        times[i] = t * 1000;
+        p = put(r, p, vehicle.getPosition());
+        p = put(r, p, vehicle.getVelocity());
+        q.set(vehicle.getRotation());
+        r[p++] = (float) q.w;
+        r[p++] = (float) q.x;
+        r[p++] = (float) q.y;
+        r[p++] = (float) q.z;
+        p = put(r, p, vehicle.getRotationRate());
+        p = put(r, p, world.getEnvironment().getCurrentWind(vehicle.getPosition()));
+        int rotors = Math.min(vehicle.getRotorCount(), MAX_ROTORS);
+        for (int k = 0; k < MAX_ROTORS; k++) {
+            r[p++] = k < rotors ? (float) vehicle.getRotor(k).getRPM() : 0.0f;
+        }
+        int controls = Math.min(vehicle.getControlCount(), MAX_CONTROLS);
+        for (int k = 0; k < MAX_CONTROLS; k++) {
+            r[p++] = (float) vehicle.getControl(k);
+        }
+        counts[i * 2] = (byte) rotors;
+        counts[i * 2 + 1] = (byte) controls;
+        // publish the record to the writer thread
+        tail.lazySet(slot + 1);
+    }
+
+    private static int put(float[] r, int p, Vector3d v) {
+        r[p] = (float) v.x;
+        r[p + 1] = (float) v.y;
+        r[p + 2] = (float) v.z;
+        return p + 3;
+    }
+
+    private void writeLoop() {
+        long lastFlush = System.nanoTime();
+        boolean dirty = false;
+        boolean first = true;
+        try {
+            while (true) {
+                long h = head.get();
+                long end = tail.get();
+                if (h == end) {
+                    if (!running) {
+                        break;
+                    }
+                    if (dirty && System.nanoTime() - lastFlush > FLUSH_INTERVAL) {
+                        writer.flush();
+                        lastFlush = System.nanoTime();
+                        dirty = false;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK);
+                    continue;
+                }
+                for (; h < end; h++) {
+                    int i = (int) h & mask;
+                    if (first) {
+                        writer.setTimestamp(times[i]);
+                        first = false;
+                    }
+                    ByteBuffer b = writer.beginData(msgId, DATA_SIZE);
+                    b.putLong(times[i]);
+                    for (int k = i * WIDTH, e = k + WIDTH; k < e; k++) {
+                        b.putFloat(records[k]);
+                    }
+                    b.put(counts[i * 2]);
+                    b.put(counts[i * 2 + 1]);
+                    b.putInt(0);
+                    b.putShort((short) 0);
+                    // release the slot
+                    head.lazySet(h + 1);
+                }
+                dirty = true;
+            }
+            writer.close();
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("Ground truth recording to " + fileName + " failed: " + e);
+        }
+    }
+
+    /**
+     * Write all pending records and close the file.
+     */
+    public void close() {
+        running = false;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void report(StringBuilder builder) {
+        builder.append("GROUND TRUTH");
+        builder.append(newLine);
+        builder.append("============");
+        builder.append(newLine);
+        builder.append(String.format("File: %s; Records: %d; Dropped: %d", fileName, tail.get(), dropped));
+        builder.append(newLine);
+        builder.append(newLine);
+    }
+}
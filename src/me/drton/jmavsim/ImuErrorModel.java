@@ -0,0 +1,189 @@
+package me.drton.jmavsim;
+
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.vecmath.Matrix3d;
+import javax.vecmath.Vector3d;
+
+/**
+ * Error model of accelerometer and gyro.
+ * <p/>
+ * Measurement = M * truth + bias + white noise, where M holds scale factor and misalignment, bias is a first order
+ * Gauss-Markov process (bias instability) and white noise is given by its density, i.e. velocity random walk for
+ * the accelerometer and angle random walk for the gyro. Parameters are per vehicle, errors of every instance are
+ * driven by its own noise stream.
+ */
+public class ImuErrorModel {
+    // vehicle JSON keys, inside of the "sensors" object
+    public static final String ACCEL_KEY = "accel";
+    public static final String GYRO_KEY = "gyro";
+    public static final String NOISE_DENSITY_KEY = "noise_density";
+    public static final String BIAS_INSTABILITY_KEY = "bias_instability";
+    public static final String BIAS_CORRELATION_TIME_KEY = "bias_correlation_time";
+    public static final String SCALE_FACTOR_KEY = "scale_factor";
+    public static final String MISALIGNMENT_KEY = "misalignment";
+
+    /**
+     * Error parameters of one triad, immutable.
+     */
+    public static final class Parameters {
+        public static final Parameters NONE = new Parameters(0.0, 0.0, 100.0, new Vector3d(), new Vector3d());
+
+        private final double noiseDensity;         // [unit/sqrt(Hz)]
+        private final double biasInstability;      // [unit], steady state standard deviation of the bias
+        private final double biasCorrelationTime;  // [s]
+        private final Matrix3d errorMatrix;        // null if scale factor and misalignment are zero
+
+        /**
+         * @param scaleFactor  scale factor error per axis, 0.01 = 1%
+         * @param misalignment small rotation angles of the sensor axes [rad]
+         */
+        public Parameters(double noiseDensity, double biasInstability, double biasCorrelationTime,
+                          Vector3d scaleFactor, Vector3d misalignment) {
+            if (noiseDensity < 0.0 || biasInstability < 0.0 || !(biasCorrelationTime > 0.0)) {
+                throw new IllegalArgumentException("IMU noise parameters must be positive");
+            }
+            this.noiseDensity = noiseDensity;
+            this.biasInstability = biasInstability;
+            this.biasCorrelationTime = biasCorrelationTime;
+            if (scaleFactor.lengthSquared() == 0.0 && misalignment.lengthSquared() == 0.0) {
+                errorMatrix = null;
+            } else {
+                // diag(1 + s) * (I - [m]x)
+                Matrix3d m = new Matrix3d(1.0, misalignment.z, -misalignment.y,
+                                          -misalignment.z, 1.0, misalignment.x,
+                                          misalignment.y, -misalignment.x, 1.0);
+                Matrix3d s = new Matrix3d();
+                s.setIdentity();
+                s.m00 += scaleFactor.x;
+                s.m11 += scaleFactor.y;
+                s.m22 += scaleFactor.z;
+                s.mul(m);
+                errorMatrix = s;
+            }
+        }
+
+        /**
+         * Parse parameters, missing keys mean no error of that kind.
+         *
+         * @param obj parameters object, may be null
+         * @throws IllegalArgumentException if a value is invalid
+         */
+        public static Parameters fromJSONObject(JsonObject obj) {
+            if (obj == null) {
+                return NONE;
+            }
+            return new Parameters(optionalDouble(obj, NOISE_DENSITY_KEY, 0.0),
+                                  optionalDouble(obj, BIAS_INSTABILITY_KEY, 0.0),
+                                  optionalDouble(obj, BIAS_CORRELATION_TIME_KEY, 100.0),
+                                  optionalVector(obj, SCALE_FACTOR_KEY), optionalVector(obj, MISALIGNMENT_KEY));
+        }
+
+        public double getNoiseDensity() {
+            return noiseDensity;
+        }
+
+        private static double optionalDouble(JsonObject obj, String key, double defaultValue) {
+            JsonNumber v = obj.getJsonNumber(key);
+            return v == null ? defaultValue : v.doubleValue();
+        }
+
+        private static Vector3d optionalVector(JsonObject obj, String key) {
+            JsonArray a = obj.getJsonArray(key);
+            if (a == null) {
+                return new Vector3d();
+            }
+            if (a.size() != 3) {
+                throw new IllegalArgumentException("'" + key + "' must have 3 elements");
+            }
+            return new Vector3d(a.getJsonNumber(0).doubleValue(), a.getJsonNumber(1).doubleValue(),
+                                a.getJsonNumber(2).doubleValue());
+        }
+    }
+
+    /**
+     * Error state of one triad.
+     */
+    private static final class Triad {
+        private final Parameters params;
+        private final double[] bias = new double[3];
+        private final Vector3d tmp = new Vector3d();
+        // discrete coefficients for the last dt
+        private double dt = -1.0;
+        private double phi;
+        private double biasDrive;
+        private double noiseStd;
+
+        private Triad(Parameters params, GaussianNoiseBuffer noise) {
+            this.params = params;
+            // start from the steady state bias distribution, like after power on
+            for (int i = 0; i < 3; i++) {
+                bias[i] = params.biasInstability * noise.next();
+            }
+        }
+
+        private void apply(Vector3d v, double dt, GaussianNoiseBuffer noise) {
+            if (params.errorMatrix != null) {
+                params.errorMatrix.transform(v, tmp);
+                v.set(tmp);
+            }
+            if (!(dt > 0.0)) {
+                v.x += bias[0];
+                v.y += bias[1];
+                v.z += bias[2];
+                return;
+            }
+            if (dt != this.dt) {
+                this.dt = dt;
+                phi = Math.exp(-dt / params.biasCorrelationTime);
+                biasDrive = params.biasInstability * Math.sqrt(1.0 - phi * phi);
+                noiseStd = params.noiseDensity / Math.sqrt(dt);
+            }
+            if (biasDrive > 0.0) {
+                for (int i = 0; i < 3; i++) {
+                    bias[i] = phi * bias[i] + biasDrive * noise.next();
+                }
+            }
+            if (noiseStd > 0.0) {
+                v.x += bias[0] + noiseStd * noise.next();
+                v.y += bias[1] + noiseStd * noise.next();
+                v.z += bias[2] + noiseStd * noise.next();
+            } else {
+                v.x += bias[0];
+                v.y += bias[1];
+                v.z += bias[2];
+            }
+        }
+    }
+
+    private final GaussianNoiseBuffer noise;
+    private final Triad accel;
+    private final Triad gyro;
+
+    public ImuErrorModel(Parameters accel, Parameters gyro, GaussianNoiseBuffer noise) {
+        this.noise = noise;
+        this.accel = new Triad(accel, noise);
+        this.gyro = new Triad(gyro, noise);
+    }
+
+    /**
+     * Apply errors to one IMU sample in place.
+     *
+     * @param acc  specific force in body frame [m/s^2]
+     * @param rate rotation rate in body frame [rad/s]
+     * @param dt   time since previous sample [s], 0 for the first sample
+     */
+    public void apply(Vector3d acc, Vector3d rate, double dt) {
+        accel.apply(acc, dt, noise);
+        gyro.apply(rate, dt, noise);
+    }
+
+    public void getAccelBias(Vector3d result) {
+        result.set(accel.bias);
+    }
+
+    public void getGyroBias(Vector3d result) {
+        result.set(gyro.bias);
+    }
+}
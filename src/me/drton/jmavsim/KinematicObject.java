@@ -31,6 +31,7 @@ public abstract class KinematicObject extends WorldObject {
     protected Matrix3d rotation = new Matrix3d();
     protected Vector3d rotationRate = new Vector3d();
     protected Vector3d attitude = new Vector3d();
+    protected double collisionRadius = 0.0;  // bounding sphere radius [m], 0 = not collidable
 
     protected Transform3D transform;
     protected TransformGroup transformGroup;
@@ -107,6 +108,19 @@ public abstract class KinematicObject extends WorldObject {
         this.ignoreWind = ignoreWind;
     }
 
+    /**
+     * Get radius of the bounding sphere used for collision detection.
+     *
+     * @return radius in [m], zero or negative if the object does not take part in collisions
+     */
+    public double getCollisionRadius() {
+        return collisionRadius;
+    }
+
+    public void setCollisionRadius(double collisionRadius) {
+        this.collisionRadius = collisionRadius;
+    }
+
     public Vector3d getPosition() {
         return position;
     }
@@ -0,0 +1,373 @@
+package me.drton.jmavsim;
+
+import me.drton.jmavlib.log.FormatErrorException;
+import me.drton.jmavlib.log.LogReader;
+import me.drton.jmavlib.log.px4.PX4LogReader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Log fields decoded once into column oriented primitive arrays, for replay without per-update parsing.
+ * <p/>
+ * Fields are requested in groups, e.g. {"IMU.AccX", "IMU.AccY", "IMU.AccZ"}. A group gets a row each time the log
+ * updates all of its fields at once, rows have a timestamp and one double per field. Replay goes through a Cursor,
+ * advancing it is an index increment and reading a value is an array access.
+ * <p/>
+ * Decoded columns are cached in a file next to the log (log name + ".cols"), the cache is memory mapped on the next
+ * load and used if the log file size, modification time and requested groups are unchanged.
+ * <p/>
+ * Cache format, big endian:
+ * <pre>
+ * int   magic "JMLC", int version (1)
+ * long  log file size, log file modification time [ms], log start time [us]
+ * int   group count
+ * for each group: int field count, for each field: int length, byte name[length] (UTF-8), int row count
+ * for each group: long time[rows] [us], double value[fields][rows]
+ * </pre>
+ */
+public class LogColumns {
+    public static final int MAGIC = 0x4A4D4C43;  // "JMLC"
+    public static final int VERSION = 1;
+    public static final String CACHE_SUFFIX = ".cols";
+
+    private final long startMicroseconds;
+    private final Group[] groups;
+
+    /**
+     * Rows of a field group.
+     */
+    public static final class Group {
+        private final String[] fields;
+        private int size = 0;
+        private long[] times;
+        private double[][] columns;
+
+        private Group(String[] fields, int capacity) {
+            this.fields = fields.clone();
+            this.times = new long[capacity];
+            this.columns = new double[fields.length][capacity];
+        }
+
+        private void add(long time, Map<String, Object> update) {
+            if (size == times.length) {
+                int capacity = Math.max(16, size * 2);
+                times = Arrays.copyOf(times, capacity);
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = Arrays.copyOf(columns[i], capacity);
+                }
+            }
+            times[size] = time;
+            for (int i = 0; i < fields.length; i++) {
+                columns[i][size] = ((Number) update.get(fields[i])).doubleValue();
+            }
+            size++;
+        }
+
+        private boolean matches(Map<String, Object> update) {
+            for (String field : fields) {
+                if (!update.containsKey(field)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void trim() {
+            times = Arrays.copyOf(times, size);
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = Arrays.copyOf(columns[i], size);
+            }
+        }
+
+        public String[] getFields() {
+            return fields.clone();
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return time of the row [us]
+         */
+        public long getTime(int row) {
+            return times[row];
+        }
+
+        /**
+         * @param row   row index
+         * @param field field index in the group
+         */
+        public double get(int row, int field) {
+            return columns[field][row];
+        }
+
+        /**
+         * Find row by time, for random access.
+         *
+         * @param time log time [us]
+         * @return index of the newest row not later than the time, -1 if there is none
+         */
+        public int rowAt(long time) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] <= time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo - 1;
+        }
+
+        public Cursor createCursor() {
+            return new Cursor(this);
+        }
+    }
+
+    /**
+     * Replay position in a group. A cursor must be used by one thread only.
+     */
+    public static final class Cursor {
+        private final Group group;
+        private int next = 0;
+
+        private Cursor(Group group) {
+            this.group = group;
+        }
+
+        /**
+         * Move over all rows up to the time.
+         *
+         * @param time log time [us]
+         * @return index of the newest passed row, -1 if no rows were passed
+         */
+        public int advance(long time) {
+            long[] times = group.times;
+            int n = group.size;
+            int i = next;
+            while (i < n && times[i] <= time) {
+                i++;
+            }
+            if (i == next) {
+                return -1;
+            }
+            next = i;
+            return i - 1;
+        }
+
+        /**
+         * Move to the first row after the time.
+         *
+         * @param time log time [us]
+         */
+        public void seek(long time) {
+            next = group.rowAt(time) + 1;
+        }
+
+        public boolean isFinished() {
+            return next >= group.size;
+        }
+    }
+
+    private LogColumns(long startMicroseconds, Group[] groups) {
+        this.startMicroseconds = startMicroseconds;
+        this.groups = groups;
+    }
+
+    /**
+     * Decode all updates of the log.
+     *
+     * @param reader log reader positioned at the start of the log
+     * @param fields field names of the groups
+     */
+    public static LogColumns decode(LogReader reader, String[][] fields) throws IOException, FormatErrorException {
+        Group[] groups = new Group[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            groups[i] = new Group(fields[i], 1024);
+        }
+        Map<String, Object> update = new HashMap<String, Object>();
+        while (true) {
+            update.clear();
+            long t;
+            try {
+                t = reader.readUpdate(update);
+            } catch (EOFException e) {
+                break;
+            }
+            for (Group group : groups) {
+                if (group.matches(update)) {
+                    group.add(t, update);
+                }
+            }
+        }
+        for (Group group : groups) {
+            group.trim();
+        }
+        return new LogColumns(reader.getStartMicroseconds(), groups);
+    }
+
+    /**
+     * Load columns of PX4 log, from the cache if it's valid, otherwise by decoding the log and writing the cache.
+     * Failure to write the cache is reported but not fatal.
+     *
+     * @param fileName log file
+     * @param fields   field names of the groups
+     */
+    public static LogColumns load(String fileName, String[][] fields) throws IOException, FormatErrorException {
+        File logFile = new File(fileName);
+        File cacheFile = new File(fileName + CACHE_SUFFIX);
+        if (cacheFile.isFile()) {
+            try {
+                LogColumns columns = readCache(cacheFile, logFile, fields);
+                if (columns != null) {
+                    return columns;
+                }
+            } catch (IOException | RuntimeException e) {
+                // truncated or corrupt cache, e.g. buffer underflow or a bad count, rebuild it from the log
+                System.err.println("Ignoring log column cache " + cacheFile + ": " + e);
+                if (!cacheFile.delete()) {
+                    System.err.println("Can't delete log column cache " + cacheFile);
+                }
+            }
+        }
+        PX4LogReader reader = new PX4LogReader(fileName);
+        LogColumns columns;
+        try {
+            columns = decode(reader, fields);
+        } finally {
+            reader.close();
+        }
+        try {
+            columns.writeCache(cacheFile, logFile);
+        } catch (IOException e) {
+            System.err.println("Can't write log column cache " + cacheFile + ": " + e.getMessage());
+        }
+        return columns;
+    }
+
+    /**
+     * @return columns from the cache or null if it's stale
+     */
+    private static LogColumns readCache(File cacheFile, File logFile, String[][] fields) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+                FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Cache file larger than 2 GB is not supported");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < 32 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            if (buffer.getLong() != logFile.length() || buffer.getLong() != logFile.lastModified()) {
+                return null;
+            }
+            long start = buffer.getLong();
+            if (buffer.getInt() != fields.length) {
+                return null;
+            }
+            int[] rows = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                if (buffer.getInt() != fields[i].length) {
+                    return null;
+                }
+                for (String field : fields[i]) {
+                    int length = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        throw new IOException("Corrupt field name");
+                    }
+                    byte[] name = new byte[length];
+                    buffer.get(name);
+                    if (!field.equals(new String(name, StandardCharsets.UTF_8))) {
+                        return null;
+                    }
+                }
+                rows[i] = buffer.getInt();
+                if (rows[i] < 0 || (long) rows[i] * 8 * (fields[i].length + 1) > buffer.remaining()) {
+                    throw new IOException("Corrupt row count");
+                }
+            }
+            Group[] groups = new Group[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                Group group = new Group(fields[i], rows[i]);
+                group.size = rows[i];
+                buffer.asLongBuffer().get(group.times);
+                buffer.position(buffer.position() + rows[i] * 8);
+                for (double[] column : group.columns) {
+                    buffer.asDoubleBuffer().get(column);
+                    buffer.position(buffer.position() + rows[i] * 8);
+                }
+                groups[i] = group;
+            }
+            return new LogColumns(start, groups);
+        }
+    }
+
+    private void writeCache(File cacheFile, File logFile) throws IOException {
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile),
+                                                                                       1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(logFile.length());
+            out.writeLong(logFile.lastModified());
+            out.writeLong(startMicroseconds);
+            out.writeInt(groups.length);
+            for (Group group : groups) {
+                out.writeInt(group.fields.length);
+                for (String field : group.fields) {
+                    byte[] name = field.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                }
+                out.writeInt(group.size);
+            }
+            for (Group group : groups) {
+                for (int j = 0; j < group.size; j++) {
+                    out.writeLong(group.times[j]);
+                }
+                for (double[] column : group.columns) {
+                    for (int j = 0; j < group.size; j++) {
+                        out.writeDouble(column[j]);
+                    }
+                }
+            }
+        }
+        if (!tmpFile.renameTo(cacheFile)) {
+            cacheFile.delete();
+            if (!tmpFile.renameTo(cacheFile)) {
+                throw new IOException("Can't rename " + tmpFile);
+            }
+        }
+    }
+
+    public long getStartMicroseconds() {
+        return startMicroseconds;
+    }
+
+    public int getGroupCount() {
+        return groups.length;
+    }
+
+    /**
+     * @param index group index, in order of the requested field groups
+     */
+    public Group getGroup(int index) {
+        return groups[index];
+    }
+}
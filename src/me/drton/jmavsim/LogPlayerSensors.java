@@ -2,34 +2,56 @@ package me.drton.jmavsim;
 
 import me.drton.jmavlib.geo.LatLonAlt;
 import me.drton.jmavlib.log.FormatErrorException;
-import me.drton.jmavlib.log.LogReader;
-import me.drton.jmavlib.log.px4.PX4LogReader;
 
 import javax.vecmath.Vector3d;
-import java.io.EOFException;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Sensors object that uses PX4 log file replay as source.
+ * <p/>
+ * The log is pre-decoded by LogColumns, each update advances one cursor per sensor and reads the newest passed row.
  */
 public class LogPlayerSensors implements Sensors {
-    private LogReader logReader = null;
+    // replayed field groups, indices are group handles in LogColumns
+    private static final String[][] LOG_FIELDS = new String[][] {
+        {"IMU.AccX", "IMU.AccY", "IMU.AccZ"},
+        {"IMU.GyroX", "IMU.GyroY", "IMU.GyroZ"},
+        {"IMU.MagX", "IMU.MagY", "IMU.MagZ"},
+        {"SENS.BaroAlt"},
+        {"GPS.Lat", "GPS.Lon", "GPS.Alt", "GPS.EPH", "GPS.EPV", "GPS.VelN", "GPS.VelE", "GPS.VelD", "GPS.Fix",
+         "GPS.GPSTime"},
+    };
+    private static final int GROUP_ACC = 0;
+    private static final int GROUP_GYRO = 1;
+    private static final int GROUP_MAG = 2;
+    private static final int GROUP_BARO = 3;
+    private static final int GROUP_GPS = 4;
+
+    private LogColumns columns = null;
+    private LogColumns.Cursor accCursor;
+    private LogColumns.Cursor gyroCursor;
+    private LogColumns.Cursor magCursor;
+    private LogColumns.Cursor baroCursor;
+    private LogColumns.Cursor gpsCursor;
     private long logStart = 0;
-    private long logT = 0;
-    private Vector3d acc = new Vector3d();
-    private Vector3d gyro = new Vector3d();
-    private Vector3d mag = new Vector3d();
-    private double baroAlt;
+    private SensorFrame frame = new SensorFrame();
     private GNSSReport gnss = new GNSSReport();
     private LatLonAlt globalPosition = new LatLonAlt(0, 0, 0);
     private boolean gpsUpdated = false;
     private boolean reset = false;
 
+    /**
+     * Open log for replay. The log is decoded once into columns (or loaded from their cache file), so replay only
+     * advances indices.
+     */
     void openLog(String fileName, long startTime) throws IOException, FormatErrorException {
-        logReader = new PX4LogReader(fileName);
-        logStart = startTime - logReader.getStartMicroseconds() / 1000;
+        columns = LogColumns.load(fileName, LOG_FIELDS);
+        accCursor = columns.getGroup(GROUP_ACC).createCursor();
+        gyroCursor = columns.getGroup(GROUP_GYRO).createCursor();
+        magCursor = columns.getGroup(GROUP_MAG).createCursor();
+        baroCursor = columns.getGroup(GROUP_BARO).createCursor();
+        gpsCursor = columns.getGroup(GROUP_GPS).createCursor();
+        logStart = startTime - columns.getStartMicroseconds() / 1000;
     }
 
     @Override
@@ -44,29 +66,34 @@ public class LogPlayerSensors implements Sensors {
         return 0;
     }
 
+    @Override
+    public SensorFrame getFrame() {
+        return frame;
+    }
+
     @Override
     public Vector3d getAcc() {
-        return acc;
+        return frame.acc;
     }
 
     @Override
     public Vector3d getGyro() {
-        return gyro;
+        return frame.gyro;
     }
 
     @Override
     public Vector3d getMag() {
-        return mag;
+        return frame.mag;
     }
 
     @Override
     public double getPressureAlt() {
-        return baroAlt;
+        return frame.pressureAlt;
     }
 
     @Override
     public double getPressure() {
-        return SimpleEnvironment.alt2baro(getPressureAlt());
+        return frame.pressure;
     }
 
     @Override
@@ -74,11 +101,21 @@ public class LogPlayerSensors implements Sensors {
         return gnss;
     }
 
+    @Override
+    public Rangefinder getRangefinder() {
+        return null;
+    }
+
     @Override
     public LatLonAlt getGlobalPosition() {
         return globalPosition;
     }
 
+    @Override
+    public void getGlobalPosition(MutableLatLonAlt pos) {
+        pos.set(globalPosition);
+    }
+
     @Override
     public boolean isGPSUpdated() {
         boolean res = gpsUpdated;
@@ -88,59 +125,48 @@ public class LogPlayerSensors implements Sensors {
 
     @Override
     public void update(long t, boolean paused) {
-        if (logReader != null) {
-            Map<String, Object> logData = new HashMap<String, Object>();
-            while (logStart + logT < t) {
-                try {
-                    logT = logReader.readUpdate(logData) / 1000;
-                } catch (EOFException e) {
-                    break;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    break;
-                } catch (FormatErrorException e) {
-                    e.printStackTrace();
-                    break;
-                }
-            }
-            if (logData.containsKey("IMU.AccX") &&
-                    logData.containsKey("IMU.AccY") &&
-                    logData.containsKey("IMU.AccZ")) {
-                acc.set((Float) logData.get("IMU.AccX"), (Float) logData.get("IMU.AccY"),
-                        (Float) logData.get("IMU.AccZ"));
-            }
-            if (logData.containsKey("IMU.GyroX") &&
-                    logData.containsKey("IMU.GyroY") &&
-                    logData.containsKey("IMU.GyroZ")) {
-                gyro.set((Float) logData.get("IMU.GyroX"), (Float) logData.get("IMU.GyroY"),
-                         (Float) logData.get("IMU.GyroZ"));
-            }
-            if (logData.containsKey("IMU.MagX") &&
-                    logData.containsKey("IMU.MagY") &&
-                    logData.containsKey("IMU.MagZ")) {
-                mag.set((Float) logData.get("IMU.MagX"), (Float) logData.get("IMU.MagY"),
-                        (Float) logData.get("IMU.MagZ"));
-            }
-            if (logData.containsKey("SENS.BaroAlt")) {
-                baroAlt = (Float) logData.get("SENS.BaroAlt");
-            }
-            if (logData.containsKey("GPS.Lat") &&
-                    logData.containsKey("GPS.Lon") &&
-                    logData.containsKey("GPS.Alt")) {
-                gpsUpdated = true;
-                gnss.position = new LatLonAlt(((Number) logData.get("GPS.Lat")).doubleValue(),
-                                              ((Number) logData.get("GPS.Lon")).doubleValue(),
-                                              ((Number) logData.get("GPS.Alt")).doubleValue());
-                gnss.eph = ((Number) logData.get("GPS.EPH")).floatValue();
-                gnss.epv = ((Number) logData.get("GPS.EPV")).floatValue();
-                gnss.velocity = new Vector3d(((Number) logData.get("GPS.VelN")).doubleValue(),
-                                             ((Number) logData.get("GPS.VelE")).doubleValue(),
-                                             ((Number) logData.get("GPS.VelD")).doubleValue());
-                gnss.fix = (Integer) logData.get("GPS.Fix");
-                gnss.time = (Long) logData.get("GPS.GPSTime");
-
-                globalPosition = gnss.position;
-            }
+        if (columns == null) {
+            return;
+        }
+        frame.time = t;
+        frame.fieldsUpdated = 0;
+        long logTime = (t - logStart) * 1000;
+        int row = accCursor.advance(logTime);
+        if (row >= 0) {
+            LogColumns.Group g = columns.getGroup(GROUP_ACC);
+            frame.fieldsUpdated |= SensorFrame.ACC;
+            frame.acc.set(g.get(row, 0), g.get(row, 1), g.get(row, 2));
+        }
+        row = gyroCursor.advance(logTime);
+        if (row >= 0) {
+            LogColumns.Group g = columns.getGroup(GROUP_GYRO);
+            frame.fieldsUpdated |= SensorFrame.GYRO;
+            frame.gyro.set(g.get(row, 0), g.get(row, 1), g.get(row, 2));
+        }
+        row = magCursor.advance(logTime);
+        if (row >= 0) {
+            LogColumns.Group g = columns.getGroup(GROUP_MAG);
+            frame.fieldsUpdated |= SensorFrame.MAG;
+            frame.mag.set(g.get(row, 0), g.get(row, 1), g.get(row, 2));
+        }
+        row = baroCursor.advance(logTime);
+        if (row >= 0) {
+            frame.fieldsUpdated |= SensorFrame.BARO;
+            frame.pressureAlt = columns.getGroup(GROUP_BARO).get(row, 0);
+            frame.pressure = SimpleEnvironment.alt2baro(frame.pressureAlt);
+        }
+        row = gpsCursor.advance(logTime);
+        if (row >= 0) {
+            LogColumns.Group g = columns.getGroup(GROUP_GPS);
+            gpsUpdated = true;
+            gnss.position.set(g.get(row, 0), g.get(row, 1), g.get(row, 2));
+            gnss.eph = (float) g.get(row, 3);
+            gnss.epv = (float) g.get(row, 4);
+            gnss.velocity.set(g.get(row, 5), g.get(row, 6), g.get(row, 7));
+            gnss.fix = (int) g.get(row, 8);
+            gnss.time = (long) g.get(row, 9);
+
+            globalPosition = gnss.position.toLatLonAlt();
         }
     }
 
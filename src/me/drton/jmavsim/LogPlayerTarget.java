@@ -1,41 +1,71 @@
 package me.drton.jmavsim;
 
-import me.drton.jmavlib.geo.GlobalPositionProjector;
 import me.drton.jmavlib.geo.LatLonAlt;
 import me.drton.jmavlib.log.FormatErrorException;
 import me.drton.jmavlib.log.LogReader;
 
 import javax.vecmath.Vector3d;
-import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * User: ton Date: 04.05.14 Time: 23:41
+ * <p/>
+ * Target that replays position from a log. Positions (and velocities, if velocity keys are set) are decoded once
+ * into LogColumns, their timestamps are the time index of the replay: seek() to any time, playback at any speed
+ * including reverse and stepping over single log samples cost a binary search and don't read the log again.
+ * Columns of a log opened by file name are cached next to the log.
  */
 public class LogPlayerTarget extends Target {
-    private LogReader logReader = null;
-    private long logStart = 0;
+    private LogColumns columns = null;
+    private LogColumns.Group posGroup = null;
+    private LogColumns.Group velGroup = null;
     private long timeStart = 0;
-    private long logT = 0;
+    private long logStartUs = 0;
+    private long logEndUs = 0;
+    private double playTime = Double.NaN;  // current log time [us]
+    private double speed = 1.0;
+    private long lastT = 0;
+    private int row = -1;
     private Vector3d positionOffset = new Vector3d();
     private String[] posKeys = new String[] {"LPOS.X", "LPOS.Y", "LPOS.Z"};
     private String[] velKeys = new String[] {"LPOS.VX", "LPOS.VY", "LPOS.VZ"};
     private boolean globalFrame = false;
-    private GlobalPositionProjector projector = null;
-    private Vector3d postitionPrev = new Vector3d();
-    private long timePrev = 0;
+    private TangentPlaneProjector projector = null;
+    private final Vector3d logPosition = new Vector3d();
+    private final Vector3d logPositionPrev = new Vector3d();
 
     public LogPlayerTarget(World world, double size, boolean showGui)
         throws FileNotFoundException {
         super(world, size, showGui);
     }
 
-    public void openLog(LogReader logReader) {
-        this.logReader = logReader;
-        logStart = timeStart - logReader.getStartMicroseconds() / 1000;
+    /**
+     * Decode log keys from the reader. Log keys must be set before.
+     */
+    public void openLog(LogReader logReader) throws IOException, FormatErrorException {
+        setColumns(LogColumns.decode(logReader, logFields()));
+    }
+
+    /**
+     * Open PX4 log, using the cached columns if the log was opened before. Log keys must be set before.
+     */
+    public void openLog(String fileName) throws IOException, FormatErrorException {
+        setColumns(LogColumns.load(fileName, logFields()));
+    }
+
+    private String[][] logFields() {
+        return velKeys != null ? new String[][] {posKeys, velKeys} : new String[][] {posKeys};
+    }
+
+    private void setColumns(LogColumns columns) {
+        this.columns = columns;
+        posGroup = columns.getGroup(0);
+        velGroup = velKeys != null ? columns.getGroup(1) : null;
+        logStartUs = columns.getStartMicroseconds();
+        logEndUs = posGroup.size() > 0 ? Math.max(posGroup.getTime(posGroup.size() - 1), logStartUs) : logStartUs;
+        playTime = Double.NaN;
+        row = -1;
     }
 
     public void setLogKeys(String[] posKeys, String[] velKeys) {
@@ -45,7 +75,7 @@ public class LogPlayerTarget extends Target {
 
     public void setGlobalFrame(boolean globalFrame) {
         this.globalFrame = globalFrame;
-        this.projector = new GlobalPositionProjector();
+        this.projector = new TangentPlaneProjector();
     }
 
     public void setGlobalReference(LatLonAlt reference) {
@@ -60,57 +90,106 @@ public class LogPlayerTarget extends Target {
         this.positionOffset = positionOffset;
     }
 
+    /**
+     * Set playback speed: 1 is real time, 0 holds the current sample, negative plays backwards.
+     */
+    public void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Jump to time in the log, clamped to the logged interval.
+     *
+     * @param time time since log start [ms]
+     */
+    public void seek(long time) {
+        playTime = clampTime(logStartUs + time * 1000.0);
+    }
+
+    /**
+     * @return current time since log start [ms]
+     */
+    public long getLogTime() {
+        return Double.isNaN(playTime) ? 0 : (long) ((playTime - logStartUs) / 1000.0);
+    }
+
+    /**
+     * @return logged interval [ms]
+     */
+    public long getLogDuration() {
+        return (logEndUs - logStartUs) / 1000;
+    }
+
+    /**
+     * Move over log position samples, e.g. to inspect a paused replay sample by sample.
+     *
+     * @param samples number of samples, negative to step back
+     */
+    public void step(int samples) {
+        if (posGroup == null || posGroup.size() == 0) {
+            return;
+        }
+        int r = row + samples;
+        r = r < 0 ? 0 : (r >= posGroup.size() ? posGroup.size() - 1 : r);
+        playTime = posGroup.getTime(r);
+    }
+
+    private double clampTime(double time) {
+        return time < logStartUs ? logStartUs : (time > logEndUs ? logEndUs : time);
+    }
+
     @Override
     public void update(long t, boolean paused) {
-        if (logReader != null) {
-            Map<String, Object> logData = new HashMap<String, Object>();
-            while (logStart + logT < t) {
-                try {
-                    logT = logReader.readUpdate(logData) / 1000;
-                } catch (EOFException e) {
-                    break;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    break;
-                } catch (FormatErrorException e) {
-                    e.printStackTrace();
-                    break;
-                }
-            }
-            if (logData.containsKey(posKeys[0]) &&
-                    logData.containsKey(posKeys[1]) &&
-                    logData.containsKey(posKeys[2])) {
-                double[] v = new double[] {
-                    ((Number) logData.get(posKeys[0])).doubleValue(),
-                    ((Number) logData.get(posKeys[1])).doubleValue(),
-                    ((Number) logData.get(posKeys[2])).doubleValue()
-                };
-                if (globalFrame) {
-                    LatLonAlt latLonAlt = new LatLonAlt(v[0], v[1], v[2]);
-                    if (!projector.isInited()) {
-                        projector.init(latLonAlt);
+        if (columns == null) {
+            return;
+        }
+        if (Double.isNaN(playTime)) {
+            playTime = clampTime(logStartUs + (t - timeStart) * 1000.0);
+        } else if (!paused) {
+            playTime = clampTime(playTime + (t - lastT) * 1000.0 * speed);
+        }
+        lastT = t;
+        int r = posGroup.rowAt((long) playTime);
+        if (r >= 0 && r != row) {
+            row = r;
+            readPosition(r, logPosition);
+            position.add(logPosition, positionOffset);
+            if (velGroup == null) {
+                // Calculate velocity from position changes
+                if (r > 0) {
+                    long dt = posGroup.getTime(r) - posGroup.getTime(r - 1);
+                    // samples with equal timestamps give no velocity, keep the previous one
+                    if (dt > 0) {
+                        readPosition(r - 1, logPositionPrev);
+                        velocity.sub(logPosition, logPositionPrev);
+                        velocity.scale(1000000.0 / dt);
                     }
-                    position.add(new Vector3d(projector.project(latLonAlt)), positionOffset);
                 } else {
-                    position.add(new Vector3d(v), positionOffset);
-                }
-                if (velKeys == null) {
-                    // Calculate velocity from position changes
-                    velocity.sub(position, postitionPrev);
-                    velocity.scale(1000.0 / (logT - timePrev));
-                    postitionPrev.set(position);
-                    timePrev = logT;
+                    velocity.set(0.0, 0.0, 0.0);
                 }
             }
-            if (velKeys != null) {
-                // Use velocity from log
-                if (logData.containsKey(velKeys[0]) &&
-                        logData.containsKey(velKeys[1]) &&
-                        logData.containsKey(velKeys[2])) {
-                    velocity.set((Float) logData.get(velKeys[0]), (Float) logData.get(velKeys[1]),
-                                 (Float) logData.get(velKeys[2]));
-                }
+        }
+        if (velGroup != null) {
+            // Use velocity from log
+            int v = velGroup.rowAt((long) playTime);
+            if (v >= 0) {
+                velocity.set(velGroup.get(v, 0), velGroup.get(v, 1), velGroup.get(v, 2));
+            }
+        }
+    }
+
+    private void readPosition(int r, Vector3d result) {
+        if (globalFrame) {
+            if (!projector.isInited()) {
+                projector.init(posGroup.get(r, 0), posGroup.get(r, 1), posGroup.get(r, 2));
             }
+            projector.project(posGroup.get(r, 0), posGroup.get(r, 1), posGroup.get(r, 2), result);
+        } else {
+            result.set(posGroup.get(r, 0), posGroup.get(r, 1), posGroup.get(r, 2));
         }
     }
 }
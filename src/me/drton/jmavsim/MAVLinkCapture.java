@@ -0,0 +1,301 @@
+package me.drton.jmavsim;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures raw MAVLink frames of ports into telemetry log (.tlog) files: each frame is prefixed with big endian
+ * 64 bit UNIX time in microseconds, as written by ground stations.
+ * <p/>
+ * Ports feed the capture through a Tap on their byte channel that splits the byte stream into frames. A frame is
+ * copied into the active one of two preallocated direct buffers under a short lock, a background thread swaps the
+ * buffers and writes the filled one, so capturing never waits for the disk. If the writer falls behind, frames are
+ * dropped and counted. Files are rotated at the max file size, only the newest max files are kept. Numbering
+ * continues after the files of earlier runs with the same prefix, which count towards the limit. If writing fails,
+ * capturing stops and the failure is reported on close().
+ */
+public class MAVLinkCapture {
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L << 20;
+    public static final int DEFAULT_MAX_FILES = 8;
+    private static final long FLUSH_INTERVAL = 200000000;  // [ns]
+
+    private final String prefix;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private ByteBuffer active;
+    private ByteBuffer standby;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    private volatile IOException failure = null;
+    private FileChannel file;
+    private long fileSize = 0;
+    private int fileIndex = 0;
+    private int oldestIndex = 0;  // oldest file that may still exist
+    private long frames = 0;
+    private long dropped = 0;
+
+    /**
+     * Byte channel wrapper of a port, passes all traffic through and captures it if the port has a capture set.
+     */
+    public static final class Tap implements ByteChannel {
+        private final MAVLinkPort port;
+        private final ByteChannel channel;
+        private final Framer rx = new Framer();
+        private final Framer tx = new Framer();
+
+        public Tap(MAVLinkPort port, ByteChannel channel) {
+            this.port = port;
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = channel.read(dst);
+            MAVLinkCapture capture = port.getCapture();
+            if (n > 0 && capture != null) {
+                rx.process(dst, dst.position() - n, dst.position(), capture);
+            }
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int start = src.position();
+            int n = channel.write(src);
+            MAVLinkCapture capture = port.getCapture();
+            if (n > 0 && capture != null) {
+                tx.process(src, start, start + n, capture);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Splits byte stream into MAVLink v1/v2 frames.
+     */
+    private static final class Framer {
+        private static final int STX_V1 = 0xFE;
+        private static final int STX_V2 = 0xFD;
+        private final byte[] frame = new byte[280];
+        private int length = 0;
+        private int expected = 0;
+
+        void process(ByteBuffer buffer, int from, int to, MAVLinkCapture capture) {
+            for (int i = from; i < to; i++) {
+                int b = buffer.get(i) & 0xFF;
+                if (length == 0) {
+                    if (b != STX_V1 && b != STX_V2) {
+                        continue;
+                    }
+                    expected = 0;
+                }
+                frame[length++] = (byte) b;
+                if (length == 2 && (frame[0] & 0xFF) == STX_V1) {
+                    expected = b + 8;
+                } else if (length == 3 && (frame[0] & 0xFF) == STX_V2) {
+                    // payload length, header, checksum and signature if signed
+                    expected = (frame[1] & 0xFF) + 12 + ((b & 0x01) != 0 ? 13 : 0);
+                }
+                if (expected > 0 && length == expected) {
+                    capture.capture(System.currentTimeMillis() * 1000, frame, length);
+                    length = 0;
+                }
+            }
+        }
+    }
+
+    public MAVLinkCapture(String prefix) throws IOException {
+        this(prefix, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Open the first file and start the writer thread.
+     *
+     * @param prefix      file name prefix, files are named prefix-NNN.tlog
+     * @param maxFileSize file size that starts a new file [bytes]
+     * @param maxFiles    max number of files kept, older ones are deleted
+     * @param bufferSize  size of each of the two buffers [bytes]
+     */
+    public MAVLinkCapture(String prefix, long maxFileSize, int maxFiles, int bufferSize) throws IOException {
+        if (maxFileSize < 1 || maxFiles < 1 || bufferSize < 512) {
+            throw new IllegalArgumentException("Invalid capture limits");
+        }
+        this.prefix = prefix;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        active = ByteBuffer.allocateDirect(bufferSize);
+        standby = ByteBuffer.allocateDirect(bufferSize);
+        findExistingFiles();
+        file = openFile();
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "MAVLinkCapture");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Continue numbering after the newest file of earlier runs, so they aren't overwritten.
+     */
+    private void findExistingFiles() {
+        File base = new File(prefix).getAbsoluteFile();
+        String[] names = base.getParentFile().list();
+        if (names == null) {
+            return;
+        }
+        String start = base.getName() + "-";
+        int newest = -1;
+        int oldest = Integer.MAX_VALUE;
+        for (String name : names) {
+            if (!name.startsWith(start) || !name.endsWith(".tlog")) {
+                continue;
+            }
+            String number = name.substring(start.length(), name.length() - ".tlog".length());
+            if (number.isEmpty() || number.length() > 9 || !number.matches("[0-9]+")) {
+                continue;
+            }
+            int index = Integer.parseInt(number);
+            newest = Math.max(newest, index);
+            oldest = Math.min(oldest, index);
+        }
+        if (newest >= 0) {
+            fileIndex = newest + 1;
+            oldestIndex = oldest;
+        }
+    }
+
+    private FileChannel openFile() throws IOException {
+        for (; oldestIndex <= fileIndex - maxFiles; oldestIndex++) {
+            File old = new File(fileName(oldestIndex));
+            if (old.exists() && !old.delete()) {
+                System.err.println("Can't delete old capture file " + old);
+            }
+        }
+        fileSize = 0;
+        return new FileOutputStream(fileName(fileIndex)).getChannel();
+    }
+
+    private String fileName(int index) {
+        return String.format("%s-%03d.tlog", prefix, index);
+    }
+
+    /**
+     * Add frame, called by port taps.
+     *
+     * @param time  UNIX time [us]
+     * @param frame frame bytes
+     * @param len   frame length
+     */
+    void capture(long time, byte[] frame, int len) {
+        if (failure != null) {
+            return;
+        }
+        synchronized (this) {
+            if (active.remaining() < len + 8) {
+                dropped++;
+                LockSupport.unpark(writerThread);
+                return;
+            }
+            active.putLong(time);
+            active.put(frame, 0, len);
+            frames++;
+            if (active.position() < active.capacity() / 2) {
+                return;
+            }
+        }
+        LockSupport.unpark(writerThread);
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                boolean stop = !running;
+                ByteBuffer filled;
+                synchronized (this) {
+                    filled = active;
+                    active = standby;
+                    standby = filled;
+                }
+                filled.flip();
+                if (filled.hasRemaining()) {
+                    if (fileSize > 0 && fileSize + filled.remaining() > maxFileSize) {
+                        file.close();
+                        fileIndex++;
+                        file = openFile();
+                    }
+                    fileSize += filled.remaining();
+                    while (filled.hasRemaining()) {
+                        file.write(filled);
+                    }
+                }
+                filled.clear();
+                if (stop) {
+                    break;
+                }
+                LockSupport.parkNanos(FLUSH_INTERVAL);
+            }
+            file.close();
+        } catch (IOException e) {
+            failure = e;
+            System.err.println("MAVLink capture to " + fileName(fileIndex) + " failed, capture stopped: " + e);
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Number of frames dropped because the writer didn't keep up.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return error that stopped the capture, null if it's running or closed normally
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Write captured frames and close the file.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            System.err.println("MAVLink capture " + prefix + " incomplete, writing failed after " + getFrames() +
+                               " frames: " + failure.getMessage());
+        }
+    }
+}
@@ -2,17 +2,18 @@ package me.drton.jmavsim;
 
 import me.drton.jmavlib.mavlink.MAVLinkMessage;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Set;
 
 /**
  * User: ton Date: 13.02.14 Time: 21:50
  */
 public class MAVLinkConnection extends WorldObject {
     private List<MAVLinkNode> nodes = new ArrayList<MAVLinkNode>();
-    private Set<Integer> skipMessages = new HashSet<Integer>();
+    private BitSet skipMessages = new BitSet();  // indexed by message id
+    private BlackBox blackBox = null;
 
     public MAVLinkConnection(World world) {
         super(world);
@@ -24,13 +25,35 @@ public class MAVLinkConnection extends WorldObject {
     }
 
     public void addSkipMessage(int msgType) {
-        skipMessages.add(msgType);
+        skipMessages.set(msgType);
+    }
+
+    /**
+     * Set black box that records ids of the routed messages.
+     */
+    public void setBlackBox(BlackBox blackBox) {
+        this.blackBox = blackBox;
+    }
+
+    /**
+     * Capture raw traffic of all ports of the connection, should be called after the nodes are added.
+     */
+    public void setCapture(MAVLinkCapture capture) {
+        for (MAVLinkNode node : nodes) {
+            if (node instanceof MAVLinkPort) {
+                ((MAVLinkPort) node).setCapture(capture);
+            }
+        }
     }
 
     public void sendMessage(MAVLinkNode sender, MAVLinkMessage msg) {
-        if (skipMessages.contains(msg.getMsgType())) {
+        if (skipMessages.get(msg.getMsgType())) {
             return;
         }
+        if (blackBox != null) {
+            blackBox.recordMessage(msg.getMsgType(), msg.systemID,
+                                   sender instanceof MAVLinkPort ? BlackBox.RX : BlackBox.TX);
+        }
         for (MAVLinkNode node : nodes) {
             if (node != sender) {
                 node.handleMessage(msg);
@@ -38,6 +61,27 @@ public class MAVLinkConnection extends WorldObject {
         }
     }
 
+    /**
+     * Route raw frame, see MAVLinkFrame, to all nodes except the sender.
+     */
+    public void sendFrame(MAVLinkNode sender, ByteBuffer frame) {
+        int msgId = MAVLinkFrame.getMsgId(frame);
+        if (skipMessages.get(msgId)) {
+            return;
+        }
+        if (blackBox != null) {
+            blackBox.recordMessage(msgId, MAVLinkFrame.getSystemId(frame),
+                                   sender instanceof MAVLinkPort ? BlackBox.RX : BlackBox.TX);
+        }
+        // indexed, routing a frame must not allocate
+        for (int i = 0; i < nodes.size(); i++) {
+            MAVLinkNode node = nodes.get(i);
+            if (node != sender) {
+                node.handleFrame(frame);
+            }
+        }
+    }
+
     @Override
     public void update(long t, boolean paused) {
         for (MAVLinkNode node : nodes) {
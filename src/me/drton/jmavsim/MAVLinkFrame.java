@@ -0,0 +1,139 @@
+package me.drton.jmavsim;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Raw MAVLink v1/v2 frames: encoding of typed payloads and access to header fields of encoded frames.
+ * <p/>
+ * A frame is the content of a buffer between its position and limit, header fields are read at absolute offsets
+ * from the position, so frames can be routed and written without being decoded.
+ */
+public final class MAVLinkFrame {
+    public static final int STX_V1 = 0xFE;
+    public static final int STX_V2 = 0xFD;
+    public static final int HEADER_LENGTH_V1 = 6;
+    public static final int HEADER_LENGTH_V2 = 10;
+    public static final int CHECKSUM_LENGTH = 2;
+    public static final int SIGNATURE_LENGTH = 13;
+    public static final int MAX_FRAME_LENGTH = HEADER_LENGTH_V2 + 255 + CHECKSUM_LENGTH + SIGNATURE_LENGTH;
+    private static final int INCOMPAT_FLAG_SIGNED = 0x01;
+
+    private MAVLinkFrame() {
+    }
+
+    /**
+     * Encode payload into a frame at the buffer position, the buffer may be reused for every frame.
+     * <p/>
+     * v1 frames carry the payload without extensions, trailing zero bytes of v2 payloads are truncated.
+     *
+     * @param frame   little endian buffer with at least MAX_FRAME_LENGTH bytes remaining, the frame is left between
+     *                its position and limit
+     * @param version protocol version, 1 or 2, v2 is used for ids that don't fit in v1
+     */
+    public static void encode(ByteBuffer frame, MAVLinkPayload payload, int version, int seq, int sysId,
+                              int componentId) {
+        int start = frame.position();
+        int msgId = payload.getMsgId();
+        boolean v1 = version == 1 && msgId < 256;
+        int header = v1 ? HEADER_LENGTH_V1 : HEADER_LENGTH_V2;
+        frame.position(start + header);
+        payload.encode(frame);
+        int len;
+        if (v1) {
+            len = payload.getMinLength();
+            frame.put(start, (byte) STX_V1);
+            frame.put(start + 1, (byte) len);
+            frame.put(start + 2, (byte) seq);
+            frame.put(start + 3, (byte) sysId);
+            frame.put(start + 4, (byte) componentId);
+            frame.put(start + 5, (byte) msgId);
+        } else {
+            // the first payload byte is kept even if zero
+            len = payload.getMaxLength();
+            while (len > 1 && frame.get(start + header + len - 1) == 0) {
+                len--;
+            }
+            frame.put(start, (byte) STX_V2);
+            frame.put(start + 1, (byte) len);
+            frame.put(start + 2, (byte) 0);  // incompat flags
+            frame.put(start + 3, (byte) 0);  // compat flags
+            frame.put(start + 4, (byte) seq);
+            frame.put(start + 5, (byte) sysId);
+            frame.put(start + 6, (byte) componentId);
+            frame.put(start + 7, (byte) msgId);
+            frame.put(start + 8, (byte) (msgId >> 8));
+            frame.put(start + 9, (byte) (msgId >> 16));
+        }
+        int end = start + header + len;
+        frame.putShort(end, (short) checksum(frame, start, end, payload.getCrcExtra()));
+        frame.limit(end + CHECKSUM_LENGTH);
+        frame.position(start);
+    }
+
+    /**
+     * X.25 checksum of the frame bytes after the start byte and the CRC extra of the message.
+     *
+     * @param from frame start
+     * @param to   end of the payload
+     */
+    public static int checksum(ByteBuffer buffer, int from, int to, int crcExtra) {
+        int crc = 0xFFFF;
+        for (int i = from + 1; i < to; i++) {
+            crc = crcAccumulate(buffer.get(i) & 0xFF, crc);
+        }
+        return crcAccumulate(crcExtra, crc);
+    }
+
+    public static int crcAccumulate(int b, int crc) {
+        int tmp = (b ^ crc) & 0xFF;
+        tmp = (tmp ^ (tmp << 4)) & 0xFF;
+        return ((crc >> 8) ^ (tmp << 8) ^ (tmp << 3) ^ (tmp >> 4)) & 0xFFFF;
+    }
+
+    public static boolean isV2(ByteBuffer frame) {
+        return (frame.get(frame.position()) & 0xFF) == STX_V2;
+    }
+
+    public static int getPayloadLength(ByteBuffer frame) {
+        return frame.get(frame.position() + 1) & 0xFF;
+    }
+
+    /**
+     * @return offset of the payload from the frame start
+     */
+    public static int getPayloadOffset(ByteBuffer frame) {
+        return isV2(frame) ? HEADER_LENGTH_V2 : HEADER_LENGTH_V1;
+    }
+
+    /**
+     * @return frame length including checksum and signature
+     */
+    public static int getLength(ByteBuffer frame) {
+        int p = frame.position();
+        if (!isV2(frame)) {
+            return HEADER_LENGTH_V1 + getPayloadLength(frame) + CHECKSUM_LENGTH;
+        }
+        boolean signed = (frame.get(p + 2) & INCOMPAT_FLAG_SIGNED) != 0;
+        return HEADER_LENGTH_V2 + getPayloadLength(frame) + CHECKSUM_LENGTH + (signed ? SIGNATURE_LENGTH : 0);
+    }
+
+    public static int getSeq(ByteBuffer frame) {
+        return frame.get(frame.position() + (isV2(frame) ? 4 : 2)) & 0xFF;
+    }
+
+    public static int getSystemId(ByteBuffer frame) {
+        return frame.get(frame.position() + (isV2(frame) ? 5 : 3)) & 0xFF;
+    }
+
+    public static int getComponentId(ByteBuffer frame) {
+        return frame.get(frame.position() + (isV2(frame) ? 6 : 4)) & 0xFF;
+    }
+
+    public static int getMsgId(ByteBuffer frame) {
+        int p = frame.position();
+        if (!isV2(frame)) {
+            return frame.get(p + 5) & 0xFF;
+        }
+        return (frame.get(p + 7) & 0xFF) | (frame.get(p + 8) & 0xFF) << 8 | (frame.get(p + 9) & 0xFF) << 16;
+    }
+}
@@ -0,0 +1,95 @@
+package me.drton.jmavsim;
+
+import me.drton.jmavsim.mavlink.Dialect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ByteChannel;
+
+/**
+ * Reads raw MAVLink v1/v2 frames from a channel without decoding them.
+ * <p/>
+ * Frames are found and validated (known message id, payload length and checksum) in place in the receive buffer
+ * and returned as a view of it, so nothing is allocated per frame. The view is valid until the next read().
+ */
+public class MAVLinkFrameReader {
+    private final ByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(8192).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer frame = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    private boolean debug = false;
+
+    public MAVLinkFrameReader(ByteChannel channel) {
+        this.channel = channel;
+        buffer.flip();
+    }
+
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    /**
+     * Read next frame.
+     *
+     * @return frame between position and limit of the returned buffer, or null if no complete frame is available
+     */
+    public ByteBuffer read() throws IOException {
+        while (true) {
+            if (nextFrame()) {
+                return frame;
+            }
+            buffer.compact();
+            int n;
+            try {
+                n = channel.read(buffer);
+            } finally {
+                buffer.flip();
+            }
+            if (n <= 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Skip garbage and invalid frames, set the frame view to the next valid frame of the buffer.
+     *
+     * @return false if the buffer has no complete frame
+     */
+    private boolean nextFrame() {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int stx = buffer.get(start) & 0xFF;
+            if (stx != MAVLinkFrame.STX_V1 && stx != MAVLinkFrame.STX_V2) {
+                buffer.position(start + 1);
+                continue;
+            }
+            int header = stx == MAVLinkFrame.STX_V2 ? MAVLinkFrame.HEADER_LENGTH_V2 : MAVLinkFrame.HEADER_LENGTH_V1;
+            if (buffer.remaining() < header) {
+                return false;
+            }
+            int length = MAVLinkFrame.getLength(buffer);
+            if (buffer.remaining() < length) {
+                return false;
+            }
+            int msgId = MAVLinkFrame.getMsgId(buffer);
+            int payloadLength = MAVLinkFrame.getPayloadLength(buffer);
+            int crcExtra = Dialect.getCrcExtra(msgId);
+            int end = start + header + payloadLength;
+            if (crcExtra < 0 || payloadLength > Dialect.getMaxLength(msgId) ||
+                    MAVLinkFrame.checksum(buffer, start, end, crcExtra) != (buffer.getShort(end) & 0xFFFF)) {
+                if (debug) {
+                    System.out.println("Invalid frame, msgId: " + msgId + ", length: " + payloadLength);
+                }
+                // resynchronize on the next start byte
+                buffer.position(start + 1);
+                continue;
+            }
+            buffer.position(start + length);
+            frame.limit(start + length);
+            frame.position(start);
+            return true;
+        }
+        return false;
+    }
+}
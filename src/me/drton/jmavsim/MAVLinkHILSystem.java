@@ -1,18 +1,22 @@
 package me.drton.jmavsim;
 
-import me.drton.jmavlib.conversion.RotationConversion;
-import me.drton.jmavlib.mavlink.MAVLinkMessage;
 import me.drton.jmavlib.mavlink.MAVLinkSchema;
+import me.drton.jmavsim.mavlink.MsgCommandLong;
+import me.drton.jmavsim.mavlink.MsgDistanceSensor;
+import me.drton.jmavsim.mavlink.MsgHeartbeat;
+import me.drton.jmavsim.mavlink.MsgHilActuatorControls;
+import me.drton.jmavsim.mavlink.MsgHilControls;
+import me.drton.jmavsim.mavlink.MsgHilGps;
+import me.drton.jmavsim.mavlink.MsgHilSensor;
+import me.drton.jmavsim.mavlink.MsgHilStateQuaternion;
+import me.drton.jmavsim.mavlink.MsgMissionItemInt;
+import me.drton.jmavsim.mavlink.MsgStatustext;
+import me.drton.jmavsim.mavlink.MsgSystemTime;
 import me.drton.jmavsim.vehicle.AbstractVehicle;
 import me.drton.jmavlib.geo.LatLonAlt;
 
 import javax.vecmath.*;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.TimeZone;
 
 /**
  * MAVLinkHILSystem is MAVLink bridge between AbstractVehicle and autopilot connected via MAVLink.
@@ -29,7 +33,26 @@ public class MAVLinkHILSystem extends MAVLinkHILSystemBase {
     private long nextHilStatePub = 0;
     private long timeThrottleCounter = 0;
     private long lastHeartbeatMs = 0;
+    private static final long HEARTBEAT_TIMEOUT = 3000;  // [ms]
+    private BlackBox blackBox = null;
+    private boolean heartbeatLost = false;
     private int mission_item = 0;
+    // received messages, decoded in place
+    private final MsgHilActuatorControls hilActuatorControls = new MsgHilActuatorControls();
+    private final MsgHilControls hilControls = new MsgHilControls();
+    private final MsgCommandLong commandLong = new MsgCommandLong();
+    private final MsgHeartbeat heartbeat = new MsgHeartbeat();
+    private final MsgStatustext statustext = new MsgStatustext();
+    private final MsgMissionItemInt missionItem = new MsgMissionItemInt();
+    // sent messages, reused every tick, fields not set by update() stay zero
+    private final MsgHilSensor msg_sensor = new MsgHilSensor();
+    private final MsgHilStateQuaternion msg_hil_state = new MsgHilStateQuaternion();
+    private final MsgHilGps msg_gps = new MsgHilGps();
+    private final MsgDistanceSensor msg_distance = new MsgDistanceSensor();
+    private final MsgSystemTime msg_system_time = new MsgSystemTime();
+    private final Vector3d airSpeed = new Vector3d();
+    private final MutableLatLonAlt globalPosition = new MutableLatLonAlt();
+    private final double[] control = new double[8];
 
     /**
      * Create MAVLinkHILSimulator, MAVLink system that sends simulated sensors to autopilot and passes controls from
@@ -41,6 +64,12 @@ public class MAVLinkHILSystem extends MAVLinkHILSystemBase {
      */
     public MAVLinkHILSystem(MAVLinkSchema schema, int sysId, int componentId, AbstractVehicle vehicle) {
         super(schema, sysId, componentId, vehicle);
+        registerMessage(hilActuatorControls);
+        registerMessage(hilControls);
+        registerMessage(commandLong);
+        registerMessage(heartbeat);
+        registerMessage(statustext);
+        registerMessage(missionItem);
     }
 
     @Override
@@ -49,19 +78,18 @@ public class MAVLinkHILSystem extends MAVLinkHILSystemBase {
     }
 
     @Override
-    public void handleMessage(MAVLinkMessage msg) {
-        super.handleMessage(msg);
+    protected void handlePayload(MAVLinkPayload msg, int systemId, int componentId) {
         long t = simulator.getSimMillis();
-        if ("HIL_ACTUATOR_CONTROLS".equals(msg.getMsgName())) {
+        int msgType = msg.getMsgId();
+        if (msgType == MsgHilActuatorControls.MSG_ID) {
             gotHilActuatorControls = true;
-            List<Double> control = new ArrayList<Double>();
-            for (int i = 0; i < 8; ++i) {
-                control.add(((Number)((Object[])msg.get("controls"))[i]).doubleValue());
+            for (int i = 0; i < control.length; ++i) {
+                control[i] = hilActuatorControls.controls[i];
             }
 
             // Get the system arming state if the mode
             // field is valid
-            int mode = msg.getInt("mode");
+            int mode = hilActuatorControls.mode;
             boolean armed = true;
 
             if (mode != 0) {
@@ -74,18 +102,23 @@ public class MAVLinkHILSystem extends MAVLinkHILSystemBase {
 
             simulator.advanceTime();
 
-            vehicle.setControl(control);
+            vehicle.setControl(control, control.length);
 
-        } else if ("HIL_CONTROLS".equals(msg.getMsgName()) &&
+        } else if (msgType == MsgHilControls.MSG_ID &&
                    !gotHilActuatorControls) { //this is deprecated, but we still support it for now
-            List<Double> control = Arrays.asList(msg.getDouble("roll_ailerons"),
-                                                 msg.getDouble("pitch_elevator"),
-                                                 msg.getDouble("yaw_rudder"), msg.getDouble("throttle"), msg.getDouble("aux1"),
-                                                 msg.getDouble("aux2"), msg.getDouble("aux3"), msg.getDouble("aux4"));
+            MsgHilControls c = hilControls;
+            control[0] = c.roll_ailerons;
+            control[1] = c.pitch_elevator;
+            control[2] = c.yaw_rudder;
+            control[3] = c.throttle;
+            control[4] = c.aux1;
+            control[5] = c.aux2;
+            control[6] = c.aux3;
+            control[7] = c.aux4;
 
             // Get the system arming state if the mode
             // field is valid
-            int mode = msg.getInt("mode");
+            int mode = c.mode;
             boolean armed = true;
 
             if (mode != 0) {
@@ -96,22 +129,21 @@ public class MAVLinkHILSystem extends MAVLinkHILSystemBase {
                 }
             }
 
-            vehicle.setControl(control);
+            vehicle.setControl(control, control.length);
 
-        } else if ("COMMAND_LONG".equals(msg.getMsgName())) {
-            int command = msg.getInt("command");
-            if (command == 511) { //MAV_CMD_SET_MESSAGE_INTERVAL
-                int msg_id = (int)(msg.getFloat("param1") + 0.5);
-                if (msg_id == 115) { //HIL_STATE_QUATERNION
-                    hilStateUpdateInterval = (int)(msg.getFloat("param2") + 0.5);
+        } else if (msgType == MsgCommandLong.MSG_ID) {
+            if (commandLong.command == 511) { //MAV_CMD_SET_MESSAGE_INTERVAL
+                int msg_id = (int)(commandLong.param1 + 0.5);
+                if (msg_id == MsgHilStateQuaternion.MSG_ID) {
+                    hilStateUpdateInterval = (int)(commandLong.param2 + 0.5);
                 }
             }
-        } else if ("HEARTBEAT".equals(msg.getMsgName())) {
+        } else if (msgType == MsgHeartbeat.MSG_ID) {
             long realMs = simulator.getRealMillis();
 
             // We timeout after 3 seconds and do a reset.
             long diffMs = realMs - lastHeartbeatMs;
-            if (diffMs > 3000) {
+            if (diffMs > HEARTBEAT_TIMEOUT) {
                 if (gotHeartBeat) {
                     System.out.println("Reseting after silence of " + diffMs + " ms");
                 }
@@ -119,32 +151,33 @@ public class MAVLinkHILSystem extends MAVLinkHILSystemBase {
             }
 
             if (!gotHeartBeat && !stopped) {
-                if (sysId < 0 || sysId == msg.systemID) {
+                if (sysId < 0 || sysId == systemId) {
                     gotHeartBeat = true;
                     if (sysId < 0) {
-                        sysId = msg.systemID;
+                        sysId = systemId;
                     }
 
                     System.out.println("Init MAVLink");
                     initMavLink();
 
-                } else if (sysId > -1 && sysId != msg.systemID) {
-                    System.out.println("WARNING: Got heartbeat from system #" + Integer.toString(msg.systemID) +
+                } else if (sysId > -1 && sysId != systemId) {
+                    System.out.println("WARNING: Got heartbeat from system #" + Integer.toString(systemId) +
                                        " but configured to only accept messages from system #" + Integer.toString(sysId) +
                                        ". Please change the system ID parameter to match in order to use HITL/SITL.");
                 }
             }
-            if ((msg.getInt("base_mode") & 128) == 0) {
+            if ((heartbeat.base_mode & 128) == 0) {
                 vehicle.setControl(Collections.<Double>emptyList());
             }
 
             lastHeartbeatMs = realMs;
+            heartbeatLost = false;
 
-        } else if ("STATUSTEXT".equals(msg.getMsgName())) {
-            System.out.println("MSG: " + msg.getString("text"));
-        } else if ("MISSION_ITEM_INT".equals(msg.getMsgName())) {
-            Vector3d item_location = new Vector3d(msg.getDouble("x"), msg.getDouble("y"), msg.getDouble("z"));
-            int current_mission_seq = msg.getInt("seq");
+        } else if (msgType == MsgStatustext.MSG_ID) {
+            System.out.println("MSG: " + statustext.getText());
+        } else if (msgType == MsgMissionItemInt.MSG_ID) {
+            Vector3d item_location = new Vector3d(missionItem.x, missionItem.y, missionItem.z);
+            int current_mission_seq = missionItem.seq;
             this.vehicle.getWorld().getEnvironment().missionDataUpdated(current_mission_seq, item_location, this.vehicle.getSensors().getGlobalPosition());
         }
     }
@@ -169,10 +202,23 @@ public class MAVLinkHILSystem extends MAVLinkHILSystemBase {
         vehicle.getSensors().setGPSStartTime(-1);
     }
 
+    /**
+     * Set black box that is dumped when heartbeats from the autopilot stop.
+     */
+    public void setBlackBox(BlackBox blackBox) {
+        this.blackBox = blackBox;
+    }
+
     @Override
     public void update(long t, boolean paused) {
         super.update(t, paused);
 
+        if (blackBox != null && gotHeartBeat && !heartbeatLost &&
+                simulator.getRealMillis() - lastHeartbeatMs > HEARTBEAT_TIMEOUT) {
+            heartbeatLost = true;
+            blackBox.trigger("heartbeat timeout");
+        }
+
         if (paused) {
             return;
         }
@@ -185,76 +231,64 @@ public class MAVLinkHILSystem extends MAVLinkHILSystemBase {
 
         Sensors sensors = vehicle.getSensors();
 
-        // Sensors
-        MAVLinkMessage msg_sensor = new MAVLinkMessage(schema, "HIL_SENSOR", sysId, componentId,
-                                                       protocolVersion);
-
-        // sensor source bitmask
-        int sensor_source = 0;
-        double temperature = vehicle.getWorld().getEnvironment().getCurrentTemperature();
-        
-        msg_sensor.set("time_usec", tu);
-        Vector3d tv = sensors.getAcc();
-        msg_sensor.set("xacc", tv.x);
-        msg_sensor.set("yacc", tv.y);
-        msg_sensor.set("zacc", tv.z);
-        tv = sensors.getGyro();
-        sensor_source |= 0b111;
-        msg_sensor.set("xgyro", tv.x);
-        msg_sensor.set("ygyro", tv.y);
-        msg_sensor.set("zgyro", tv.z);
-        tv = sensors.getMag();
-        sensor_source |= 0b111000;
-        msg_sensor.set("xmag", tv.x);
-        msg_sensor.set("ymag", tv.y);
-        msg_sensor.set("zmag", tv.z);
-        msg_sensor.set("temperature", temperature);
-        sensor_source |= 0b111000000;
-        msg_sensor.set("pressure_alt", sensors.getPressureAlt());
-        msg_sensor.set("abs_pressure", sensors.getPressure() * 0.01);  // Pa to millibar
-        sensor_source |= 0b1101000000000;
-        if (sensors.isReset()) {
-            msg_sensor.set("fields_updated", (1 << 31));
-            sensors.setReset(false);
-        } else {
-            msg_sensor.set("fields_updated", sensor_source);
+        // Sensors, only the ones sampled in the last tick, nothing to send if none is due
+        SensorFrame frame = sensors.getFrame();
+        boolean reset = sensors.isReset();
+        if (frame.fieldsUpdated != 0 || reset) {
+            double temperature = vehicle.getWorld().getEnvironment().getCurrentTemperature();
+
+            msg_sensor.time_usec = tu;
+            msg_sensor.xacc = (float) frame.acc.x;
+            msg_sensor.yacc = (float) frame.acc.y;
+            msg_sensor.zacc = (float) frame.acc.z;
+            msg_sensor.xgyro = (float) frame.gyro.x;
+            msg_sensor.ygyro = (float) frame.gyro.y;
+            msg_sensor.zgyro = (float) frame.gyro.z;
+            msg_sensor.xmag = (float) frame.mag.x;
+            msg_sensor.ymag = (float) frame.mag.y;
+            msg_sensor.zmag = (float) frame.mag.z;
+            msg_sensor.temperature = (float) temperature;
+            msg_sensor.pressure_alt = (float) frame.pressureAlt;
+            msg_sensor.abs_pressure = (float) (frame.pressure * 0.01);  // Pa to millibar
+            if (reset) {
+                msg_sensor.fields_updated = 1L << 31;
+                sensors.setReset(false);
+            } else {
+                msg_sensor.fields_updated = frame.fieldsUpdated;
+            }
+            sendMessage(msg_sensor);
         }
-        sendMessage(msg_sensor);
 
         /* ground truth */
         if (hilStateUpdateInterval != -1 && nextHilStatePub <= tu) {
-            MAVLinkMessage msg_hil_state = new MAVLinkMessage(schema, "HIL_STATE_QUATERNION", sysId,
-                                                              componentId, protocolVersion);
-            msg_hil_state.set("time_usec", tu);
-
-            Float[] q = RotationConversion.quaternionByEulerAngles(vehicle.attitude);
-            msg_hil_state.set("attitude_quaternion", q);
+            msg_hil_state.time_usec = tu;
+            quaternionByEulerAngles(vehicle.attitude, msg_hil_state.attitude_quaternion);
 
             Vector3d v3d = vehicle.getRotationRate();
-            msg_hil_state.set("rollspeed", (float) v3d.x);
-            msg_hil_state.set("pitchspeed", (float) v3d.y);
-            msg_hil_state.set("yawspeed", (float) v3d.z);
+            msg_hil_state.rollspeed = (float) v3d.x;
+            msg_hil_state.pitchspeed = (float) v3d.y;
+            msg_hil_state.yawspeed = (float) v3d.z;
 
-            int alt = (int)(1000 * vehicle.position.z);
-            msg_hil_state.set("alt", alt);
-            msg_hil_state.set("lat", (int)(sensors.getGlobalPosition().lat * 1.e7));
-            msg_hil_state.set("lon", (int)(sensors.getGlobalPosition().lon * 1.e7));
+            msg_hil_state.alt = (int)(1000 * vehicle.position.z);
+            sensors.getGlobalPosition(globalPosition);
+            msg_hil_state.lat = (int)(globalPosition.lat * 1.e7);
+            msg_hil_state.lon = (int)(globalPosition.lon * 1.e7);
 
             v3d = vehicle.getVelocity();
-            msg_hil_state.set("vx", (int)(v3d.x * 100));
-            msg_hil_state.set("vy", (int)(v3d.y * 100));
-            msg_hil_state.set("vz", (int)(v3d.z * 100));
+            msg_hil_state.vx = (int)(v3d.x * 100);
+            msg_hil_state.vy = (int)(v3d.y * 100);
+            msg_hil_state.vz = (int)(v3d.z * 100);
 
-            Vector3d airSpeed = new Vector3d(vehicle.getVelocity());
+            airSpeed.set(vehicle.getVelocity());
             airSpeed.scale(-1.0);
             airSpeed.add(vehicle.getWorld().getEnvironment().getCurrentWind(vehicle.position));
             float as_mag = (float) airSpeed.length();
-            msg_hil_state.set("true_airspeed", (int)(as_mag * 100));
+            msg_hil_state.true_airspeed = (int)(as_mag * 100);
 
             v3d = vehicle.acceleration;
-            msg_hil_state.set("xacc", (int)(v3d.x * 1000));
-            msg_hil_state.set("yacc", (int)(v3d.y * 1000));
-            msg_hil_state.set("zacc", (int)(v3d.z * 1000));
+            msg_hil_state.xacc = (int)(v3d.x * 1000);
+            msg_hil_state.yacc = (int)(v3d.y * 1000);
+            msg_hil_state.zacc = (int)(v3d.z * 1000);
 
             sendMessage(msg_hil_state);
             nextHilStatePub = tu + hilStateUpdateInterval;
@@ -263,36 +297,67 @@ public class MAVLinkHILSystem extends MAVLinkHILSystemBase {
         // GPS
         if (sensors.isGPSUpdated()) {
             GNSSReport gps = sensors.getGNSS();
-            if (gps != null && gps.position != null && gps.velocity != null) {
-                MAVLinkMessage msg_gps = new MAVLinkMessage(schema, "HIL_GPS", sysId, componentId, protocolVersion);
-                msg_gps.set("time_usec", tu);
-                msg_gps.set("lat", (long)(gps.position.lat * 1e7));
-                msg_gps.set("lon", (long)(gps.position.lon * 1e7));
-                msg_gps.set("alt", (long)(gps.position.alt * 1e3));
-                msg_gps.set("vn", (int)(gps.velocity.x * 100));
-                msg_gps.set("ve", (int)(gps.velocity.y * 100));
-                msg_gps.set("vd", (int)(gps.velocity.z * 100));
-                msg_gps.set("eph", (int)(gps.eph * 100f));
-                msg_gps.set("epv", (int)(gps.epv * 100f));
-                msg_gps.set("vel", (int)(gps.getSpeed() * 100));
-                msg_gps.set("cog", (int) Math.toDegrees(gps.getCog()) * 100);
-                msg_gps.set("fix_type", gps.fix);
-                msg_gps.set("satellites_visible", 10);
+            if (gps != null) {
+                msg_gps.time_usec = tu;
+                msg_gps.lat = (int)(gps.position.lat * 1e7);
+                msg_gps.lon = (int)(gps.position.lon * 1e7);
+                msg_gps.alt = (int)(gps.position.alt * 1e3);
+                msg_gps.vn = (int)(gps.velocity.x * 100);
+                msg_gps.ve = (int)(gps.velocity.y * 100);
+                msg_gps.vd = (int)(gps.velocity.z * 100);
+                msg_gps.eph = (int)(gps.eph * 100f);
+                msg_gps.epv = (int)(gps.epv * 100f);
+                msg_gps.vel = (int)(gps.getSpeed() * 100);
+                msg_gps.cog = (int) Math.toDegrees(gps.getCog()) * 100;
+                msg_gps.fix_type = gps.fix;
+                msg_gps.satellites_visible = 10;
                 sendMessage(msg_gps);
             }
         }
 
+        // Distance sensor
+        Rangefinder rangefinder = sensors.getRangefinder();
+        if (rangefinder != null && rangefinder.isUpdated()) {
+            double distance = rangefinder.getDistance();
+            int maxDistance = (int)(rangefinder.getMaxRange() * 100);
+            msg_distance.time_boot_ms = rangefinder.getTime();
+            msg_distance.min_distance = (int)(rangefinder.getMinRange() * 100);
+            msg_distance.max_distance = maxDistance;
+            // no return is reported as out of range
+            msg_distance.current_distance = Double.isNaN(distance) ? maxDistance + 1 : (int)(distance * 100);
+            msg_distance.type = 0;  // MAV_DISTANCE_SENSOR_LASER
+            msg_distance.id = 0;
+            msg_distance.orientation = rangefinder.getOrientation();
+            double stdDev = rangefinder.getNoiseStdDev(Double.isNaN(distance) ? 0.0 : distance) * 100;
+            msg_distance.covariance = (int) Math.min(stdDev * stdDev, 254.0);  // [cm^2]
+            sendMessage(msg_distance);
+        }
+
         // SYSTEM TIME from host
         if (timeThrottleCounter++ % 1000 == 0) {
-            MAVLinkMessage msg_system_time = new MAVLinkMessage(schema, "SYSTEM_TIME", sysId, componentId,
-                                                                protocolVersion);
-            Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
-            msg_system_time.set("time_unix_usec", cal.getTimeInMillis() * 1000);
-            msg_system_time.set("time_boot_ms", tu / 1000);
+            msg_system_time.time_unix_usec = System.currentTimeMillis() * 1000;
+            msg_system_time.time_boot_ms = tu / 1000;
             sendMessage(msg_system_time);
         }
     }
 
+    /**
+     * Quaternion of the rotation given by euler angles, as RotationConversion.quaternionByEulerAngles() but written
+     * into the array instead of allocating one.
+     */
+    private static void quaternionByEulerAngles(Vector3d euler, float[] q) {
+        double cosPhi_2 = Math.cos(euler.x / 2.0);
+        double sinPhi_2 = Math.sin(euler.x / 2.0);
+        double cosTheta_2 = Math.cos(euler.y / 2.0);
+        double sinTheta_2 = Math.sin(euler.y / 2.0);
+        double cosPsi_2 = Math.cos(euler.z / 2.0);
+        double sinPsi_2 = Math.sin(euler.z / 2.0);
+        q[0] = (float) (cosPhi_2 * cosTheta_2 * cosPsi_2 + sinPhi_2 * sinTheta_2 * sinPsi_2);
+        q[1] = (float) (sinPhi_2 * cosTheta_2 * cosPsi_2 - cosPhi_2 * sinTheta_2 * sinPsi_2);
+        q[2] = (float) (cosPhi_2 * sinTheta_2 * cosPsi_2 + sinPhi_2 * cosTheta_2 * sinPsi_2);
+        q[3] = (float) (cosPhi_2 * cosTheta_2 * sinPsi_2 - sinPhi_2 * sinTheta_2 * cosPsi_2);
+    }
+
     private void reset() {
         gotHeartBeat = false;
         inited = false;
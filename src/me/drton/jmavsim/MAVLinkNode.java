@@ -3,6 +3,7 @@ package me.drton.jmavsim;
 import me.drton.jmavlib.mavlink.MAVLinkMessage;
 import me.drton.jmavlib.mavlink.MAVLinkSchema;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -30,7 +31,24 @@ public abstract class MAVLinkNode {
         }
     }
 
+    /**
+     * Send raw frame, see MAVLinkFrame, to the other nodes of the connections.
+     */
+    protected void sendFrame(ByteBuffer frame) {
+        for (int i = 0; i < connections.size(); i++) {
+            connections.get(i).sendFrame(this, frame);
+        }
+    }
+
     public abstract void handleMessage(MAVLinkMessage msg);
 
+    /**
+     * Handle raw frame between position and limit of the buffer, the buffer position must be left unchanged.
+     * The sender reuses the buffer, frames that are needed later must be copied. Nodes that don't use frames ignore
+     * them.
+     */
+    public void handleFrame(ByteBuffer frame) {
+    }
+
     public abstract void update(long t, boolean paused);
 }
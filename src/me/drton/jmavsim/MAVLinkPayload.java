@@ -0,0 +1,90 @@
+package me.drton.jmavsim;
+
+import me.drton.jmavlib.mavlink.MAVLinkMessage;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+
+/**
+ * Typed MAVLink message payload, implemented by the message classes generated from the message definitions
+ * (package me.drton.jmavsim.mavlink, see tools/MAVLinkGenerator.java).
+ * <p/>
+ * Payloads are encoded and decoded in wire order at fixed offsets, buffers must be little endian.
+ */
+public interface MAVLinkPayload {
+    int getMsgId();
+
+    int getCrcExtra();
+
+    /**
+     * @return payload length without extension fields, the length of MAVLink v1 frames [bytes]
+     */
+    int getMinLength();
+
+    /**
+     * @return payload length with extension fields [bytes]
+     */
+    int getMaxLength();
+
+    /**
+     * Write getMaxLength() bytes at the buffer position and advance it.
+     */
+    void encode(ByteBuffer buffer);
+
+    /**
+     * Read getMaxLength() bytes at the buffer position and advance it, bytes missing in truncated payloads must be
+     * zero filled.
+     */
+    void decode(ByteBuffer buffer);
+
+    /**
+     * Copy field values of a message decoded by the schema.
+     */
+    void decode(MAVLinkMessage msg);
+
+    /**
+     * Copy array field value of a message decoded by the schema.
+     */
+    static void copy(Object value, byte[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = (byte) element(value, i);
+        }
+    }
+
+    static void copy(Object value, int[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = (int) element(value, i);
+        }
+    }
+
+    static void copy(Object value, long[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = (long) element(value, i);
+        }
+    }
+
+    static void copy(Object value, float[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = (float) element(value, i);
+        }
+    }
+
+    static void copy(Object value, double[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = element(value, i);
+        }
+    }
+
+    /**
+     * @return element of an Object[] or primitive array value, 0 if missing
+     */
+    static double element(Object value, int i) {
+        if (value instanceof Object[]) {
+            Object[] a = (Object[]) value;
+            return i < a.length && a[i] != null ? ((Number) a[i]).doubleValue() : 0.0;
+        } else if (value != null && value.getClass().isArray() && i < Array.getLength(value)) {
+            return ((Number) Array.get(value, i)).doubleValue();
+        }
+        return 0.0;
+    }
+}
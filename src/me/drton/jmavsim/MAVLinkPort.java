@@ -3,15 +3,36 @@ package me.drton.jmavsim;
 import me.drton.jmavlib.mavlink.MAVLinkSchema;
 
 import java.io.IOException;
+import java.nio.channels.ByteChannel;
 
 /**
  * User: ton Date: 02.12.13 Time: 20:56
  */
 public abstract class MAVLinkPort extends MAVLinkNode {
+    private volatile MAVLinkCapture capture = null;
+
     protected MAVLinkPort(MAVLinkSchema schema) {
         super(schema);
     }
 
+    /**
+     * Capture raw traffic of the port, null to stop capturing.
+     */
+    public void setCapture(MAVLinkCapture capture) {
+        this.capture = capture;
+    }
+
+    public MAVLinkCapture getCapture() {
+        return capture;
+    }
+
+    /**
+     * Wrap channel of the port, its traffic goes to the capture if one is set.
+     */
+    protected ByteChannel tap(ByteChannel channel) {
+        return new MAVLinkCapture.Tap(this, channel);
+    }
+
     public abstract void open() throws IOException;
 
     public abstract void close() throws IOException;
@@ -2,6 +2,12 @@ package me.drton.jmavsim;
 
 import me.drton.jmavlib.mavlink.MAVLinkMessage;
 import me.drton.jmavlib.mavlink.MAVLinkSchema;
+import me.drton.jmavsim.mavlink.MsgHeartbeat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * MAVLinkSystem represents generic MAVLink system with SysID and ComponentID that can handle and send messages.
@@ -14,6 +20,12 @@ public class MAVLinkSystem extends MAVLinkNode {
     private long heartbeatInterval = 1000;  // [ms]
     private long heartbeatNext = 0;
     protected int protocolVersion = 1;
+    private int sequence = 0;
+    private final ByteBuffer txFrame =
+            ByteBuffer.allocateDirect(MAVLinkFrame.MAX_FRAME_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    private final MsgHeartbeat heartbeatMsg = new MsgHeartbeat();
+    private final List<MAVLinkPayload> handledMessages = new ArrayList<MAVLinkPayload>();
+    private final ByteBuffer rxPayload = ByteBuffer.allocate(255).order(ByteOrder.LITTLE_ENDIAN);
 
     public MAVLinkSystem(MAVLinkSchema schema, int sysId, int componentId) {
         super(schema);
@@ -25,18 +37,94 @@ public class MAVLinkSystem extends MAVLinkNode {
         this.heartbeatInterval = interval;
     }
 
+    /**
+     * Encode typed message with the system ids and the protocol version of the received messages and send it.
+     * <p/>
+     * The frame is encoded into a buffer reused for all messages of the system, so nothing is allocated per message
+     * and receivers must not keep the frame after handling it. Should be called from the simulation thread only.
+     */
+    protected void sendMessage(MAVLinkPayload msg) {
+        txFrame.clear();
+        MAVLinkFrame.encode(txFrame, msg, protocolVersion, sequence, sysId, componentId);
+        sendFrame(txFrame);
+        sequence = (sequence + 1) & 0xFF;
+    }
+
+    /**
+     * Register message to handle, received messages with its id are decoded into it and passed to handlePayload().
+     * <p/>
+     * Received messages of other types are not decoded at all.
+     */
+    protected void registerMessage(MAVLinkPayload msg) {
+        handledMessages.add(msg);
+    }
+
+    /**
+     * Handle received message of a registered type.
+     *
+     * @param msg         the registered instance, overwritten by the next message of the type
+     * @param systemId    id of the sending system
+     * @param componentId id of the sending component
+     */
+    protected void handlePayload(MAVLinkPayload msg, int systemId, int componentId) {
+    }
+
+    private MAVLinkPayload getHandledMessage(int msgId) {
+        for (int i = 0; i < handledMessages.size(); i++) {
+            MAVLinkPayload msg = handledMessages.get(i);
+            if (msg.getMsgId() == msgId) {
+                return msg;
+            }
+        }
+        return null;
+    }
+
     @Override
     public void handleMessage(MAVLinkMessage msg) {
         // Update our mavlink version according to incoming messages.
         protocolVersion = msg.protocolVersion;
+        MAVLinkPayload payload = getHandledMessage(msg.getMsgType());
+        if (payload != null) {
+            payload.decode(msg);
+            handlePayload(payload, msg.systemID, msg.componentID);
+        }
+    }
+
+    @Override
+    public void handleFrame(ByteBuffer frame) {
+        protocolVersion = MAVLinkFrame.isV2(frame) ? 2 : 1;
+        MAVLinkPayload payload = getHandledMessage(MAVLinkFrame.getMsgId(frame));
+        if (payload == null) {
+            return;
+        }
+        int position = frame.position();
+        int offset = position + MAVLinkFrame.getPayloadOffset(frame);
+        int length = MAVLinkFrame.getPayloadLength(frame);
+        if (length >= payload.getMaxLength()) {
+            // complete payload, decode directly from the frame
+            frame.position(offset);
+            payload.decode(frame);
+            frame.position(position);
+        } else {
+            // truncated or v1 payload, zero fill the missing bytes
+            rxPayload.clear();
+            for (int i = 0; i < length; i++) {
+                rxPayload.put(frame.get(offset + i));
+            }
+            while (rxPayload.position() < payload.getMaxLength()) {
+                rxPayload.put((byte) 0);
+            }
+            rxPayload.flip();
+            payload.decode(rxPayload);
+        }
+        handlePayload(payload, MAVLinkFrame.getSystemId(frame), MAVLinkFrame.getComponentId(frame));
     }
 
     @Override
     public void update(long t, boolean paused) {
         if (heartbeatNext <= t && heartbeatInterval > 0) {
-            MAVLinkMessage msg = new MAVLinkMessage(schema, "HEARTBEAT", sysId, componentId, protocolVersion);
-            msg.set("mavlink_version", 3);
-            sendMessage(msg);
+            heartbeatMsg.mavlink_version = 3;
+            sendMessage(heartbeatMsg);
             heartbeatNext = t + heartbeatInterval;
         }
     }
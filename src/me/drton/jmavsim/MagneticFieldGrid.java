@@ -0,0 +1,128 @@
+package me.drton.jmavsim;
+
+import me.drton.jmavlib.geo.LatLonAlt;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Magnetic field sampled from the World Magnetic Model on a lat/lon/alt grid around the world origin.
+ * <p/>
+ * Points in the local NED frame are mapped to grid coordinates with the flat earth approximation at the origin,
+ * and the field is interpolated trilinearly, so a lookup is a few dozen multiply-adds. Points outside of the grid
+ * use the nearest grid value.
+ */
+public class MagneticFieldGrid {
+    public static final double DEFAULT_HALF_SPAN = 0.5;      // [deg latitude]
+    public static final double DEFAULT_STEP = 0.05;          // [deg latitude]
+    public static final double DEFAULT_ALT_BELOW = 1000.0;   // [m]
+    public static final double DEFAULT_ALT_ABOVE = 9000.0;   // [m]
+    public static final double DEFAULT_ALT_STEP = 1000.0;    // [m]
+    private static final double EARTH_RADIUS = 6371000.0;    // [m]
+
+    private final LatLonAlt origin;
+    private final int nLat, nLon, nAlt;
+    // grid coordinates of the NED origin and scale from meters to grid cells
+    private final double originLat, originLon, originAlt;
+    private final double cellsPerMeterN, cellsPerMeterE, cellsPerMeterD;
+    private final float[] field;  // [alt][lat][lon][3], Gauss
+    private final Vector3d originField = new Vector3d();
+
+    public MagneticFieldGrid(WorldMagneticModel model, LatLonAlt origin, double year) {
+        this(model, origin, year, DEFAULT_HALF_SPAN, DEFAULT_STEP, DEFAULT_ALT_BELOW, DEFAULT_ALT_ABOVE,
+             DEFAULT_ALT_STEP);
+    }
+
+    /**
+     * Sample the model around origin.
+     *
+     * @param halfSpan half size of the grid [deg latitude], longitude span is scaled to the same distance
+     * @param step     grid step [deg latitude]
+     * @param altBelow altitude range below origin [m]
+     * @param altAbove altitude range above origin [m]
+     * @param altStep  altitude step [m]
+     */
+    public MagneticFieldGrid(WorldMagneticModel model, LatLonAlt origin, double year, double halfSpan, double step,
+                             double altBelow, double altAbove, double altStep) {
+        this.origin = origin;
+        double cosLat = Math.max(Math.cos(Math.toRadians(origin.lat)), 0.01);
+        double lonStep = step / cosLat;
+        int half = Math.max((int) Math.ceil(halfSpan / step), 1);
+        nLat = 2 * half + 1;
+        nLon = 2 * half + 1;
+        int below = (int) Math.ceil(altBelow / altStep);
+        nAlt = below + Math.max((int) Math.ceil(altAbove / altStep), 1) + 1;
+        originLat = half;
+        originLon = half;
+        originAlt = below;
+        double metersPerDegLat = Math.toRadians(1.0) * EARTH_RADIUS;
+        cellsPerMeterN = 1.0 / (step * metersPerDegLat);
+        cellsPerMeterE = 1.0 / (lonStep * metersPerDegLat * cosLat);
+        cellsPerMeterD = -1.0 / altStep;  // down is decreasing altitude
+
+        field = new float[nAlt * nLat * nLon * 3];
+        Vector3d v = new Vector3d();
+        int i = 0;
+        for (int a = 0; a < nAlt; a++) {
+            double alt = origin.alt + (a - below) * altStep;
+            for (int la = 0; la < nLat; la++) {
+                double lat = origin.lat + (la - half) * step;
+                for (int lo = 0; lo < nLon; lo++) {
+                    double lon = origin.lon + (lo - half) * lonStep;
+                    model.getField(lat, lon, alt, year, v);
+                    field[i++] = (float) v.x;
+                    field[i++] = (float) v.y;
+                    field[i++] = (float) v.z;
+                }
+            }
+        }
+        model.getField(origin.lat, origin.lon, origin.alt, year, originField);
+    }
+
+    public LatLonAlt getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Get field in the world origin.
+     */
+    public Vector3d getOriginField() {
+        return originField;
+    }
+
+    /**
+     * Get magnetic field in point.
+     *
+     * @param point  point in NED frame relative to the world origin
+     * @param result magnetic field in NED frame [Gauss]
+     */
+    public void getField(Vector3d point, Vector3d result) {
+        double gLat = clamp(originLat + point.x * cellsPerMeterN, nLat);
+        double gLon = clamp(originLon + point.y * cellsPerMeterE, nLon);
+        double gAlt = clamp(originAlt + point.z * cellsPerMeterD, nAlt);
+        int iLat = Math.min((int) gLat, nLat - 2);
+        int iLon = Math.min((int) gLon, nLon - 2);
+        int iAlt = Math.min((int) gAlt, nAlt - 2);
+        double fLat = gLat - iLat;
+        double fLon = gLon - iLon;
+        double fAlt = gAlt - iAlt;
+
+        int strideLat = nLon * 3;
+        int strideAlt = nLat * strideLat;
+        int base = iAlt * strideAlt + iLat * strideLat + iLon * 3;
+        double x = 0.0, y = 0.0, z = 0.0;
+        for (int k = 0; k < 8; k++) {
+            double w = ((k & 1) != 0 ? fLon : 1.0 - fLon) * ((k & 2) != 0 ? fLat : 1.0 - fLat) *
+                       ((k & 4) != 0 ? fAlt : 1.0 - fAlt);
+            int j = base + ((k & 1) != 0 ? 3 : 0) + ((k & 2) != 0 ? strideLat : 0) +
+                    ((k & 4) != 0 ? strideAlt : 0);
+            x += w * field[j];
+            y += w * field[j + 1];
+            z += w * field[j + 2];
+        }
+        result.set(x, y, z);
+    }
+
+    private static double clamp(double g, int n) {
+        return g < 0.0 ? 0.0 : (g > n - 1 ? n - 1 : g);
+    }
+}
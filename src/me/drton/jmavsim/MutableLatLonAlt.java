@@ -0,0 +1,45 @@
+package me.drton.jmavsim;
+
+import me.drton.jmavlib.geo.LatLonAlt;
+
+/**
+ * Mutable geodetic position, for results written by TangentPlaneProjector without allocation.
+ */
+public class MutableLatLonAlt {
+    public double lat;  // [deg]
+    public double lon;  // [deg]
+    public double alt;  // [m]
+
+    public MutableLatLonAlt() {
+    }
+
+    public MutableLatLonAlt(LatLonAlt pos) {
+        set(pos);
+    }
+
+    public void set(double lat, double lon, double alt) {
+        this.lat = lat;
+        this.lon = lon;
+        this.alt = alt;
+    }
+
+    public void set(LatLonAlt pos) {
+        set(pos.lat, pos.lon, pos.alt);
+    }
+
+    public void set(MutableLatLonAlt pos) {
+        set(pos.lat, pos.lon, pos.alt);
+    }
+
+    /**
+     * Create immutable copy.
+     */
+    public LatLonAlt toLatLonAlt() {
+        return new LatLonAlt(lat, lon, alt);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%.8f, %.8f, %.3f)", lat, lon, alt);
+    }
+}
@@ -14,6 +14,8 @@ public class Propeller {
     public double propeller_pitch_cm;
     // Number of blades on the propeller.
     public double propeller_blades;
+    // Motor-propeller force constant, computed by the first Rotor built with this propeller and shared afterwards.
+    private double forceConstant = Double.NaN;
 
     public static Propeller fromJSONObject(JsonObject obj) {
         try {
@@ -37,4 +39,22 @@ public class Propeller {
         this.propeller_pitch_cm = propeller_pitch_cm;
         this.propeller_blades = propeller_blades_n;
     }
+
+    /**
+     * Copy constructor, keeps the computed force constant.
+     */
+    public Propeller(Propeller other) {
+        this.propeller_diameter_cm = other.propeller_diameter_cm;
+        this.propeller_pitch_cm = other.propeller_pitch_cm;
+        this.propeller_blades = other.propeller_blades;
+        this.forceConstant = other.forceConstant;
+    }
+
+    double getForceConstant() {
+        return forceConstant;
+    }
+
+    void setForceConstant(double forceConstant) {
+        this.forceConstant = forceConstant;
+    }
 }
@@ -0,0 +1,168 @@
+package me.drton.jmavsim;
+
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.vecmath.Vector3d;
+
+/**
+ * Distance sensor measuring along a body fixed ray against the environment ground model.
+ * <p/>
+ * Noise grows with distance: stdDev = noise + noiseScale * distance. Ground farther than max range, or closer than
+ * min range, gives no return and the sample is reported as invalid.
+ */
+public class Rangefinder {
+    // vehicle JSON keys, inside of the "sensors" object
+    public static final String RANGEFINDER_KEY = "rangefinder";
+    public static final String RATE_KEY = "rate";
+    public static final String MIN_RANGE_KEY = "min_range";
+    public static final String MAX_RANGE_KEY = "max_range";
+    public static final String NOISE_KEY = "noise";
+    public static final String NOISE_SCALE_KEY = "noise_scale";
+    public static final String DIRECTION_KEY = "direction";
+    public static final String ORIENTATION_KEY = "orientation";
+
+    public static final int ORIENTATION_DOWNWARD = 25;  // MAV_SENSOR_ROTATION_PITCH_270
+
+    private final double minRange;    // [m]
+    private final double maxRange;    // [m]
+    private final double noise;       // [m]
+    private final double noiseScale;
+    private final long interval;      // [ms]
+    private final Vector3d direction;  // normalized, body frame
+    private final int orientation;    // MAV_SENSOR_ORIENTATION
+    private final Vector3d directionNED = new Vector3d();
+    private long next = 0;
+    private volatile double distance = Double.NaN;  // [m], NaN if no valid return
+    private long time = 0;
+    private boolean updated = false;
+
+    /**
+     * @param rate        measurement rate [Hz]
+     * @param direction   ray direction in body frame
+     * @param orientation MAV_SENSOR_ORIENTATION value reported in DISTANCE_SENSOR
+     */
+    public Rangefinder(double rate, double minRange, double maxRange, double noise, double noiseScale,
+                       Vector3d direction, int orientation) {
+        if (!(rate > 0.0) || minRange < 0.0 || !(maxRange > minRange) || noise < 0.0 || noiseScale < 0.0) {
+            throw new IllegalArgumentException("Invalid rangefinder parameters");
+        }
+        if (!(direction.length() > 0.0)) {
+            throw new IllegalArgumentException("Rangefinder direction must be non-zero");
+        }
+        this.interval = Math.max(Math.round(1000.0 / rate), 1);
+        this.minRange = minRange;
+        this.maxRange = maxRange;
+        this.noise = noise;
+        this.noiseScale = noiseScale;
+        this.direction = new Vector3d(direction);
+        this.direction.normalize();
+        this.orientation = orientation;
+    }
+
+    /**
+     * Create sensor with the same parameters, e.g. for another vehicle.
+     */
+    public Rangefinder(Rangefinder other) {
+        this.interval = other.interval;
+        this.minRange = other.minRange;
+        this.maxRange = other.maxRange;
+        this.noise = other.noise;
+        this.noiseScale = other.noiseScale;
+        this.direction = new Vector3d(other.direction);
+        this.orientation = other.orientation;
+    }
+
+    /**
+     * Parse rangefinder configuration.
+     *
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public static Rangefinder fromJSONObject(JsonObject obj) {
+        Vector3d dir = new Vector3d(0.0, 0.0, 1.0);
+        JsonArray a = obj.getJsonArray(DIRECTION_KEY);
+        if (a != null) {
+            if (a.size() != 3) {
+                throw new IllegalArgumentException("'" + DIRECTION_KEY + "' must have 3 elements");
+            }
+            dir.set(a.getJsonNumber(0).doubleValue(), a.getJsonNumber(1).doubleValue(),
+                    a.getJsonNumber(2).doubleValue());
+        }
+        return new Rangefinder(optionalDouble(obj, RATE_KEY, 20.0), optionalDouble(obj, MIN_RANGE_KEY, 0.1),
+                               optionalDouble(obj, MAX_RANGE_KEY, 40.0), optionalDouble(obj, NOISE_KEY, 0.02),
+                               optionalDouble(obj, NOISE_SCALE_KEY, 0.0), dir,
+                               obj.getInt(ORIENTATION_KEY, ORIENTATION_DOWNWARD));
+    }
+
+    private static double optionalDouble(JsonObject obj, String key, double defaultValue) {
+        JsonNumber v = obj.getJsonNumber(key);
+        return v == null ? defaultValue : v.doubleValue();
+    }
+
+    /**
+     * Take measurement if it's due.
+     *
+     * @param t      simulation time [ms]
+     * @param object object carrying the sensor
+     * @param noise  noise stream of the sensors
+     */
+    public void update(long t, DynamicObject object, GaussianNoiseBuffer noise) {
+        if (t < next) {
+            return;
+        }
+        next = next + interval > t ? next + interval : t + interval;
+        object.getRotation().transform(direction, directionNED);
+        double d = object.getWorld().getEnvironment().getGroundDistance(object.getPosition(), directionNED,
+                                                                        maxRange);
+        if (d == Double.POSITIVE_INFINITY) {
+            distance = Double.NaN;
+        } else {
+            d += (this.noise + noiseScale * d) * noise.next();
+            distance = d >= minRange && d <= maxRange ? d : Double.NaN;
+        }
+        time = t;
+        updated = true;
+    }
+
+    /**
+     * Check and clear new measurement flag.
+     */
+    public boolean isUpdated() {
+        boolean res = updated;
+        updated = false;
+        return res;
+    }
+
+    /**
+     * @return last measured distance [m], NaN if there was no valid return
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * @return time of the last measurement [ms]
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public double getMinRange() {
+        return minRange;
+    }
+
+    public double getMaxRange() {
+        return maxRange;
+    }
+
+    /**
+     * @return noise standard deviation at given distance [m]
+     */
+    public double getNoiseStdDev(double distance) {
+        return noise + noiseScale * distance;
+    }
+
+    public int getOrientation() {
+        return orientation;
+    }
+}
@@ -12,6 +12,7 @@ public class Rotor {
      *  Please use SI units everywhere -- expose a SI-based interface where not possible.
      */
     private final static double AIR_DENSITY_IMPERIAL = 0.0739; // standard air density at 25 deg (lb / ft**3)
+    private final static double MAX_PROPELLER_DIAMETER_INCHES = 17.0; // largest propeller covered by C_D ratio table
 
     private double tau = 1.0;
     private double fullTorque = 1.0;
@@ -33,7 +34,20 @@ public class Rotor {
         this.propeller_diameter_inches = Rotor.cmToInches(propeller.propeller_diameter_cm);
         this.propeller_pitch_inches = Rotor.cmToInches(propeller.propeller_pitch_cm);
         this.propeller_blades = propeller.propeller_blades;
-        this.KF = this.compute_kf();
+        if (Double.isNaN(propeller.getForceConstant())) {
+            propeller.setForceConstant(this.compute_kf());
+        }
+        this.KF = propeller.getForceConstant();
+    }
+
+    /**
+     * Check if the thrust model covers the given propeller.
+     *
+     * @return false if the propeller is too big (Rotor would terminate the simulator)
+     */
+    public static boolean isPropellerSupported(Propeller propeller) {
+        double diameter = Rotor.cmToInches(propeller.propeller_diameter_cm);
+        return diameter > 0.0 && diameter < MAX_PROPELLER_DIAMETER_INCHES;
     }
 
     private double compute_kf() {
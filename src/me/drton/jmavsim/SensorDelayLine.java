@@ -0,0 +1,123 @@
+package me.drton.jmavsim;
+
+/**
+ * Fixed capacity delay line for sensor samples, keyed by simulation time.
+ * <p/>
+ * Samples are fixed width rows of doubles stored in one primitive ring buffer, so delaying a sample doesn't
+ * allocate. Any sensor can be delayed by packing its sample into a row, e.g. GNSSReport.write()/read().
+ * If the ring is full the oldest sample is dropped.
+ */
+public class SensorDelayLine {
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final int MAX_CAPACITY = 1 << 16;
+
+    private final int width;
+    private final int capacity;
+    private final long[] times;
+    private final double[] samples;
+    private int head = 0;   // oldest sample
+    private int size = 0;
+    private long delay = 0;  // [ms]
+    private int dropped = 0;
+
+    /**
+     * @param width    number of values in a sample
+     * @param capacity max number of samples in flight
+     */
+    public SensorDelayLine(int width, int capacity) {
+        if (width < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Width and capacity must be positive");
+        }
+        this.width = width;
+        this.capacity = capacity;
+        this.times = new long[capacity];
+        this.samples = new double[width * capacity];
+    }
+
+    public SensorDelayLine(int width) {
+        this(width, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Capacity needed to delay samples taken every interval without dropping a sample before it's due.
+     *
+     * @param delay    delay [ms]
+     * @param interval sampling interval [ms], 0 if sampled on every update, DEFAULT_CAPACITY is used then
+     */
+    public static int capacityFor(long delay, double interval) {
+        if (!(interval > 0.0)) {
+            return DEFAULT_CAPACITY;
+        }
+        return (int) Math.min(Math.ceil(delay / interval) + 2, Integer.MAX_VALUE);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param delay delay [ms]
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Number of samples dropped because the ring was full.
+     */
+    public int getDropped() {
+        return dropped;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Add sample.
+     *
+     * @param t      sample time [ms]
+     * @param sample sample values, width of the line
+     */
+    public void put(long t, double[] sample) {
+        if (size == capacity) {
+            head = (head + 1) % capacity;
+            size--;
+            dropped++;
+        }
+        int i = (head + size) % capacity;
+        times[i] = t;
+        System.arraycopy(sample, 0, samples, i * width, width);
+        size++;
+    }
+
+    /**
+     * Get delayed output. All samples older than the delay are removed, the newest of them is returned.
+     *
+     * @param t      current time [ms]
+     * @param result delayed sample, unchanged if there is no new output
+     * @return true if there is new output
+     */
+    public boolean get(long t, double[] result) {
+        int last = -1;
+        while (size > 0 && times[head] + delay <= t) {
+            last = head;
+            head = (head + 1) % capacity;
+            size--;
+        }
+        if (last < 0) {
+            return false;
+        }
+        System.arraycopy(samples, last * width, result, 0, width);
+        return true;
+    }
+}
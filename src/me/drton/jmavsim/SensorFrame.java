@@ -0,0 +1,26 @@
+package me.drton.jmavsim;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Sensor samples of one simulation tick.
+ * <p/>
+ * Sensors fill a frame once per update, all consumers (HIL messages, reports, aerodynamic models) read the same
+ * samples. Each sensor runs at its own rate, fieldsUpdated tells which ones were sampled in the tick. Frames are
+ * reused, so consumers must not modify them or keep references to them after the tick.
+ */
+public class SensorFrame {
+    // fieldsUpdated bits, same as in HIL_SENSOR message
+    public static final int ACC = 0b111;
+    public static final int GYRO = 0b111000;
+    public static final int MAG = 0b111000000;
+    public static final int BARO = 0b1101000000000;  // abs_pressure, pressure_alt, temperature
+
+    public long time = 0;                          // simulation time [ms]
+    public final Vector3d acc = new Vector3d();    // body frame acceleration [m/s^2]
+    public final Vector3d gyro = new Vector3d();   // body frame rotation rate [rad/s]
+    public final Vector3d mag = new Vector3d();    // body frame magnetic field [Gauss]
+    public double pressureAlt = 0.0;               // [m]
+    public double pressure = 0.0;                  // [Pa]
+    public int fieldsUpdated = 0;                  // sensors sampled in this tick, others keep old values
+}
@@ -10,6 +10,11 @@ import me.drton.jmavlib.geo.LatLonAlt;
 public interface Sensors {
     void setObject(DynamicObject object, long t);
 
+    /**
+     * Get sensor samples of the last update, getAcc()/getGyro()/getMag()/getPressure*() return the same values.
+     */
+    SensorFrame getFrame();
+
     Vector3d getAcc();
 
     Vector3d getGyro();
@@ -22,8 +27,18 @@ public interface Sensors {
 
     GNSSReport getGNSS();
 
+    /**
+     * @return distance sensor or null if the vehicle has none
+     */
+    Rangefinder getRangefinder();
+
     LatLonAlt getGlobalPosition();
 
+    /**
+     * Copy the global position into pos, unlike getGlobalPosition() this never allocates.
+     */
+    void getGlobalPosition(MutableLatLonAlt pos);
+
     boolean isGPSUpdated();
 
     boolean isReset();
@@ -18,6 +18,7 @@ public class SerialMAVLinkPort extends MAVLinkPort {
     private SerialPort serialPort = null;
     private ByteChannel channel = null;
     private MAVLinkStream stream = null;
+    private ByteChannel tapChannel = null;
     private boolean debug = false;
 
     // connection information
@@ -100,7 +101,8 @@ public class SerialMAVLinkPort extends MAVLinkPort {
                 }
             }
         };
-        stream = new MAVLinkStream(schema, channel);
+        tapChannel = tap(channel);
+        stream = new MAVLinkStream(schema, tapChannel);
         stream.setDebug(debug);
     }
 
@@ -117,6 +119,7 @@ public class SerialMAVLinkPort extends MAVLinkPort {
         }
         serialPort = null;
         stream = null;
+        tapChannel = null;
     }
 
     @Override
@@ -135,6 +138,21 @@ public class SerialMAVLinkPort extends MAVLinkPort {
         }
     }
 
+    @Override
+    public void handleFrame(ByteBuffer frame) {
+        if (isOpened() && tapChannel != null) {
+            int position = frame.position();
+            try {
+                while (frame.hasRemaining()) {
+                    tapChannel.write(frame);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            frame.position(position);
+        }
+    }
+
     @Override
     public void update(long t, boolean paused) {
         MAVLinkMessage msg;
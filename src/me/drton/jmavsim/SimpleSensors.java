@@ -1,8 +1,6 @@
 package me.drton.jmavsim;
 
-import me.drton.jmavlib.geo.GlobalPositionProjector;
 import me.drton.jmavlib.geo.LatLonAlt;
-import me.drton.jmavlib.processing.DelayLine;
 
 import javax.vecmath.Matrix3d;
 import javax.vecmath.Vector3d;
@@ -11,17 +9,51 @@ import javax.vecmath.Vector3d;
  * User: ton Date: 27.11.13 Time: 19:06
  */
 public class SimpleSensors implements Sensors {
+    // vehicle JSON keys
+    public static final String SENSORS_KEY = "sensors";
+    public static final String IMU_RATE_KEY = "imu_rate";
+    public static final String MAG_RATE_KEY = "mag_rate";
+    public static final String BARO_RATE_KEY = "baro_rate";
+    public static final String NOISE_SEED_KEY = "noise_seed";
+    public static final String GPS_DELAY_KEY = "gps_delay";
+    public static final String BARO_DELAY_KEY = "baro_delay";
+
     private DynamicObject object;
-    private GlobalPositionProjector globalProjector = new GlobalPositionProjector();
-    private DelayLine<GNSSReport> gpsDelayLine = new DelayLine<GNSSReport>();
+    private TangentPlaneProjector globalProjector = new TangentPlaneProjector();
+    // delayed samples, reports are pooled: current one is packed into the delay line, output is double-buffered
+    private SensorDelayLine gpsDelayLine = new SensorDelayLine(GNSSReport.SAMPLE_WIDTH);
+    private final double[] gpsSample = new double[GNSSReport.SAMPLE_WIDTH];
+    private final GNSSReport gpsCurrent = new GNSSReport();
+    private GNSSReport gpsBack = new GNSSReport();
+    private SensorDelayLine baroDelayLine = new SensorDelayLine(2);
+    private final double[] baroSample = new double[2];
     private long gpsStartTime = -1;
     private long gpsInterval = 200;  // [ms]
     private long gpsNext = 0;
-    private GNSSReport gps = new GNSSReport();
-    private LatLonAlt globalPosition = new LatLonAlt(0, 0, 0);
+    private volatile GNSSReport gps = null;  // null until first delayed report
+    private final MutableLatLonAlt globalPositionCurrent = new MutableLatLonAlt();
+    // immutable copy of globalPositionCurrent, created when requested
+    private volatile LatLonAlt globalPosition = null;
     private boolean gpsUpdated = false;
     private boolean reset = false;
+    private volatile boolean clearDelayLines = false;  // drop samples in flight on the next update
     private double pressureAltOffset = 0.0;
+    // sensor samples, filled once per update, frame being written is swapped with published one
+    private volatile SensorFrame frame = new SensorFrame();
+    private SensorFrame backFrame = new SensorFrame();
+    private final Matrix3d rotInv = new Matrix3d();
+    // sampling intervals, 0 = every update
+    private long imuInterval = 0;   // [us]
+    private long magInterval = 0;   // [us]
+    private long baroInterval = 0;  // [us]
+    private boolean imuEveryUpdate = false;
+    private long imuNext = 0;
+    private long magNext = 0;
+    private long baroNext = 0;
+    private long imuLastTime = -1;  // [us]
+    private GaussianNoiseBuffer noise = new GaussianNoiseBuffer(System.nanoTime());
+    private ImuErrorModel imuErrorModel = null;
+    private Rangefinder rangefinder = null;
     // default sensor output noise levels
     private float noise_Acc = 0.05f;
     private float noise_Gyo = 0.01f;
@@ -61,24 +93,130 @@ public class SimpleSensors implements Sensors {
         setGlobalPosition(null, t);
     }
 
+    @Override
+    public SensorFrame getFrame() {
+        return frame;
+    }
+
     public void setGPSStartTime(long time) {
         gpsStartTime = time;
+        if (time < 0) {
+            // simulation ended, don't output samples of the old run when it starts again
+            clearDelayLines = true;
+        }
     }
 
     public long getGPSStartTime() {
         return gpsStartTime;
     }
 
+    /**
+     * @param delay GPS latency [ms]
+     * @throws IllegalArgumentException if the delay needs more than SensorDelayLine.MAX_CAPACITY samples in flight
+     */
     public void setGPSDelay(long delay) {
-        gpsDelayLine.setDelay(delay);
+        gpsDelayLine = resizeDelayLine(gpsDelayLine, delay, gpsInterval);
+    }
+
+    /**
+     * @param delay barometer latency [ms]
+     * @throws IllegalArgumentException if the delay needs more than SensorDelayLine.MAX_CAPACITY samples in flight
+     */
+    public void setBaroDelay(long delay) {
+        baroDelayLine = resizeDelayLine(baroDelayLine, delay, baroInterval / 1000.0);
+    }
+
+    /**
+     * Set delay of the line, replacing the line by one with enough capacity for the delay and sampling interval.
+     *
+     * @param interval sampling interval [ms]
+     */
+    private static SensorDelayLine resizeDelayLine(SensorDelayLine line, long delay, double interval) {
+        int capacity = SensorDelayLine.capacityFor(delay, interval);
+        if (capacity > SensorDelayLine.MAX_CAPACITY) {
+            throw new IllegalArgumentException("Sensor delay " + delay + " ms is too long for sampling interval " +
+                                               interval + " ms");
+        }
+        if (capacity != line.getCapacity()) {
+            line = new SensorDelayLine(line.getWidth(), capacity);
+        }
+        line.setDelay(delay);
+        return line;
     }
 
     public void setGPSInterval(long gpsInterval) {
         this.gpsInterval = gpsInterval;
+        gpsDelayLine = resizeDelayLine(gpsDelayLine, gpsDelayLine.getDelay(), gpsInterval);
         // re-init filters with new dt
         initFilters();
     }
 
+    /**
+     * Set sensor sampling rate, rates higher than simulation rate or 0 mean sampling on every update.
+     *
+     * @param imuRate  accelerometer and gyro rate [Hz]
+     * @param magRate  magnetometer rate [Hz]
+     * @param baroRate barometer rate [Hz]
+     */
+    public void setSensorRates(double imuRate, double magRate, double baroRate) {
+        imuInterval = rateToInterval(imuRate);
+        magInterval = rateToInterval(magRate);
+        baroInterval = rateToInterval(baroRate);
+        baroDelayLine = resizeDelayLine(baroDelayLine, baroDelayLine.getDelay(), baroInterval / 1000.0);
+    }
+
+    /**
+     * @return configured accelerometer and gyro rate [Hz], 0 if sampled on every update
+     */
+    public double getImuRate() {
+        return imuInterval > 0 ? 1e6 / imuInterval : 0.0;
+    }
+
+    /**
+     * Sample accelerometer and gyro on every update regardless of the configured rate, mag and baro are still
+     * decimated. Needed in lockstep where time only advances when the autopilot answers IMU data.
+     */
+    public void setImuEveryUpdate(boolean imuEveryUpdate) {
+        this.imuEveryUpdate = imuEveryUpdate;
+    }
+
+    /**
+     * Set seed of all sensor noise, for repeatable runs.
+     */
+    public void setNoiseSeed(long seed) {
+        noise = new GaussianNoiseBuffer(seed);
+    }
+
+    /**
+     * Set accelerometer and gyro error model, by default only white noise is added.
+     * The model draws from the sensor noise stream, so set the seed first.
+     */
+    public void setImuErrorModel(ImuErrorModel.Parameters accel, ImuErrorModel.Parameters gyro) {
+        imuErrorModel = new ImuErrorModel(accel, gyro, noise);
+    }
+
+    public ImuErrorModel getImuErrorModel() {
+        return imuErrorModel;
+    }
+
+    private static long rateToInterval(double rate) {
+        return rate > 0.0 ? Math.round(1e6 / rate) : 0;
+    }
+
+    /**
+     * Check if sensor with given interval and next sample time is due.
+     *
+     * @return next sample time if due, -1 otherwise
+     */
+    private static long nextIfDue(long tu, long next, long interval) {
+        if (tu < next) {
+            return -1;
+        }
+        next += interval;
+        // don't try to catch up after pause or interval change
+        return next > tu ? next : tu + interval;
+    }
+
     public void setPressureAltOffset(double pressureAltOffset) {
         this.pressureAltOffset = pressureAltOffset;
     }
@@ -113,42 +251,95 @@ public class SimpleSensors implements Sensors {
 
     public void setReset(boolean reset) {
         this.reset = reset;
+        if (reset) {
+            clearDelayLines = true;
+        }
     }
 
     @Override
     public Vector3d getAcc() {
-        Vector3d accBody = new Vector3d(object.getAcceleration());
-        accBody.sub(object.getWorld().getEnvironment().getG());
-        Matrix3d rot = new Matrix3d(object.getRotation());
-        rot.transpose();
-        rot.transform(accBody);
-        accBody = addZeroMeanNoise(accBody, noise_Acc);
-        return accBody;
+        return frame.acc;
     }
 
     @Override
     public Vector3d getGyro() {
-        return addZeroMeanNoise(object.getRotationRate(), noise_Gyo);
+        return frame.gyro;
     }
 
     @Override
     public Vector3d getMag() {
-        Vector3d mag = new Vector3d(object.getWorld().getEnvironment().getMagField(object.getPosition()));
-        Matrix3d rot = new Matrix3d(object.getRotation());
-        rot.transpose();
-        rot.transform(mag);
-        mag.scale(magScale);
-        return addZeroMeanNoise(mag, noise_Mag);
+        return frame.mag;
     }
 
     @Override
     public double getPressureAlt() {
-        return getGlobalPosition().alt + randomNoise(noise_Prs) + pressureAltOffset;
+        return frame.pressureAlt;
     }
 
     @Override
     public double getPressure() {
-        return SimpleEnvironment.alt2baro(getPressureAlt());
+        return frame.pressure;
+    }
+
+    /**
+     * Take one sample of every sensor into the back frame and publish it.
+     */
+    private void sample(long t) {
+        SensorFrame prev = frame;
+        SensorFrame f = backFrame;
+        long tu = t * 1000;
+        f.time = t;
+        f.fieldsUpdated = 0;
+        rotInv.transpose(object.getRotation());
+
+        long next = nextIfDue(tu, imuNext, imuEveryUpdate ? 0 : imuInterval);
+        if (next >= 0) {
+            imuNext = next;
+            f.fieldsUpdated |= SensorFrame.ACC | SensorFrame.GYRO;
+            f.acc.sub(object.getAcceleration(), object.getWorld().getEnvironment().getG());
+            rotInv.transform(f.acc);
+            f.gyro.set(object.getRotationRate());
+            if (imuErrorModel != null) {
+                imuErrorModel.apply(f.acc, f.gyro, imuLastTime >= 0 ? (tu - imuLastTime) * 1e-6 : 0.0);
+            }
+            imuLastTime = tu;
+            addNoise(f.acc, noise_Acc);
+            addNoise(f.gyro, noise_Gyo);
+        } else {
+            f.acc.set(prev.acc);
+            f.gyro.set(prev.gyro);
+        }
+
+        next = nextIfDue(tu, magNext, magInterval);
+        if (next >= 0) {
+            magNext = next;
+            f.fieldsUpdated |= SensorFrame.MAG;
+            f.mag.set(object.getWorld().getEnvironment().getMagField(object.getPosition()));
+            rotInv.transform(f.mag);
+            f.mag.scale(magScale);
+            addNoise(f.mag, noise_Mag);
+        } else {
+            f.mag.set(prev.mag);
+        }
+
+        next = nextIfDue(tu, baroNext, baroInterval);
+        if (next >= 0) {
+            baroNext = next;
+            baroSample[0] = globalPositionCurrent.alt + randomNoise(noise_Prs) + pressureAltOffset;
+            baroSample[1] = SimpleEnvironment.alt2baro(baroSample[0]);
+            baroDelayLine.put(t, baroSample);
+        }
+        if (baroDelayLine.get(t, baroSample)) {
+            f.fieldsUpdated |= SensorFrame.BARO;
+            f.pressureAlt = baroSample[0];
+            f.pressure = baroSample[1];
+        } else {
+            f.pressureAlt = prev.pressureAlt;
+            f.pressure = prev.pressure;
+        }
+
+        backFrame = frame;
+        frame = f;
     }
 
     @Override
@@ -156,9 +347,28 @@ public class SimpleSensors implements Sensors {
         return gps;
     }
 
+    @Override
+    public Rangefinder getRangefinder() {
+        return rangefinder;
+    }
+
+    public void setRangefinder(Rangefinder rangefinder) {
+        this.rangefinder = rangefinder;
+    }
+
     @Override
     public LatLonAlt getGlobalPosition() {
-        return globalPosition;
+        LatLonAlt pos = globalPosition;
+        if (pos == null) {
+            pos = globalPositionCurrent.toLatLonAlt();
+            globalPosition = pos;
+        }
+        return pos;
+    }
+
+    @Override
+    public void getGlobalPosition(MutableLatLonAlt pos) {
+        pos.set(globalPositionCurrent);
     }
 
     public void setGlobalPosition(Vector3d pos, long t) {
@@ -187,7 +397,8 @@ public class SimpleSensors implements Sensors {
         double noiseGpsY = pos.y + this.randomWalkGpsY;
         double noiseGpsZ = pos.z + this.randomWalkGpsZ;
 
-        globalPosition = globalProjector.reproject(new double[] {noiseGpsX, noiseGpsY, noiseGpsZ});
+        globalProjector.reproject(noiseGpsX, noiseGpsY, noiseGpsZ, globalPositionCurrent);
+        globalPosition = null;
 
         this.prevUpdateTime = t;
     }
@@ -206,23 +417,38 @@ public class SimpleSensors implements Sensors {
         }
 
         float eph, epv;
+        if (clearDelayLines) {
+            clearDelayLines = false;
+            gpsDelayLine.clear();
+            baroDelayLine.clear();
+        }
         setGlobalPosition(null, t);
+        sample(t);
+        if (rangefinder != null) {
+            rangefinder.update(t, object, noise);
+        }
 
         // GPS
         if (gpsStartTime > -1 && t > gpsStartTime && gpsNext <= t) {
             gpsNext = t + gpsInterval;
-            gpsUpdated = true;
-            GNSSReport gpsCurrent = new GNSSReport();
             eph = (float)ephFilter.filter(ephLow);
             epv = (float)epvFilter.filter(epvLow);
 
-            gpsCurrent.position = globalPosition;
+            gpsCurrent.position.set(globalPositionCurrent);
             gpsCurrent.eph = eph;
             gpsCurrent.epv = epv;
-            gpsCurrent.velocity = new Vector3d(object.getVelocity());
+            gpsCurrent.velocity.set(object.getVelocity());
             gpsCurrent.fix = eph <= fix3Deph ? 3 : eph <= fix2Deph ? 2 : 0;
             gpsCurrent.time = t * 1000;
-            gps = gpsDelayLine.getOutput(t, gpsCurrent);
+            gpsCurrent.write(gpsSample);
+            gpsDelayLine.put(t, gpsSample);
+        }
+        if (gpsDelayLine.get(t, gpsSample)) {
+            GNSSReport report = gpsBack;
+            report.read(gpsSample);
+            gpsBack = gps != null ? gps : new GNSSReport();
+            gps = report;
+            gpsUpdated = true;
         }
     }
 
@@ -269,21 +495,13 @@ public class SimpleSensors implements Sensors {
     // Utility methods
 
     public double randomNoise(float stdDev) {
-        double x0;
-        double b0, b1;
-
-        do {
-            b0 = Math.random();
-            b1 = Math.random();
-        } while (b0 <= Float.intBitsToFloat(0x1));
-
-        x0 = java.lang.Math.sqrt(-2.0 * java.lang.Math.log(b0)) * java.lang.Math.cos(Math.PI * 2.0 * b1);
-
-        if (java.lang.Double.isInfinite(x0) || java.lang.Double.isNaN(x0)) {
-            x0 = 0.0;
-        }
+        return noise.next() * stdDev;
+    }
 
-        return x0 * stdDev;
+    private void addNoise(Vector3d v, float stdDev) {
+        v.x += randomNoise(stdDev);
+        v.y += randomNoise(stdDev);
+        v.z += randomNoise(stdDev);
     }
 
     public Vector3d addZeroMeanNoise(Vector3d vIn, float stdDev) {
@@ -2,6 +2,7 @@ package me.drton.jmavsim;
 
 import java.io.File;
 import me.drton.jmavlib.geo.LatLonAlt;
+import me.drton.jmavlib.log.FormatErrorException;
 import me.drton.jmavlib.mavlink.MAVLinkSchema;
 import me.drton.jmavsim.Visualizer3D.ViewTypes;
 import me.drton.jmavsim.Visualizer3D.ZoomModes;
@@ -25,13 +26,10 @@ import javax.json.JsonReader;
 import javax.json.JsonObject;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.StringReader;
 import java.lang.Math;
-import java.net.URL;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Scanner;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Executors;
@@ -88,6 +86,16 @@ public class Simulator implements Runnable {
         "models/gimbal.png";  // blank for invisible gimbal
 
     private static String weatherDataFileHandle = null;
+    private static String windFieldFileHandle = null;
+    private static String terrainFileHandle = null;
+    private static String groundTruthFileHandle = null;
+    private static String blackBoxDirectory = null;
+    private static String tlogPrefix = null;
+    private static String replayFileHandle = null;
+    public static double REPLAY_MAX_SPEED = 16.0;  // fastest replay speed factor, also the slowest as 1/x
+    public static long REPLAY_SEEK_STEP = 10000;  // [ms]
+    private static Turbulence.Model turbulenceModel = null;  // disabled by default
+    public static long TURBULENCE_SEED = 0;  // seed of per-vehicle turbulence noise, same seed gives same gusts
 
     // Set global reference point
     // Zurich Irchel Park: 47.397742, 8.545594, 488m
@@ -154,6 +162,11 @@ public class Simulator implements Runnable {
     private World world;
     private ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
     private SystemOutHandler outputHandler;
+    private WeatherFileWatcher weatherWatcher;
+    private GroundTruthRecorder groundTruthRecorder;
+    private BlackBox blackBox;
+    private LogPlayerTarget replayTarget;
+    private MAVLinkCapture mavlinkCapture;
 //  private int simDelayMax = 500;  // Max delay between simulated and real time to skip samples in simulator, in ms
     
     private long simTimeUs = 0;
@@ -199,17 +212,53 @@ public class Simulator implements Runnable {
         
         this.factory = new VehicleFactory(world, SHOW_GUI);
         vehicle = this.factory.vehicleFromFile(drone_config_file);
+
+        // In lockstep time only advances when the autopilot answers HIL_SENSOR with IMU data, so a slower IMU
+        // would stop the simulation
+        if (LOCKSTEP_ENABLED && !DISPLAY_ONLY && vehicle.getSensors() instanceof SimpleSensors) {
+            SimpleSensors sensors = (SimpleSensors) vehicle.getSensors();
+            double simRate = 1e6 / sleepInterval;
+            if (sensors.getImuRate() > 0.0 && sensors.getImuRate() < simRate) {
+                System.out.println(String.format("WARNING: IMU rate %.0f Hz is below simulation rate %.0f Hz, " +
+                                                 "IMU is sampled on every lockstep update", sensors.getImuRate(),
+                                                 simRate));
+            }
+            sensors.setImuEveryUpdate(true);
+        }
             
-        WeatherProvider weatherProvider;
-        if (weatherDataFileHandle != null) {
-            weatherProvider = new WeatherProvider(weatherDataFileHandle, this.vehicle);
-        } else {
+        WeatherSource weatherProvider;
+        if (weatherDataFileHandle == null) {
             weatherProvider = new WeatherProvider(this.vehicle);
+        } else if (TimeSeriesWeatherProvider.isTimeSeriesFile(weatherDataFileHandle)) {
+            // measured wind/temperature replayed by simulation time
+            weatherProvider = new TimeSeriesWeatherProvider(weatherDataFileHandle);
+        } else {
+            WeatherProvider missionWeather = new WeatherProvider(weatherDataFileHandle, this.vehicle);
+            weatherProvider = missionWeather;
+            try {
+                weatherWatcher = new WeatherFileWatcher(weatherDataFileHandle, missionWeather);
+                weatherWatcher.start();
+            } catch (IOException e) {
+                System.err.println("Can't watch weather file, hot reload disabled: " + e.getMessage());
+            }
         }
-        
+
         // Create environment
         SimpleEnvironment simpleEnvironment = new SimpleEnvironment(world, weatherProvider);
         simpleEnvironment.setWindDeviation(new Vector3d(6.0, 8.0, 0.00));
+        if (turbulenceModel != null) {
+            simpleEnvironment.setTurbulence(new Turbulence(turbulenceModel, sleepInterval / 1e6, TURBULENCE_SEED));
+        }
+        if (windFieldFileHandle != null) {
+            WindField windField = new WindField(windFieldFileHandle);
+            System.out.println("Wind field " + windField);
+            simpleEnvironment.setWindField(windField);
+        }
+        if (terrainFileHandle != null) {
+            Terrain terrain = new Terrain(terrainFileHandle);
+            System.out.println("Terrain " + terrain);
+            simpleEnvironment.setTerrain(terrain);
+        }
         world.addObject(simpleEnvironment);
 
         if (SHOW_GUI) {
@@ -270,6 +319,13 @@ public class Simulator implements Runnable {
         // allow HIL and GCS to talk to this port
         connHIL.addNode(autopilotMavLinkPort);
 
+        // Capture traffic of the autopilot link
+        if (tlogPrefix != null) {
+            mavlinkCapture = new MAVLinkCapture(tlogPrefix);
+            connHIL.setCapture(mavlinkCapture);
+            System.out.println("Capturing autopilot link to " + tlogPrefix + "-NNN.tlog");
+        }
+
         // We don't want to spam QGC or SDK with HIL messages.
         String[] skipMessages = {
             "HIL_CONTROLS",
@@ -319,8 +375,9 @@ public class Simulator implements Runnable {
 
         // Set up magnetic field deviations
         // (do this after environment already has a reference point in case we need to look up declination manually)
-        if (DO_MAG_FIELD_LOOKUP) {
-            simpleEnvironment.setMagField(magFieldLookup(referencePos));
+        MagneticFieldGrid magFieldGrid = DO_MAG_FIELD_LOOKUP ? magFieldLookup(referencePos) : null;
+        if (magFieldGrid != null) {
+            simpleEnvironment.setMagFieldGrid(magFieldGrid);
         } else if (DEFAULT_MAG_INCL != 0.0 || DEFAULT_MAG_DECL != 0.0) {
             simpleEnvironment.setMagFieldByInclDecl(DEFAULT_MAG_INCL, DEFAULT_MAG_DECL);
         } else if (DEFAULT_MAG_FIELD.y == 0.0 && (DEFAULT_MAG_FIELD.x != 0.0 ||
@@ -359,6 +416,42 @@ public class Simulator implements Runnable {
         connHIL.addNode(hilSystem);
         world.addObject(vehicle);
 
+        // Collision checks between vehicles, must run after all vehicles have been updated
+        world.addObject(new CollisionDetector(world));
+
+        // Ground truth recorder, after the vehicle to see its state of the current tick
+        if (groundTruthFileHandle != null) {
+            groundTruthRecorder = new GroundTruthRecorder(world, vehicle, groundTruthFileHandle);
+            world.addObject(groundTruthRecorder);
+            System.out.println("Recording ground truth to " + groundTruthFileHandle);
+        }
+
+        // Black box, keeps the last minute of state in memory
+        if (blackBoxDirectory != null) {
+            blackBox = new BlackBox(world, vehicle, new File(blackBoxDirectory),
+                                    (int) (BlackBox.DEFAULT_DURATION * 1e6 / sleepInterval));
+            world.addObject(blackBox);
+            world.setBlackBox(blackBox);
+            connHIL.setBlackBox(blackBox);
+            if (hilSystem instanceof MAVLinkHILSystem) {
+                ((MAVLinkHILSystem) hilSystem).setBlackBox(blackBox);
+            }
+        }
+
+        // Target replaying the position from a log, controlled from the visualizer keys
+        if (replayFileHandle != null) {
+            replayTarget = new LogPlayerTarget(world, 0.3, SHOW_GUI);
+            try {
+                replayTarget.openLog(replayFileHandle);
+            } catch (FormatErrorException e) {
+                throw new IOException("Invalid replay log " + replayFileHandle + ": " + e.getMessage(), e);
+            }
+            replayTarget.setTimeStart(getSimMillis());
+            world.addObject(replayTarget);
+            System.out.println(String.format("Replaying %s, %.1f s", replayFileHandle,
+                                             replayTarget.getLogDuration() / 1000.0));
+        }
+
         if (SHOW_GUI) {
             // Put camera on vehicle with gimbal
             if (USE_GIMBAL) {
@@ -434,6 +527,18 @@ public class Simulator implements Runnable {
                     }
                     executor.shutdown();
 
+                    if (weatherWatcher != null) {
+                        weatherWatcher.close();
+                    }
+
+                    if (groundTruthRecorder != null) {
+                        groundTruthRecorder.close();
+                    }
+
+                    if (mavlinkCapture != null) {
+                        mavlinkCapture.close();
+                    }
+
                 } catch (InterruptedException | IOException e) {
                     e.printStackTrace();
                 }
@@ -456,6 +561,82 @@ public class Simulator implements Runnable {
         paused = !paused;
     }
 
+    public void dumpBlackBox() {
+        if (blackBox != null) {
+            blackBox.trigger("manual");
+        } else {
+            System.out.println("Black box is not enabled, use -blackbox <directory>");
+        }
+    }
+
+    /**
+     * Seek the log replay relative to the current replay time.
+     *
+     * @param delta [ms]
+     */
+    public void seekReplay(final long delta) {
+        controlReplay(new Runnable() {
+            @Override
+            public void run() {
+                replayTarget.seek(replayTarget.getLogTime() + delta);
+            }
+        });
+    }
+
+    /**
+     * Move the log replay over single log samples, e.g. while it holds or runs slowly.
+     */
+    public void stepReplay(final int samples) {
+        controlReplay(new Runnable() {
+            @Override
+            public void run() {
+                replayTarget.step(samples);
+            }
+        });
+    }
+
+    /**
+     * Multiply the log replay speed by factor, keeping the direction.
+     */
+    public void scaleReplaySpeed(final double factor) {
+        controlReplay(new Runnable() {
+            @Override
+            public void run() {
+                double speed = Math.abs(replayTarget.getSpeed()) * factor;
+                speed = Math.max(Math.min(speed, REPLAY_MAX_SPEED), 1.0 / REPLAY_MAX_SPEED);
+                replayTarget.setSpeed(replayTarget.getSpeed() < 0.0 ? -speed : speed);
+            }
+        });
+    }
+
+    public void reverseReplay() {
+        controlReplay(new Runnable() {
+            @Override
+            public void run() {
+                replayTarget.setSpeed(-replayTarget.getSpeed());
+            }
+        });
+    }
+
+    /**
+     * Run replay command on the simulation thread, between world updates.
+     */
+    private void controlReplay(final Runnable command) {
+        if (replayTarget == null) {
+            System.out.println("Log replay is not enabled, use " + REPLAY_STRING);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                command.run();
+                System.out.println(String.format("Replay: %.1f / %.1f s, speed %.3gx",
+                                                 replayTarget.getLogTime() / 1000.0,
+                                                 replayTarget.getLogDuration() / 1000.0, replayTarget.getSpeed()));
+            }
+        });
+    }
+
     private CameraGimbal2D buildGimbal() {
         CameraGimbal2D g = new CameraGimbal2D(world, DEFAULT_GIMBAL_MODEL, SHOW_GUI);
         g.setBaseObject(vehicle);
@@ -506,62 +687,25 @@ public class Simulator implements Runnable {
     }
 
     /**
-     * Look up the magnetic inclination and declination for a given Lat/Lon/Alt using a NOAA Web service.
-     * If successful, returns a valid Vector3d() suitable for setting the magnetic field in the simulated environment.
-     * Also displays the resulting vector so it can be copied to the DEFAULT_MAG_FIELD setting to avoid future lookups.
+     * Build magnetic field grid around the given position from the bundled World Magnetic Model.
+     * Also displays the field in the position so it can be copied to the DEFAULT_MAG_FIELD setting.
      *
      * @param pos {@link me.drton.jmavlib.geo.LatLonAlt} object of reference point.
-     * @return Vector3d The magnetic field variance vector, or Vector3d(0,0,0) if lookup failed.
+     * @return magnetic field grid, or null if the model could not be loaded.
      */
-    public static Vector3d magFieldLookup(LatLonAlt pos) {
-
-        Double decl;
-        Double incl;
-        Vector3d magField = new Vector3d(0.0f, 0.0f, 0.0f);
-        String resp, vals[];
-
-        String reqUrl = "http://www.ngdc.noaa.gov/geomag-web/calculators/calculateIgrfwmm?";
-        reqUrl += "resultFormat=csv&coordinateSystem=M&lat1=" + pos.lat + "&lon1=" + pos.lon + "&elevation="
-                  + pos.alt / 1e3;
-        System.out.println("Attempting magnetic field data lookup from NOAA...");
-        try {
-            InputStream instr = new URL(reqUrl).openStream();
-            Scanner scan = new Scanner(instr, "UTF-8");
-            resp = scan.useDelimiter("\\A").hasNext() ? scan.next() : "";
-            String lines[] = resp.split("\n");
-            vals = lines[lines.length - 1].split(",");
-            scan.close();
-            instr.close();
-        } catch (IOException e) {
-            System.err.println("Error requesting URL: " + reqUrl + "\n");
-            return magField;
+    public static MagneticFieldGrid magFieldLookup(LatLonAlt pos) {
+        WorldMagneticModel model = SimpleEnvironment.getMagneticModel();
+        if (model == null) {
+            return null;
         }
-
-        if (vals.length > 3) {
-            try {
-                decl = Double.valueOf(vals[1]);
-                incl = Double.valueOf(vals[2]);
-            } catch (NumberFormatException e) {
-                System.err.println("Error parsing response: " + resp + "\n");
-                return magField;
-            }
-            System.out.println("Lookup Declination: " + decl + "; Inclination: " + incl);
-            decl = Math.toRadians(decl);
-            incl = Math.toRadians(incl);
-            magField = new Vector3d(Math.cos(incl), 0.0f, Math.sin(incl));
-            Matrix3d declMtx = new Matrix3d();
-            declMtx.rotZ(decl);
-            declMtx.transform(magField);
-            System.out.printf("Result Vectors: Vector3d(%.5f, %.5f, %.5f) \n", magField.x, magField.y,
-                              magField.z);
-            System.out.printf("       Declination: %.5f; Inclination: %.5f \n",
-                              Math.toDegrees(Math.atan2(magField.y, magField.x)), Math.toDegrees(Math.atan2(magField.z,
-                                      magField.x)));
-        } else {
-            System.err.println("Error parsing response: " + resp + "\n");
-        }
-
-        return magField;
+        MagneticFieldGrid grid = new MagneticFieldGrid(model, pos, WorldMagneticModel.currentDecimalYear());
+        Vector3d magField = grid.getOriginField();
+        System.out.printf("Magnetic field (%s %.1f): Vector3d(%.5f, %.5f, %.5f) \n", model.getName(),
+                          model.getEpoch(), magField.x, magField.y, magField.z);
+        System.out.printf("       Declination: %.5f; Inclination: %.5f \n",
+                          Math.toDegrees(Math.atan2(magField.y, magField.x)),
+                          Math.toDegrees(Math.atan2(magField.z, Math.hypot(magField.x, magField.y))));
+        return grid;
     }
 
     public long getSimMillis() {
@@ -605,6 +749,8 @@ public class Simulator implements Runnable {
     public final static String LOCKSTEP_STRING = "-lockstep";
     public final static String DISPLAY_ONLY_STRING = "-disponly";
     public final static String VEHICLE_MODEL_STRING = "-fw or -mc";
+    public final static String TURBULENCE_STRING = "-turbulence [dryden|vonkarman]";
+    public final static String REPLAY_STRING = "-replay <px4 log>";
     public final static String CMD_STRING =
         "java [-Xmx512m] -cp lib/*:out/production/jmavsim.jar me.drton.jmavsim.Simulator";
     public final static String CMD_STRING_JAR = "java [-Xmx512m] -jar jmavsim_run.jar";
@@ -624,6 +770,8 @@ public class Simulator implements Runnable {
                                               REP_STRING + "] [" +
                                               PRINT_INDICATION_STRING + "] [" +
                                               DISPLAY_ONLY_STRING + "] [" +
+                                              TURBULENCE_STRING + "] [" +
+                                              REPLAY_STRING + "] [" +
                                               VEHICLE_MODEL_STRING + "]";
 
     public static void main(String[] args)
@@ -683,7 +831,13 @@ public class Simulator implements Runnable {
                     try {
                         String nextArg = args[i++];
                         File f = new File(nextArg);
-                        if(f.exists() && !f.isDirectory()) { 
+                        if (f.exists() && !f.isDirectory() && !nextArg.toLowerCase().endsWith(".json") &&
+                                !TimeSeriesWeatherProvider.isTimeSeriesFile(nextArg)) {
+                            System.err.println(String.format("Unknown format of weather data file %s, expected " +
+                                                             "mission *.json, time series *.csv or binary " +
+                                                             "time series. Aborting...", nextArg));
+                            return;
+                        } else if(f.exists() && !f.isDirectory()) { 
                             System.out.println(String.format("Weather data file: %s", nextArg));
                             weatherDataFileHandle = nextArg;
                         } else {
@@ -700,6 +854,81 @@ public class Simulator implements Runnable {
                     return;
                 }
             }
+            else if (arg.equalsIgnoreCase("-wind-field")) {
+                if (i < args.length) {
+                    String nextArg = args[i++];
+                    File f = new File(nextArg);
+                    if (f.exists() && !f.isDirectory()) {
+                        windFieldFileHandle = nextArg;
+                    } else {
+                        System.err.println(String.format("Wind field file %s not found! Aborting...", nextArg));
+                        return;
+                    }
+                } else {
+                    System.err.println("When passing -wind-field as argument, a filename is expected afterwards.");
+                    return;
+                }
+            }
+            else if (arg.equalsIgnoreCase("-terrain")) {
+                if (i < args.length) {
+                    String nextArg = args[i++];
+                    File f = new File(nextArg);
+                    if (f.exists() && !f.isDirectory()) {
+                        terrainFileHandle = nextArg;
+                    } else {
+                        System.err.println(String.format("Terrain file %s not found! Aborting...", nextArg));
+                        return;
+                    }
+                } else {
+                    System.err.println("When passing -terrain as argument, a filename is expected afterwards.");
+                    return;
+                }
+            }
+            else if (arg.equalsIgnoreCase("-groundtruth")) {
+                if (i < args.length) {
+                    groundTruthFileHandle = args[i++];
+                } else {
+                    System.err.println("When passing -groundtruth as argument, a filename is expected afterwards.");
+                    return;
+                }
+            }
+            else if (arg.equalsIgnoreCase("-blackbox")) {
+                if (i < args.length) {
+                    String nextArg = args[i++];
+                    File f = new File(nextArg);
+                    if (f.isDirectory()) {
+                        blackBoxDirectory = nextArg;
+                    } else {
+                        System.err.println(String.format("Black box directory %s not found! Aborting...", nextArg));
+                        return;
+                    }
+                } else {
+                    System.err.println("When passing -blackbox as argument, a directory is expected afterwards.");
+                    return;
+                }
+            }
+            else if (arg.equalsIgnoreCase("-replay")) {
+                if (i < args.length) {
+                    String nextArg = args[i++];
+                    if (new File(nextArg).isFile()) {
+                        replayFileHandle = nextArg;
+                    } else {
+                        System.err.println(String.format("Replay log %s not found! Aborting...", nextArg));
+                        return;
+                    }
+                } else {
+                    System.err.println("-replay needs an argument: " + REPLAY_STRING);
+                    return;
+                }
+            }
+            else if (arg.equalsIgnoreCase("-tlog")) {
+                if (i < args.length) {
+                    tlogPrefix = args[i++];
+                } else {
+                    System.err.println("When passing -tlog as argument, a file name prefix is expected afterwards.");
+                    return;
+                }
+            }
             else if (arg.equalsIgnoreCase("-udp")) {
                 PORT = Port.UDP;
                 if (i == args.length) {
@@ -913,6 +1142,19 @@ public class Simulator implements Runnable {
                 SHOW_GUI = false;
             } else if (arg.equals("-lockstep")) {
                 LOCKSTEP_ENABLED = true;
+            } else if (arg.equals("-turbulence")) {
+                turbulenceModel = Turbulence.Model.DRYDEN;
+                if (i < args.length && !args[i].startsWith("-")) {
+                    String nextArg = args[i++];
+                    if (nextArg.equalsIgnoreCase("dryden")) {
+                        turbulenceModel = Turbulence.Model.DRYDEN;
+                    } else if (nextArg.equalsIgnoreCase("vonkarman")) {
+                        turbulenceModel = Turbulence.Model.VON_KARMAN;
+                    } else {
+                        System.err.println("-turbulence model must be one of: " + TURBULENCE_STRING);
+                        return;
+                    }
+                }
             } else if (arg.equals("-debug")) {
                 DEBUG_MODE = true;
             } else if (arg.equalsIgnoreCase("-fw")) {
@@ -966,8 +1208,9 @@ public class Simulator implements Runnable {
         System.out.println("      Specify the MAV type. E.g. 'px4' or 'aq'. Default is: " + autopilotType +
                            "");
         System.out.println(MAG_STRING);
-        System.out.println("      Attempt automatic magnetic field inclination/declination lookup");
-        System.out.println("      for starting global position via NOAA Web service.");
+        System.out.println("      Use position dependent magnetic field around the starting global position");
+        System.out.println("      from the bundled World Magnetic Model (" +
+                           WorldMagneticModel.DEFAULT_COEFFICIENTS_FILE + ").");
         System.out.println(QGC_STRING);
         System.out.println("      Forward message packets to QGC via UDP at " + qgcIpAddress + ":" +
                            qgcPeerPort + "");
@@ -996,6 +1239,12 @@ public class Simulator implements Runnable {
         System.out.println("      Disable the simulation engine.");
         System.out.println("      Display the autopilot states from HIL_STATE_QUATERNION.");
         System.out.println("      Compatible with simulation-in-hardware.");
+        System.out.println(TURBULENCE_STRING);
+        System.out.println("      Add per-vehicle Dryden (default) or von Karman turbulence to the wind,");
+        System.out.println("      gust intensity scales with the mean wind speed. Disabled by default.");
+        System.out.println(REPLAY_STRING);
+        System.out.println("      Show the position logged in a PX4 log as a target, replay is controlled");
+        System.out.println("      with the replay keys below.");
         System.out.println(VEHICLE_MODEL_STRING);
         System.out.println("      Choose the vehicle model to be displayed.");
         System.out.println("      -mc will display a multicopter, this is the default vehicle.");
@@ -1026,6 +1275,7 @@ public class Simulator implements Runnable {
         System.out.println("   D   - Toggle sensor parameter control sidebar.");
         System.out.println("   F1  - Show this key commands reference.");
         System.out.println("   P   - Pause simulation.");
+        System.out.println("   B   - Dump black box.");
         System.out.println("  ESC  - Exit jMAVSim.");
         System.out.println(" SPACE - Reset vehicle & view to start position.");
         System.out.println("");
@@ -1049,6 +1299,12 @@ public class Simulator implements Runnable {
         System.out.println("");
         System.out.println(" CTRL+ Manipulate - Rotate/move/increase at a higher/faster rate.");
         System.out.println("");
+        System.out.println("Log replay (" + REPLAY_STRING + "):");
+        System.out.println("   ,/.   - Seek " + REPLAY_SEEK_STEP / 1000 + " s back/forward.");
+        System.out.println("   [/]   - Step one log sample back/forward.");
+        System.out.println("   J/L   - Halve/double replay speed.");
+        System.out.println("    K    - Reverse replay direction.");
+        System.out.println("");
     }
 
 }
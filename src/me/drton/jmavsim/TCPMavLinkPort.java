@@ -22,6 +22,8 @@ public class TCPMavLinkPort extends MAVLinkPort {
     private ServerSocketChannel serverSocketChannel = null;
     private SocketChannel socketChannel = null;
     private MAVLinkStream stream;
+    private MAVLinkFrameReader reader;
+    private ByteChannel tapChannel;
     private boolean debug = false;
 
     private boolean monitorMessage = false;
@@ -59,8 +61,11 @@ public class TCPMavLinkPort extends MAVLinkPort {
         serverSocketChannel = ServerSocketChannel.open();
         serverSocketChannel.socket().bind(inetSocketAddress);
         accept();
-        stream = new MAVLinkStream(schema, socketChannel);
+        tapChannel = tap(socketChannel);
+        stream = new MAVLinkStream(schema, tapChannel);
         stream.setDebug(true);
+        reader = new MAVLinkFrameReader(tapChannel);
+        reader.setDebug(debug);
     }
 
     private void accept() {
@@ -123,6 +128,27 @@ public class TCPMavLinkPort extends MAVLinkPort {
         }
     }
 
+    @Override
+    public void handleFrame(ByteBuffer frame) {
+        if (isOpened() && tapChannel != null) {
+            int position = frame.position();
+            int msgId = MAVLinkFrame.getMsgId(frame);
+            try {
+                while (frame.hasRemaining()) {
+                    tapChannel.write(frame);
+                }
+                IndicateReceivedMessage(msgId);
+            } catch (IOException ignored) {
+                // This can happen when px4 shuts down and the connection is dropped.
+                if (debug) {
+                    System.out.println("got exception: " + ignored);
+                }
+                reset();
+            }
+            frame.position(position);
+        }
+    }
+
     private void IndicateReceivedMessage(int type) {
         if (monitorMessage) {
             boolean shouldPrint = false;
@@ -159,16 +185,17 @@ public class TCPMavLinkPort extends MAVLinkPort {
     public void update(long t, boolean paused) {
         while (isOpened()) {
             try {
-                MAVLinkMessage msg = stream.read();
-                if (msg == null) {
+                // frames are parsed in place and passed on raw, only nodes handling the message decode it
+                ByteBuffer frame = reader.read();
+                if (frame == null) {
                     break;
                 }
+                int msgId = MAVLinkFrame.getMsgId(frame);
                 if (debug) {
-                    System.out.println("[update] msg.name: " + msg.getMsgName() + ", type: " + msg.getMsgType());
+                    System.out.println("[update] msgId: " + msgId);
                 }
-                IndicateReceivedMessage(msg.getMsgType());
-                msg.forwarded = true;
-                sendMessage(msg);
+                IndicateReceivedMessage(msgId);
+                sendFrame(frame);
             } catch (IOException ignored) {
                 // This can happen when px4 shuts down and the connection is dropped.
                 if (debug) {
@@ -0,0 +1,114 @@
+package me.drton.jmavsim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential reader of raw frames of a telemetry log (.tlog): each MAVLink v1/v2 frame prefixed with big endian
+ * UNIX time [us], as written by MAVLinkCapture and ground stations.
+ * <p/>
+ * Payloads are decoded by the caller: next() copies the payload into a zero filled array, so MAVLink v2 frames
+ * with truncated trailing zeros read like complete ones.
+ */
+public class TLogReader {
+    private static final int STX_V1 = 0xFE;
+    private static final int STX_V2 = 0xFD;
+
+    private final ByteBuffer buffer;
+    private final byte[] payload = new byte[255];
+    private final ByteBuffer payloadBuffer = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+    private long timestamp;
+    private int msgId;
+    private int systemId;
+    private int payloadLength;
+
+    /**
+     * @throws IOException if the file can't be read
+     */
+    public TLogReader(String fileName) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(fileName), "r");
+                FileChannel channel = file.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Telemetry log larger than 2 GB is not supported: " + fileName);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Move to the next frame, bytes that don't form a frame are skipped.
+     *
+     * @return false at the end of the file
+     */
+    public boolean next() {
+        while (buffer.remaining() >= 8 + 8) {
+            int start = buffer.position();
+            long t = buffer.getLong(start);
+            int stx = buffer.get(start + 8) & 0xFF;
+            int len = buffer.get(start + 9) & 0xFF;
+            int header;
+            int frameLength;
+            if (stx == STX_V1) {
+                header = 6;
+                frameLength = len + 8;
+            } else if (stx == STX_V2 && buffer.remaining() >= 8 + 3) {
+                header = 10;
+                frameLength = len + 12 + ((buffer.get(start + 10) & 0x01) != 0 ? 13 : 0);
+            } else {
+                buffer.position(start + 1);
+                continue;
+            }
+            if (buffer.remaining() < 8 + frameLength) {
+                break;
+            }
+            int p = start + 8;
+            timestamp = t;
+            if (stx == STX_V1) {
+                systemId = buffer.get(p + 3) & 0xFF;
+                msgId = buffer.get(p + 5) & 0xFF;
+            } else {
+                systemId = buffer.get(p + 5) & 0xFF;
+                msgId = (buffer.get(p + 7) & 0xFF) | (buffer.get(p + 8) & 0xFF) << 8 |
+                        (buffer.get(p + 9) & 0xFF) << 16;
+            }
+            payloadLength = len;
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = i < len ? buffer.get(p + header + i) : 0;
+            }
+            buffer.position(start + 8 + frameLength);
+            return true;
+        }
+        buffer.position(buffer.limit());
+        return false;
+    }
+
+    /**
+     * @return UNIX time of the current frame [us]
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getMsgId() {
+        return msgId;
+    }
+
+    public int getSystemId() {
+        return systemId;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return payload of the current frame, little endian, zero filled to 255 bytes
+     */
+    public ByteBuffer getPayload() {
+        return payloadBuffer;
+    }
+}
@@ -0,0 +1,147 @@
+package me.drton.jmavsim;
+
+import me.drton.jmavlib.geo.LatLonAlt;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Projection between local NED frame and geodetic coordinates, azimuthal equidistant like GlobalPositionProjector.
+ * <p/>
+ * Sine and cosine of the anchor latitude are cached and results are written into caller provided holders, so
+ * projections don't allocate. When a projected point gets farther than the re-anchor distance from the anchor, the
+ * anchor moves to that point: the projection stays a short range one and its distortion is bounded on long flights,
+ * while local positions keep their meaning because the anchor remembers its own local position.
+ */
+public class TangentPlaneProjector {
+    public static final double EARTH_RADIUS = 6371000.0;  // [m]
+    public static final double DEFAULT_REANCHOR_DISTANCE = 20000.0;  // [m]
+
+    private boolean inited = false;
+    private double reanchorDistanceSq = DEFAULT_REANCHOR_DISTANCE * DEFAULT_REANCHOR_DISTANCE;
+    private int reanchorCount = 0;
+    // anchor in geodetic coordinates [rad], [m] and its local position [m]
+    private double anchorLat;
+    private double anchorLon;
+    private double anchorAlt;
+    private double sinAnchorLat;
+    private double cosAnchorLat;
+    private double anchorX;
+    private double anchorY;
+    private double anchorZ;
+    private final MutableLatLonAlt tmp = new MutableLatLonAlt();
+
+    public TangentPlaneProjector() {
+    }
+
+    public TangentPlaneProjector(LatLonAlt reference) {
+        init(reference);
+    }
+
+    /**
+     * Set reference point, it becomes the origin of the local frame.
+     */
+    public void init(LatLonAlt reference) {
+        init(reference.lat, reference.lon, reference.alt);
+    }
+
+    public void init(double lat, double lon, double alt) {
+        setAnchor(lat, lon, alt, 0.0, 0.0, 0.0);
+        reanchorCount = 0;
+        inited = true;
+    }
+
+    public boolean isInited() {
+        return inited;
+    }
+
+    /**
+     * Set distance from the anchor that triggers re-anchoring, infinity to keep the reference point.
+     */
+    public void setReanchorDistance(double distance) {
+        reanchorDistanceSq = distance * distance;
+    }
+
+    public int getReanchorCount() {
+        return reanchorCount;
+    }
+
+    private void setAnchor(double lat, double lon, double alt, double x, double y, double z) {
+        anchorLat = Math.toRadians(lat);
+        anchorLon = Math.toRadians(lon);
+        anchorAlt = alt;
+        sinAnchorLat = Math.sin(anchorLat);
+        cosAnchorLat = Math.cos(anchorLat);
+        anchorX = x;
+        anchorY = y;
+        anchorZ = z;
+    }
+
+    /**
+     * Local position to geodetic.
+     *
+     * @param x      north [m]
+     * @param y      east [m]
+     * @param z      down [m]
+     * @param result geodetic position
+     */
+    public void reproject(double x, double y, double z, MutableLatLonAlt result) {
+        double dx = x - anchorX;
+        double dy = y - anchorY;
+        if (dx * dx + dy * dy > reanchorDistanceSq) {
+            reprojectFromAnchor(dx, dy, z, tmp);
+            setAnchor(tmp.lat, tmp.lon, tmp.alt, x, y, z);
+            reanchorCount++;
+            result.set(tmp);
+            return;
+        }
+        reprojectFromAnchor(dx, dy, z, result);
+    }
+
+    public void reproject(Vector3d pos, MutableLatLonAlt result) {
+        reproject(pos.x, pos.y, pos.z, result);
+    }
+
+    private void reprojectFromAnchor(double dx, double dy, double z, MutableLatLonAlt result) {
+        double xRad = dx / EARTH_RADIUS;
+        double yRad = dy / EARTH_RADIUS;
+        double c = Math.sqrt(xRad * xRad + yRad * yRad);
+        double lat;
+        double lon;
+        if (c != 0.0) {
+            double sinC = Math.sin(c);
+            double cosC = Math.cos(c);
+            lat = Math.asin(cosC * sinAnchorLat + (xRad * sinC * cosAnchorLat) / c);
+            lon = anchorLon + Math.atan2(yRad * sinC, c * cosAnchorLat * cosC - xRad * sinAnchorLat * sinC);
+        } else {
+            lat = anchorLat;
+            lon = anchorLon;
+        }
+        result.set(Math.toDegrees(lat), Math.toDegrees(lon), anchorAlt - (z - anchorZ));
+    }
+
+    /**
+     * Geodetic position to local.
+     *
+     * @param lat    latitude [deg]
+     * @param lon    longitude [deg]
+     * @param alt    altitude [m]
+     * @param result local position in NED frame [m]
+     */
+    public void project(double lat, double lon, double alt, Vector3d result) {
+        double latRad = Math.toRadians(lat);
+        double dLon = Math.toRadians(lon) - anchorLon;
+        double sinLat = Math.sin(latRad);
+        double cosLat = Math.cos(latRad);
+        double cosDLon = Math.cos(dLon);
+        double arg = sinAnchorLat * sinLat + cosAnchorLat * cosLat * cosDLon;
+        double c = Math.acos(arg > 1.0 ? 1.0 : (arg < -1.0 ? -1.0 : arg));
+        double k = c == 0.0 ? 1.0 : c / Math.sin(c);
+        result.set(anchorX + k * (cosAnchorLat * sinLat - sinAnchorLat * cosLat * cosDLon) * EARTH_RADIUS,
+                   anchorY + k * cosLat * Math.sin(dLon) * EARTH_RADIUS,
+                   anchorZ + anchorAlt - alt);
+    }
+
+    public void project(MutableLatLonAlt pos, Vector3d result) {
+        project(pos.lat, pos.lon, pos.alt, result);
+    }
+}
@@ -1,17 +1,15 @@
 package me.drton.jmavsim;
 
 import com.sun.j3d.utils.geometry.Sphere;
-import me.drton.jmavlib.geo.GlobalPositionProjector;
-import me.drton.jmavlib.geo.LatLonAlt;
 
-import javax.vecmath.Vector3d;
 import java.io.FileNotFoundException;
 
 /**
  * User: ton Date: 01.02.14 Time: 22:12
  */
 public abstract class Target extends KinematicObject {
-    private GlobalPositionProjector gpsProjector = new GlobalPositionProjector();
+    private TangentPlaneProjector gpsProjector = new TangentPlaneProjector();
+    private final GNSSReport gps = new GNSSReport();
 
     public Target(World world, double size, boolean showGui) throws FileNotFoundException {
         super(world, showGui);
@@ -20,14 +18,14 @@ public abstract class Target extends KinematicObject {
         gpsProjector.init(world.getGlobalReference());
     }
 
+    /**
+     * @return GPS report of the current position, the same object is reused and updated on every call
+     */
     public GNSSReport getGlobalPosition() {
-        Vector3d pos = getPosition();
-        LatLonAlt latLonAlt = gpsProjector.reproject(new double[] {pos.x, pos.y, pos.z});
-        GNSSReport gps = new GNSSReport();
-        gps.position = latLonAlt;
+        gpsProjector.reproject(getPosition(), gps.position);
         gps.eph = 1.0f;
         gps.epv = 1.0f;
-        gps.velocity = getVelocity();
+        gps.velocity.set(getVelocity());
         return gps;
     }
 }
@@ -0,0 +1,395 @@
+package me.drton.jmavsim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Terrain height map on a regular grid, bilinear between grid points and flat (height 0) outside of the grid.
+ * <p/>
+ * For ray queries a min/max height pyramid is built over the grid cells: each level halves the resolution and
+ * stores the height range of its 2x2 children. A ray descends only into nodes whose max height is above the lowest
+ * point of the ray inside the node, nearest node first, so a query visits O(log n) nodes for typical
+ * terrain. In the leaf cell the ray is intersected exactly with the bilinear surface.
+ * <p/>
+ * Heights are measured up from the environment base ground level. File format, big endian:
+ * <pre>
+ * int   magic "JMTR", int version (1)
+ * int   nx, ny               number of grid points, at least 2 each
+ * double x0, y0              grid origin in NED frame [m]
+ * double dx, dy              grid spacing [m]
+ * float  height[ny][nx]      [m]
+ * </pre>
+ */
+public class Terrain {
+    public static final int MAGIC = 0x4A4D5452;  // "JMTR"
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 4 + 8 * 4;
+
+    private final String fileName;
+    private final int nx, ny;
+    private final double x0, y0, dx, dy;
+    private final float[] heights;  // [y][x]
+    // pyramid levels, level 0 has one node per grid cell
+    private final int[] levelWidth;
+    private final int[] levelHeight;
+    private final float[][] levelMin;
+    private final float[][] levelMax;
+    private final Ray ray = new Ray();
+
+    /**
+     * Load terrain file.
+     *
+     * @throws IOException if the file can't be read or has invalid format
+     */
+    public Terrain(String fileName) throws IOException {
+        this.fileName = fileName;
+        try (RandomAccessFile file = new RandomAccessFile(new File(fileName), "r");
+                FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Terrain file too short: " + fileName);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Terrain file larger than 2 GB is not supported: " + fileName);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Unknown terrain format: " + fileName);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported terrain version " + version + ": " + fileName);
+            }
+            nx = buffer.getInt();
+            ny = buffer.getInt();
+            x0 = buffer.getDouble();
+            y0 = buffer.getDouble();
+            dx = buffer.getDouble();
+            dy = buffer.getDouble();
+            if (nx < 2 || ny < 2) {
+                throw new IOException("Invalid terrain dimensions " + nx + "x" + ny);
+            }
+            if (!(dx > 0.0 && dy > 0.0)) {
+                throw new IOException("Terrain spacing must be positive");
+            }
+            if (HEADER_SIZE + 4L * nx * ny != size) {
+                throw new IOException("Terrain size mismatch, expected " + (HEADER_SIZE + 4L * nx * ny) +
+                                      " bytes, got " + size);
+            }
+            heights = new float[nx * ny];
+            buffer.asFloatBuffer().get(heights);
+        }
+
+        // build pyramid
+        int levels = 1;
+        for (int w = nx - 1, h = ny - 1; w > 1 || h > 1; w = (w + 1) / 2, h = (h + 1) / 2) {
+            levels++;
+        }
+        levelWidth = new int[levels];
+        levelHeight = new int[levels];
+        levelMin = new float[levels][];
+        levelMax = new float[levels][];
+        int w = nx - 1;
+        int h = ny - 1;
+        levelWidth[0] = w;
+        levelHeight[0] = h;
+        levelMin[0] = new float[w * h];
+        levelMax[0] = new float[w * h];
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                float a = heights[j * nx + i];
+                float b = heights[j * nx + i + 1];
+                float c = heights[(j + 1) * nx + i];
+                float d = heights[(j + 1) * nx + i + 1];
+                levelMin[0][j * w + i] = Math.min(Math.min(a, b), Math.min(c, d));
+                levelMax[0][j * w + i] = Math.max(Math.max(a, b), Math.max(c, d));
+            }
+        }
+        for (int l = 1; l < levels; l++) {
+            int pw = w;
+            int ph = h;
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+            levelWidth[l] = w;
+            levelHeight[l] = h;
+            float[] mins = new float[w * h];
+            float[] maxs = new float[w * h];
+            float[] pmins = levelMin[l - 1];
+            float[] pmaxs = levelMax[l - 1];
+            for (int j = 0; j < h; j++) {
+                for (int i = 0; i < w; i++) {
+                    float mn = Float.POSITIVE_INFINITY;
+                    float mx = Float.NEGATIVE_INFINITY;
+                    for (int k = 0; k < 4; k++) {
+                        int ci = 2 * i + (k & 1);
+                        int cj = 2 * j + (k >> 1);
+                        if (ci < pw && cj < ph) {
+                            mn = Math.min(mn, pmins[cj * pw + ci]);
+                            mx = Math.max(mx, pmaxs[cj * pw + ci]);
+                        }
+                    }
+                    mins[j * w + i] = mn;
+                    maxs[j * w + i] = mx;
+                }
+            }
+            levelMin[l] = mins;
+            levelMax[l] = maxs;
+        }
+    }
+
+    /**
+     * Get terrain height.
+     *
+     * @param x north [m]
+     * @param y east [m]
+     * @return height above base ground level [m]
+     */
+    public double getHeight(double x, double y) {
+        double gx = (x - x0) / dx;
+        double gy = (y - y0) / dy;
+        if (!(gx >= 0.0 && gy >= 0.0 && gx <= nx - 1 && gy <= ny - 1)) {
+            return 0.0;
+        }
+        int i = Math.min((int) gx, nx - 2);
+        int j = Math.min((int) gy, ny - 2);
+        double fx = gx - i;
+        double fy = gy - j;
+        int k = j * nx + i;
+        return (1.0 - fy) * ((1.0 - fx) * heights[k] + fx * heights[k + 1]) +
+               fy * ((1.0 - fx) * heights[k + nx] + fx * heights[k + nx + 1]);
+    }
+
+    /**
+     * Intersect ray with the terrain.
+     *
+     * @param x        ray origin north [m]
+     * @param y        ray origin east [m]
+     * @param height   ray origin height above base ground level [m]
+     * @param dirX     ray direction north, direction must be normalized
+     * @param dirY     ray direction east
+     * @param dirUp    ray direction up
+     * @param maxRange max distance [m]
+     * @return distance to the terrain [m], infinity if there is no intersection closer than maxRange
+     */
+    public synchronized double rayCast(double x, double y, double height, double dirX, double dirY, double dirUp,
+                                       double maxRange) {
+        ray.gx = (x - x0) / dx;
+        ray.gy = (y - y0) / dy;
+        ray.dgx = dirX / dx;
+        ray.dgy = dirY / dy;
+        ray.u = height;
+        ray.du = dirUp;
+        // part of the ray over the grid
+        double te = 0.0;
+        double tx = maxRange;
+        if (ray.dgx != 0.0) {
+            double ta = -ray.gx / ray.dgx;
+            double tb = (nx - 1 - ray.gx) / ray.dgx;
+            te = Math.max(te, Math.min(ta, tb));
+            tx = Math.min(tx, Math.max(ta, tb));
+        } else if (ray.gx < 0.0 || ray.gx > nx - 1) {
+            tx = -1.0;
+        }
+        if (ray.dgy != 0.0) {
+            double ta = -ray.gy / ray.dgy;
+            double tb = (ny - 1 - ray.gy) / ray.dgy;
+            te = Math.max(te, Math.min(ta, tb));
+            tx = Math.min(tx, Math.max(ta, tb));
+        } else if (ray.gy < 0.0 || ray.gy > ny - 1) {
+            tx = -1.0;
+        }
+        double hit;
+        if (te > tx) {
+            hit = flatHit(0.0, maxRange);
+        } else {
+            // flat ground before the grid, terrain, flat ground after the grid
+            hit = te > 0.0 ? flatHit(0.0, te) : Double.POSITIVE_INFINITY;
+            if (hit == Double.POSITIVE_INFINITY) {
+                int top = levelWidth.length - 1;
+                hit = castNode(ray, top, 0, 0, te, tx);
+            }
+            if (hit == Double.POSITIVE_INFINITY && tx < maxRange) {
+                hit = flatHit(tx, maxRange);
+            }
+        }
+        return hit <= maxRange ? hit : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * First intersection with the flat ground (height 0) for t in [t0, t1].
+     */
+    private double flatHit(double t0, double t1) {
+        if (ray.u + ray.du * t0 <= 0.0) {
+            return t0;
+        }
+        if (ray.du < 0.0) {
+            double t = -ray.u / ray.du;
+            if (t <= t1) {
+                return t;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    private static final class Ray {
+        double gx, gy;    // origin in grid coordinates
+        double dgx, dgy;  // grid coordinates change per meter
+        double u, du;     // height and its change per meter
+        // scratch for ordering children, per level
+        final double[][] childEnter = new double[32][4];
+        final int[][] childOrder = new int[32][4];
+    }
+
+    /**
+     * @return distance of the first hit in the node, infinity if none
+     */
+    private double castNode(Ray ray, int level, int i, int j, double tMin, double tMax) {
+        int scale = 1 << level;
+        double bx0 = i * scale;
+        double by0 = j * scale;
+        double bx1 = Math.min((i + 1) * scale, nx - 1);
+        double by1 = Math.min((j + 1) * scale, ny - 1);
+        // slab test in grid coordinates
+        double t0 = tMin;
+        double t1 = tMax;
+        if (ray.dgx != 0.0) {
+            double ta = (bx0 - ray.gx) / ray.dgx;
+            double tb = (bx1 - ray.gx) / ray.dgx;
+            t0 = Math.max(t0, Math.min(ta, tb));
+            t1 = Math.min(t1, Math.max(ta, tb));
+        } else if (ray.gx < bx0 || ray.gx > bx1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (ray.dgy != 0.0) {
+            double ta = (by0 - ray.gy) / ray.dgy;
+            double tb = (by1 - ray.gy) / ray.dgy;
+            t0 = Math.max(t0, Math.min(ta, tb));
+            t1 = Math.min(t1, Math.max(ta, tb));
+        } else if (ray.gy < by0 || ray.gy > by1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (t0 > t1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        // ray entirely above the node can't hit it, ray below the node hits it where it enters
+        double u0 = ray.u + ray.du * t0;
+        double u1 = ray.u + ray.du * t1;
+        int w = levelWidth[level];
+        if (Math.min(u0, u1) > levelMax[level][j * w + i]) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (u0 < levelMin[level][j * w + i]) {
+            return t0;
+        }
+        if (level == 0) {
+            return castCell(ray, i, j, t0, t1);
+        }
+
+        // children in the order the ray enters them
+        int cl = level - 1;
+        int cw = levelWidth[cl];
+        int ch = levelHeight[cl];
+        double[] enter = ray.childEnter[level];
+        int[] order = ray.childOrder[level];
+        int n = 0;
+        for (int k = 0; k < 4; k++) {
+            int ci = 2 * i + (k & 1);
+            int cj = 2 * j + (k >> 1);
+            if (ci >= cw || cj >= ch) {
+                continue;
+            }
+            double e = childEnter(ray, cl, ci, cj, t0);
+            int p = n++;
+            while (p > 0 && enter[p - 1] > e) {
+                enter[p] = enter[p - 1];
+                order[p] = order[p - 1];
+                p--;
+            }
+            enter[p] = e;
+            order[p] = k;
+        }
+        for (int p = 0; p < n; p++) {
+            if (enter[p] > t1) {
+                break;
+            }
+            int k = order[p];
+            double hit = castNode(ray, cl, 2 * i + (k & 1), 2 * j + (k >> 1), t0, t1);
+            if (hit != Double.POSITIVE_INFINITY) {
+                return hit;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    private double childEnter(Ray ray, int level, int i, int j, double tMin) {
+        int scale = 1 << level;
+        double t = tMin;
+        if (ray.dgx != 0.0) {
+            double ta = (i * scale - ray.gx) / ray.dgx;
+            double tb = (Math.min((i + 1) * scale, nx - 1) - ray.gx) / ray.dgx;
+            t = Math.max(t, Math.min(ta, tb));
+        }
+        if (ray.dgy != 0.0) {
+            double ta = (j * scale - ray.gy) / ray.dgy;
+            double tb = (Math.min((j + 1) * scale, ny - 1) - ray.gy) / ray.dgy;
+            t = Math.max(t, Math.min(ta, tb));
+        }
+        return t;
+    }
+
+    /**
+     * Exact intersection with the bilinear surface of one cell for t in [t0, t1].
+     */
+    private double castCell(Ray ray, int i, int j, double t0, double t1) {
+        int k = j * nx + i;
+        double h00 = heights[k];
+        double h10 = heights[k + 1];
+        double h01 = heights[k + nx];
+        double h11 = heights[k + nx + 1];
+        double ex = h10 - h00;
+        double ey = h01 - h00;
+        double exy = h00 - h10 - h01 + h11;
+        // cell coordinates along the ray: fx = ax + bx * t, fy = ay + by * t
+        double ax = ray.gx - i;
+        double ay = ray.gy - j;
+        double bx = ray.dgx;
+        double by = ray.dgy;
+        // ray height above the surface: a * t^2 + b * t + c
+        double a = -exy * bx * by;
+        double b = ray.du - ex * bx - ey * by - exy * (ax * by + ay * bx);
+        double c = ray.u - h00 - ex * ax - ey * ay - exy * ax * ay;
+        if ((a * t0 + b) * t0 + c <= 0.0) {
+            return t0;
+        }
+        double root = Double.POSITIVE_INFINITY;
+        if (Math.abs(a) < 1e-12) {
+            if (b != 0.0) {
+                root = -c / b;
+            }
+        } else {
+            double disc = b * b - 4.0 * a * c;
+            if (disc >= 0.0) {
+                // numerically stable roots
+                double q = -0.5 * (b + Math.copySign(Math.sqrt(disc), b));
+                double r0 = q / a;
+                double r1 = q != 0.0 ? c / q : r0;
+                double lo = Math.min(r0, r1);
+                double hi = Math.max(r0, r1);
+                root = lo >= t0 ? lo : hi;
+            }
+        }
+        return root >= t0 && root <= t1 ? root : Double.POSITIVE_INFINITY;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %dx%d points, %.1fx%.1f m", fileName, nx, ny, (nx - 1) * dx, (ny - 1) * dy);
+    }
+}
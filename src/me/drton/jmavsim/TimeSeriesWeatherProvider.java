@@ -0,0 +1,420 @@
+package me.drton.jmavsim;
+
+import me.drton.jmavlib.geo.LatLonAlt;
+
+import javax.vecmath.Vector3d;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Weather source replaying measured wind and temperature time series by simulation time.
+ * <p/>
+ * The file is streamed: only a fixed size read-ahead window of samples is kept in primitive ring buffers, so memory
+ * use doesn't depend on file length. The file is read by a loader thread into preallocated chunks of half the
+ * window, the simulation thread only copies a loaded chunk into the window when half of it has been consumed and
+ * never waits for the disk.
+ * Wind and temperature are interpolated linearly between the two samples around current time. Before the first
+ * and after the last sample the nearest sample is held. Time of the series is relative to the first weather
+ * update, i.e. the first sample is played at simulation start.
+ * <p/>
+ * Supported formats:
+ * <ul>
+ * <li>CSV (*.csv): "time, wind_n, wind_e, wind_d[, temperature]" per line, time in [s], wind in [m/s] NED,
+ * temperature in [C]. Empty lines and lines starting with '#' are skipped, the first other line may be a
+ * header.</li>
+ * <li>Binary: "JMWX" magic, int version (1), then records of 5 doubles (time, wind_n, wind_e, wind_d,
+ * temperature), big endian as written by DataOutputStream. Temperature may be NaN if not measured.</li>
+ * </ul>
+ */
+public class TimeSeriesWeatherProvider implements WeatherSource {
+    public static final int BINARY_MAGIC = 0x4A4D5758;  // "JMWX"
+    public static final int BINARY_VERSION = 1;
+    private static final int DEFAULT_WINDOW_SIZE = 1024;  // samples, must be power of 2
+    private static final double STANDARD_TEMPERATURE = 25.0;
+    private static final String LINE = "================";
+    private static final int CHUNKS = 3;  // chunks the loader may read ahead, including the one being filled
+
+    private final String fileName;
+    private final SampleReader reader;
+    private final ArrayBlockingQueue<Chunk> loadedChunks = new ArrayBlockingQueue<Chunk>(CHUNKS);
+    private final ArrayBlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<Chunk>(CHUNKS);
+    private boolean eof = false;
+
+    // read-ahead window, ring buffers indexed by (head + i) & mask
+    private final double[] sampleTime;
+    private final double[] sampleWindX;
+    private final double[] sampleWindY;
+    private final double[] sampleWindZ;
+    private final double[] sampleTemp;
+    private final int mask;
+    private int head = 0;
+    private int count = 0;
+    private double lastReadTime = Double.NEGATIVE_INFINITY;  // owned by the loader thread
+    private volatile long samplesRead = 0;
+
+    private long startTime = -1;  // [ms]
+    private double currentTime = 0.0;  // [s] relative to startTime
+    private final Vector3d currentWind = new Vector3d();
+    private double currentTemp = STANDARD_TEMPERATURE;
+    private int currentSeq = -1;
+
+    /**
+     * Open weather time series file, format is selected by extension (*.csv) or binary magic.
+     *
+     * @throws IOException if the file can't be opened or has unknown format
+     */
+    public TimeSeriesWeatherProvider(String fileName) throws IOException {
+        this(fileName, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize number of samples kept in memory, rounded up to power of 2
+     */
+    public TimeSeriesWeatherProvider(String fileName, int windowSize) throws IOException {
+        this.fileName = fileName;
+        int size = 4;
+        while (size < windowSize) {
+            size <<= 1;
+        }
+        sampleTime = new double[size];
+        sampleWindX = new double[size];
+        sampleWindY = new double[size];
+        sampleWindZ = new double[size];
+        sampleTemp = new double[size];
+        mask = size - 1;
+        if (fileName.toLowerCase().endsWith(".csv")) {
+            reader = new CSVSampleReader(fileName);
+        } else {
+            reader = new BinarySampleReader(fileName);
+        }
+        for (int i = 0; i < CHUNKS; i++) {
+            freeChunks.add(new Chunk(size / 2));
+        }
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loadLoop();
+            }
+        }, "WeatherTimeSeriesLoader");
+        loader.setDaemon(true);
+        loader.start();
+        // wait for the initial window, the simulation doesn't run yet
+        while (!eof && count <= (mask + 1) / 2) {
+            try {
+                appendChunk(loadedChunks.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + fileName);
+            }
+        }
+        if (count == 0) {
+            System.out.println("Weather time series " + fileName + " contains no samples");
+        }
+    }
+
+    /**
+     * Check if file should be handled by this source rather than the mission based WeatherProvider: *.csv files
+     * and files starting with the binary magic, whatever their extension.
+     */
+    public static boolean isTimeSeriesFile(String fileName) {
+        if (fileName.toLowerCase().endsWith(".csv")) {
+            return true;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(fileName));
+            return in.readInt() == BINARY_MAGIC;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public void updateWeather(long t) {
+        if (startTime < 0) {
+            startTime = t;
+        }
+        currentTime = (t - startTime) / 1000.0;
+        advance(currentTime);
+
+        if (count == 0) {
+            currentWind.set(0.0, 0.0, 0.0);
+            currentTemp = STANDARD_TEMPERATURE;
+            return;
+        }
+        int i0 = head;
+        if (count == 1 || currentTime <= sampleTime[i0]) {
+            setSample(i0, i0, 0.0);
+            return;
+        }
+        int i1 = (head + 1) & mask;
+        double c = (currentTime - sampleTime[i0]) / (sampleTime[i1] - sampleTime[i0]);
+        setSample(i0, i1, Math.min(c, 1.0));
+    }
+
+    private void setSample(int i0, int i1, double c) {
+        currentWind.x = sampleWindX[i0] + c * (sampleWindX[i1] - sampleWindX[i0]);
+        currentWind.y = sampleWindY[i0] + c * (sampleWindY[i1] - sampleWindY[i0]);
+        currentWind.z = sampleWindZ[i0] + c * (sampleWindZ[i1] - sampleWindZ[i0]);
+        double t0 = sampleTemp[i0];
+        double t1 = sampleTemp[i1];
+        if (Double.isNaN(t0) || Double.isNaN(t1)) {
+            currentTemp = Double.isNaN(t0) ? (Double.isNaN(t1) ? STANDARD_TEMPERATURE : t1) : t0;
+        } else {
+            currentTemp = t0 + c * (t1 - t0);
+        }
+    }
+
+    /**
+     * Drop samples older than the interval containing given time, top up the window from loaded chunks when it gets
+     * half empty. If the loader is behind the window just runs on with the samples it has.
+     */
+    private void advance(double time) {
+        while (true) {
+            while (count > 1 && sampleTime[(head + 1) & mask] <= time) {
+                head = (head + 1) & mask;
+                count--;
+            }
+            if (eof || count > (mask + 1) / 2) {
+                return;
+            }
+            Chunk chunk = loadedChunks.poll();
+            if (chunk == null) {
+                return;
+            }
+            appendChunk(chunk);
+        }
+    }
+
+    /**
+     * Copy loaded chunk into the window and give it back to the loader. The window must have room for a chunk.
+     */
+    private void appendChunk(Chunk chunk) {
+        for (int k = 0; k < chunk.size; k++) {
+            int i = (head + count) & mask;
+            sampleTime[i] = chunk.time[k];
+            sampleWindX[i] = chunk.windX[k];
+            sampleWindY[i] = chunk.windY[k];
+            sampleWindZ[i] = chunk.windZ[k];
+            sampleTemp[i] = chunk.temp[k];
+            count++;
+        }
+        if (chunk.last) {
+            eof = true;
+        }
+        freeChunks.add(chunk);
+    }
+
+    /**
+     * Loader thread: fill free chunks from the file until its end or the first error.
+     */
+    private void loadLoop() {
+        try {
+            boolean last = false;
+            while (!last) {
+                Chunk chunk = freeChunks.take();
+                chunk.size = 0;
+                chunk.last = false;
+                try {
+                    while (chunk.size < chunk.time.length) {
+                        if (!reader.read(chunk, chunk.size)) {
+                            chunk.last = true;
+                            break;
+                        }
+                        samplesRead++;
+                        double t = chunk.time[chunk.size];
+                        if (t <= lastReadTime) {
+                            System.out.println("Weather time series " + fileName + ": sample #" + samplesRead +
+                                               " is not increasing in time, skipped");
+                            continue;
+                        }
+                        lastReadTime = t;
+                        chunk.size++;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Error reading weather time series " + fileName + ": " + e);
+                    chunk.last = true;
+                }
+                last = chunk.last;
+                loadedChunks.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            // loader stopped
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public Vector3d getWind() {
+        return currentWind;
+    }
+
+    @Override
+    public double getTemperature() {
+        return currentTemp;
+    }
+
+    @Override
+    public void missionDataUpdated(int seq, Vector3d wpLocation, LatLonAlt globalPosition) {
+        // weather is driven by time only
+        currentSeq = seq;
+    }
+
+    @Override
+    public void report(StringBuilder builder) {
+        builder.append("Weather Time Series");
+        builder.append(newLine);
+        builder.append(LINE);
+        builder.append(newLine);
+        builder.append(String.format("Time: %.2f s; Current mission item: %d", currentTime, currentSeq));
+        builder.append(newLine);
+        builder.append(String.format("Samples read: %d; Window: %d%s", samplesRead, count, eof ? " (end)" : ""));
+        builder.append(newLine);
+        builder.append(String.format("Current wind: %f %f %f", currentWind.x, currentWind.y, currentWind.z));
+        builder.append(newLine);
+        builder.append(String.format("Current temperature: %f", currentTemp));
+        builder.append(newLine);
+        builder.append(newLine);
+    }
+
+    /**
+     * Samples read by the loader thread, handed over to the simulation thread as a whole.
+     */
+    private static class Chunk {
+        final double[] time;
+        final double[] windX;
+        final double[] windY;
+        final double[] windZ;
+        final double[] temp;
+        int size = 0;
+        boolean last = false;  // end of file or read error, no chunk follows
+
+        Chunk(int capacity) {
+            time = new double[capacity];
+            windX = new double[capacity];
+            windY = new double[capacity];
+            windZ = new double[capacity];
+            temp = new double[capacity];
+        }
+    }
+
+    private interface SampleReader extends Closeable {
+        /**
+         * Read next sample into chunk slot.
+         *
+         * @return false at end of file
+         */
+        boolean read(Chunk chunk, int slot) throws IOException;
+    }
+
+    private class CSVSampleReader implements SampleReader {
+        private final BufferedReader in;
+        private int lineNumber = 0;
+        private boolean headerAllowed = true;  // until the first non-empty, non-comment line
+
+        CSVSampleReader(String fileName) throws IOException {
+            in = new BufferedReader(new FileReader(fileName));
+        }
+
+        @Override
+        public boolean read(Chunk chunk, int slot) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                boolean header = headerAllowed;
+                headerAllowed = false;
+                String[] cols = line.split("[,;\\s]+");
+                try {
+                    chunk.time[slot] = Double.parseDouble(cols[0]);
+                } catch (NumberFormatException e) {
+                    if (header) {
+                        continue;
+                    }
+                    throw new IOException("line " + lineNumber + ": " + e.getMessage());
+                }
+                if (cols.length < 4) {
+                    throw new IOException("line " + lineNumber + ": at least 4 columns expected");
+                }
+                try {
+                    chunk.windX[slot] = Double.parseDouble(cols[1]);
+                    chunk.windY[slot] = Double.parseDouble(cols[2]);
+                    chunk.windZ[slot] = Double.parseDouble(cols[3]);
+                    chunk.temp[slot] = cols.length > 4 ? Double.parseDouble(cols[4]) : Double.NaN;
+                } catch (NumberFormatException e) {
+                    throw new IOException("line " + lineNumber + ": " + e.getMessage());
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private class BinarySampleReader implements SampleReader {
+        private final DataInputStream in;
+
+        BinarySampleReader(String fileName) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+            try {
+                if (in.readInt() != BINARY_MAGIC) {
+                    throw new IOException("Unknown weather file format: " + fileName);
+                }
+                int version = in.readInt();
+                if (version != BINARY_VERSION) {
+                    throw new IOException("Unsupported weather file version " + version + ": " + fileName);
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean read(Chunk chunk, int slot) throws IOException {
+            double t;
+            try {
+                t = in.readDouble();
+            } catch (EOFException e) {
+                return false;
+            }
+            chunk.time[slot] = t;
+            chunk.windX[slot] = in.readDouble();
+            chunk.windY[slot] = in.readDouble();
+            chunk.windZ[slot] = in.readDouble();
+            chunk.temp[slot] = in.readDouble();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
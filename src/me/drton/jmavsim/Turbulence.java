@@ -0,0 +1,386 @@
+package me.drton.jmavsim;
+
+import javax.vecmath.Vector3d;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Atmospheric turbulence after MIL-F-8785C, Dryden or von Karman spectrum.
+ * <p/>
+ * Each axis is a white noise sequence shaped by the spectral filter, discretized with the bilinear transform and
+ * normalized to unit output variance. Filter time constants depend on scale length (altitude) and airspeed, so
+ * coefficients for all altitude and airspeed bands are precomputed for the simulation step on construction and a
+ * step costs one gaussian sample and a few multiply-adds per axis. Von Karman uses the usual rational
+ * approximation of its spectrum.
+ * <p/>
+ * Every dynamic object gets its own filter state and noise stream seeded from the common seed, so runs are
+ * repeatable. Turbulence intensity follows the low altitude model sigma_w = 0.1 * W20, with W20 taken from the
+ * mean horizontal wind. The longitudinal component is aligned with the horizontal air velocity of the object.
+ * States of objects that are no longer in the world are dropped on the next update.
+ */
+public class Turbulence {
+    public enum Model {
+        DRYDEN,
+        VON_KARMAN
+    }
+
+    private static final double FT = 0.3048;  // [m]
+    private static final double LOW_ALTITUDE = 1000.0 * FT;
+    private static final double HIGH_ALTITUDE = 2000.0 * FT;
+    private static final double MIN_ALTITUDE = 10.0 * FT;
+    private static final double ALT_BAND = 5.0;   // [m]
+    private static final int ALT_BANDS = (int) Math.ceil(HIGH_ALTITUDE / ALT_BAND) + 1;
+    private static final double SPEED_BAND = 1.0; // [m/s]
+    private static final int SPEED_BANDS = 50;
+    private static final int SECTIONS = 3;        // first order sections per axis
+    private static final int COEFS = 3 * SECTIONS;  // b0, b1, a1 per section
+
+    // shaping filters factored into first order terms (1 + c * tau * s), c given for zeros and poles
+    private static final double[] DRYDEN_U_ZEROS = {};
+    private static final double[] DRYDEN_U_POLES = {1.0};
+    private static final double[] DRYDEN_VW_ZEROS = {Math.sqrt(3.0)};
+    private static final double[] DRYDEN_VW_POLES = {1.0, 1.0};
+    // von Karman approximation, u: (1 + 0.25x) / (1 + 1.357x + 0.1987x^2),
+    // v, w: (1 + 2.7478x + 0.3398x^2) / (1 + 2.9958x + 1.9754x^2 + 0.1539x^3)
+    private static final double[] VON_KARMAN_U_ZEROS = {0.25};
+    private static final double[] VON_KARMAN_U_POLES = {1.1900293, 0.1669707};
+    private static final double[] VON_KARMAN_VW_ZEROS = {2.6180066, 0.1297934};
+    private static final double[] VON_KARMAN_VW_POLES = {2.0828724, 0.8231664, 0.0897611};
+
+    private final Model model;
+    private final double dt;
+    private final long seed;
+    private double windSpeedOverride = -1.0;
+
+    // [alt band][speed band][axis][coef]
+    private final double[] coefs = new double[ALT_BANDS * SPEED_BANDS * 3 * COEFS];
+    // sigma_u / sigma_w per altitude band, sigma_v = sigma_u
+    private final double[] sigmaRatio = new double[ALT_BANDS];
+
+    private final Map<Vector3d, State> states = new IdentityHashMap<Vector3d, State>();
+    private int stateCount = 0;
+    private long updateCount = 0;
+
+    /**
+     * Turbulence state of one object.
+     */
+    public static final class State {
+        private final Random random;
+        // filter section states, [axis][section]
+        private final double[] s = new double[3 * SECTIONS];
+        private final Vector3d gust = new Vector3d();
+        private final Vector3d result = new Vector3d();
+        private long lastUpdate = 0;
+
+        private State(long seed) {
+            random = new Random(seed);
+        }
+
+        /**
+         * Get current gust velocity in NED frame.
+         */
+        public Vector3d getGust() {
+            return gust;
+        }
+    }
+
+    /**
+     * @param model spectrum to use
+     * @param dt    simulation step [s]
+     * @param seed  seed for noise streams of all objects
+     */
+    public Turbulence(Model model, double dt, long seed) {
+        this.model = model;
+        this.dt = dt;
+        this.seed = seed;
+        boolean vonKarman = model == Model.VON_KARMAN;
+        double[] uZeros = vonKarman ? VON_KARMAN_U_ZEROS : DRYDEN_U_ZEROS;
+        double[] uPoles = vonKarman ? VON_KARMAN_U_POLES : DRYDEN_U_POLES;
+        double[] vwZeros = vonKarman ? VON_KARMAN_VW_ZEROS : DRYDEN_VW_ZEROS;
+        double[] vwPoles = vonKarman ? VON_KARMAN_VW_POLES : DRYDEN_VW_POLES;
+        double[] work = new double[4 * SECTIONS * SECTIONS];
+        for (int a = 0; a < ALT_BANDS; a++) {
+            double h = Math.max((a + 0.5) * ALT_BAND, MIN_ALTITUDE);
+            double lw = scaleLengthW(h);
+            double lu = scaleLengthU(h);
+            sigmaRatio[a] = sigmaRatioU(h);
+            for (int v = 0; v < SPEED_BANDS; v++) {
+                double speed = (v + 0.5) * SPEED_BAND;
+                int base = (a * SPEED_BANDS + v) * 3 * COEFS;
+                discretize(uZeros, uPoles, lu / speed, base, work);
+                discretize(vwZeros, vwPoles, lu / speed, base + COEFS, work);
+                discretize(vwZeros, vwPoles, lw / speed, base + 2 * COEFS, work);
+            }
+        }
+    }
+
+    public Model getModel() {
+        return model;
+    }
+
+    /**
+     * Use fixed wind speed at 20 ft for turbulence intensity instead of the mean wind,
+     * e.g. 7.7 (light), 15.4 (moderate) or 23.2 (severe) m/s.
+     *
+     * @param windSpeed [m/s], negative to use the mean wind
+     */
+    public void setWindSpeedOverride(double windSpeed) {
+        this.windSpeedOverride = windSpeed;
+    }
+
+    private double scaleLengthW(double h) {
+        if (h <= LOW_ALTITUDE) {
+            return h;
+        }
+        return interpolateHigh(h, LOW_ALTITUDE, highScaleLength());
+    }
+
+    private double scaleLengthU(double h) {
+        if (h <= LOW_ALTITUDE) {
+            double hft = h / FT;
+            return h / Math.pow(0.177 + 0.000823 * hft, 1.2);
+        }
+        return interpolateHigh(h, scaleLengthU(LOW_ALTITUDE), highScaleLength());
+    }
+
+    private double sigmaRatioU(double h) {
+        if (h <= LOW_ALTITUDE) {
+            double hft = h / FT;
+            return 1.0 / Math.pow(0.177 + 0.000823 * hft, 0.4);
+        }
+        return interpolateHigh(h, sigmaRatioU(LOW_ALTITUDE), 1.0);
+    }
+
+    private double highScaleLength() {
+        return (model == Model.VON_KARMAN ? 2500.0 : 1750.0) * FT;
+    }
+
+    private static double interpolateHigh(double h, double low, double high) {
+        double c = Math.min((h - LOW_ALTITUDE) / (HIGH_ALTITUDE - LOW_ALTITUDE), 1.0);
+        return low + c * (high - low);
+    }
+
+    /**
+     * Bilinear transform of the shaping filter to cascaded first order sections, normalized to unit output
+     * variance for unit variance white noise input. First order sections stay well conditioned for time
+     * constants many orders of magnitude above the time step, unlike a single higher order polynomial.
+     *
+     * @param tau scale length / airspeed [s]
+     */
+    private void discretize(double[] zeros, double[] poles, double tau, int offset, double[] work) {
+        double k = 2.0 / dt;
+        for (int i = 0; i < SECTIONS; i++) {
+            int c = offset + i * 3;
+            if (i < poles.length) {
+                // (1 + zc * tau * s) / (1 + pc * tau * s)
+                double zk = i < zeros.length ? zeros[i] * tau * k : 0.0;
+                double pk = poles[i] * tau * k;
+                coefs[c] = (1.0 + zk) / (1.0 + pk);
+                coefs[c + 1] = (1.0 - zk) / (1.0 + pk);
+                coefs[c + 2] = (1.0 - pk) / (1.0 + pk);
+            } else {
+                coefs[c] = 1.0;
+                coefs[c + 1] = 0.0;
+                coefs[c + 2] = 0.0;
+            }
+        }
+        double gain = 1.0 / Math.sqrt(outputVariance(offset, work));
+        coefs[offset] *= gain;
+        coefs[offset + 1] *= gain;
+    }
+
+    /**
+     * Steady state output variance of the section cascade for unit white noise input,
+     * solving the discrete Lyapunov equation P = A P A' + B B' by doubling.
+     */
+    private double outputVariance(int offset, double[] work) {
+        int n = SECTIONS;
+        int nn = n * n;
+        // work: A^(2^k), P, temp, temp2
+        double[] b = new double[n];
+        double[] cv = new double[n];
+        Arrays.fill(work, 0.0);
+        double d = 1.0;
+        for (int i = 0; i < n; i++) {
+            int c = offset + i * 3;
+            double b0 = coefs[c];
+            double g = coefs[c + 1] - coefs[c + 2] * b0;
+            // s_i' = g * (input of section) - a1 * s_i, input of section = cv . s + d * x
+            for (int j = 0; j < n; j++) {
+                work[i * n + j] = g * cv[j];
+            }
+            work[i * n + i] -= coefs[c + 2];
+            b[i] = g * d;
+            // output of section: b0 * input + s_i
+            for (int j = 0; j < n; j++) {
+                cv[j] *= b0;
+            }
+            cv[i] += 1.0;
+            d *= b0;
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                work[nn + i * n + j] = b[i] * b[j];
+            }
+        }
+        for (int iter = 0; iter < 100; iter++) {
+            // temp = A P, temp2 = temp A'
+            double norm = 0.0;
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    double v = 0.0;
+                    for (int m = 0; m < n; m++) {
+                        v += work[i * n + m] * work[nn + m * n + j];
+                    }
+                    work[2 * nn + i * n + j] = v;
+                    norm = Math.max(norm, Math.abs(work[i * n + j]));
+                }
+            }
+            if (norm < 1e-12) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    double v = 0.0;
+                    for (int m = 0; m < n; m++) {
+                        v += work[2 * nn + i * n + m] * work[j * n + m];
+                    }
+                    work[nn + i * n + j] += v;
+                }
+            }
+            // A = A A
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    double v = 0.0;
+                    for (int m = 0; m < n; m++) {
+                        v += work[i * n + m] * work[m * n + j];
+                    }
+                    work[3 * nn + i * n + j] = v;
+                }
+            }
+            System.arraycopy(work, 3 * nn, work, 0, nn);
+        }
+        double var = d * d;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                var += cv[i] * work[nn + i * n + j] * cv[j];
+            }
+        }
+        return var;
+    }
+
+    /**
+     * Advance turbulence of all dynamic objects by one step.
+     *
+     * @param objects     world objects
+     * @param meanWind    mean wind in NED frame
+     * @param environment environment for ground level
+     */
+    public void update(List<WorldObject> objects, Vector3d meanWind, Environment environment) {
+        double w20 = windSpeedOverride >= 0.0 ? windSpeedOverride :
+                     Math.sqrt(meanWind.x * meanWind.x + meanWind.y * meanWind.y);
+        double sigmaW = 0.1 * w20;
+        updateCount++;
+        int updated = 0;
+        for (int i = 0; i < objects.size(); i++) {
+            WorldObject obj = objects.get(i);
+            if (!(obj instanceof DynamicObject)) {
+                continue;
+            }
+            DynamicObject body = (DynamicObject) obj;
+            Vector3d position = body.getPosition();
+            State state;
+            synchronized (states) {
+                state = states.get(position);
+                if (state == null) {
+                    state = new State(seed + 0x9E3779B97F4A7C15L * ++stateCount);
+                    states.put(position, state);
+                }
+            }
+            if (state.lastUpdate != updateCount) {
+                state.lastUpdate = updateCount;
+                updated++;
+            }
+            double height = environment.getGroundLevelAt(position) - position.z;
+            Vector3d v = body.getVelocity();
+            step(state, height, v.x - meanWind.x, v.y - meanWind.y, v.z - meanWind.z, sigmaW);
+        }
+        synchronized (states) {
+            if (states.size() > updated) {
+                // some objects were removed or replaced, e.g. a respawned vehicle
+                for (Iterator<State> it = states.values().iterator(); it.hasNext(); ) {
+                    if (it.next().lastUpdate != updateCount) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    private void step(State state, double height, double airX, double airY, double airZ, double sigmaW) {
+        double airHorizontal = Math.sqrt(airX * airX + airY * airY);
+        double airspeed = Math.sqrt(airHorizontal * airHorizontal + airZ * airZ);
+        int altBand = Math.min((int)(Math.max(height, 0.0) / ALT_BAND), ALT_BANDS - 1);
+        int speedBand = Math.min((int)(airspeed / SPEED_BAND), SPEED_BANDS - 1);
+        int base = (altBand * SPEED_BANDS + speedBand) * 3 * COEFS;
+
+        double u = filter(state, 0, base, state.random.nextGaussian());
+        double v = filter(state, 1, base + COEFS, state.random.nextGaussian());
+        double w = filter(state, 2, base + 2 * COEFS, state.random.nextGaussian());
+
+        double sigmaU = sigmaW * sigmaRatio[altBand];
+        double cx = 1.0;
+        double cy = 0.0;
+        if (airHorizontal > 0.1) {
+            cx = airX / airHorizontal;
+            cy = airY / airHorizontal;
+        }
+        // gust from mean wind frame (u along air velocity) to NED
+        state.gust.x = sigmaU * (u * cx - v * cy);
+        state.gust.y = sigmaU * (u * cy + v * cx);
+        state.gust.z = sigmaW * w;
+    }
+
+    private double filter(State state, int axis, int c, double x) {
+        double[] s = state.s;
+        int i = axis * SECTIONS;
+        for (int k = 0; k < SECTIONS; k++, c += 3, i++) {
+            double y = coefs[c] * x + s[i];
+            s[i] = coefs[c + 1] * x - coefs[c + 2] * y;
+            x = y;
+        }
+        return x;
+    }
+
+    /**
+     * Get turbulence state of object by its position vector.
+     *
+     * @return state or null if the point doesn't belong to a dynamic object
+     */
+    public State getState(Vector3d position) {
+        synchronized (states) {
+            return states.get(position);
+        }
+    }
+
+    /**
+     * Get wind plus gust of the object at given position.
+     *
+     * @param position position vector of the object
+     * @param wind     wind without turbulence
+     * @return vector reused on every call for the same object, or wind itself if the object has no state
+     */
+    public Vector3d addGust(Vector3d position, Vector3d wind) {
+        State state = getState(position);
+        if (state == null) {
+            return wind;
+        }
+        state.result.add(wind, state.gust);
+        return state.result;
+    }
+}
@@ -7,6 +7,7 @@ import me.drton.jmavlib.mavlink.MAVLinkMessage;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.DatagramChannel;
 import java.util.*;
 
@@ -20,6 +21,8 @@ public class UDPMavLinkPort extends MAVLinkPort {
     private SocketAddress bindPort = null;
     private SocketAddress peerPort;
     private MAVLinkStream stream;
+    private MAVLinkFrameReader reader;
+    private ByteChannel tapChannel;
     private boolean debug = false;
 
     private boolean monitorMessage = false;
@@ -76,8 +79,11 @@ public class UDPMavLinkPort extends MAVLinkPort {
     }
 
     public void open() throws IOException {
-        stream = new MAVLinkStream(schema, channel);
+        tapChannel = tap(channel);
+        stream = new MAVLinkStream(schema, tapChannel);
         stream.setDebug(debug);
+        reader = new MAVLinkFrameReader(tapChannel);
+        reader.setDebug(debug);
     }
 
     @Override
@@ -113,6 +119,21 @@ public class UDPMavLinkPort extends MAVLinkPort {
         }
     }
 
+    @Override
+    public void handleFrame(ByteBuffer frame) {
+        if (isOpened() && tapChannel != null) {
+            int position = frame.position();
+            int msgId = MAVLinkFrame.getMsgId(frame);
+            try {
+                tapChannel.write(frame);
+                IndicateReceivedMessage(msgId);
+            } catch (IOException ignored) {
+                // Silently ignore this exception, we likely just have nobody on this port yet/already
+            }
+            frame.position(position);
+        }
+    }
+
     private void IndicateReceivedMessage(int type) {
         if (monitorMessage) {
             boolean shouldPrint = false;
@@ -149,16 +170,17 @@ public class UDPMavLinkPort extends MAVLinkPort {
     public void update(long t, boolean paused) {
         while (isOpened()) {
             try {
-                MAVLinkMessage msg = stream.read();
-                if (msg == null) {
+                // frames are parsed in place and passed on raw, only nodes handling the message decode it
+                ByteBuffer frame = reader.read();
+                if (frame == null) {
                     break;
                 }
+                int msgId = MAVLinkFrame.getMsgId(frame);
                 if (debug) {
-                    System.out.println("[update] msg.name: " + msg.getMsgName() + ", type: " + msg.getMsgType());
+                    System.out.println("[update] msgId: " + msgId);
                 }
-                IndicateReceivedMessage(msg.getMsgType());
-                msg.forwarded = true;
-                sendMessage(msg);
+                IndicateReceivedMessage(msgId);
+                sendFrame(frame);
             } catch (IOException e) {
                 // Silently ignore this exception, we likely just have nobody on this port yet/already
                 return;
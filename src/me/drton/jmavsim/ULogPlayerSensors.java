@@ -0,0 +1,287 @@
+package me.drton.jmavsim;
+
+import me.drton.jmavlib.geo.LatLonAlt;
+
+import javax.vecmath.Vector3d;
+import java.io.IOException;
+
+/**
+ * Sensors object that uses ULog file replay as source.
+ * <p/>
+ * Topics sensor_combined, vehicle_air_data and vehicle_gps_position are decoded as the replay advances through
+ * ULogStream, so memory use doesn't depend on log size. Magnetometer is taken from sensor_combined in older logs
+ * and from vehicle_magnetometer in newer ones, GPS position from lat/lon/alt or latitude_deg/longitude_deg/
+ * altitude_msl_m, whichever the log has.
+ */
+public class ULogPlayerSensors implements Sensors {
+    private ULogStream stream = null;
+    private ULogStream.Topic sensorCombined;
+    private ULogStream.Topic airData;
+    private ULogStream.Topic gpsPosition;
+    private ULogStream.Topic magnetometer;
+    // resolved fields, null if the log doesn't have them
+    private ULogStream.Field gyroField;
+    private ULogStream.Field accField;
+    private ULogStream.Field combinedMagField;
+    private ULogStream.Field combinedBaroAltField;
+    private ULogStream.Field magField;
+    private ULogStream.Field baroAltField;
+    private ULogStream.Field baroPressureField;
+    private ULogStream.Field latField;
+    private ULogStream.Field lonField;
+    private ULogStream.Field altField;
+    private double latScale;
+    private double altScale;
+    private ULogStream.Field ephField;
+    private ULogStream.Field epvField;
+    private ULogStream.Field velNField;
+    private ULogStream.Field velEField;
+    private ULogStream.Field velDField;
+    private ULogStream.Field fixField;
+    private ULogStream.Field timeUtcField;
+
+    private long logOffset = 0;  // log time - simulation time [us]
+    private long lastT = 0;
+    private SensorFrame frame = new SensorFrame();
+    private GNSSReport gnss = new GNSSReport();
+    private LatLonAlt globalPosition = new LatLonAlt(0, 0, 0);
+    private boolean gpsUpdated = false;
+    private boolean reset = false;
+
+    /**
+     * Open log for replay.
+     *
+     * @param startTime simulation time of the log start [ms]
+     */
+    void openLog(String fileName, long startTime) throws IOException {
+        stream = new ULogStream(fileName);
+        logOffset = stream.getStartMicroseconds() - startTime * 1000;
+        sensorCombined = stream.subscribe("sensor_combined");
+        if (sensorCombined != null) {
+            gyroField = sensorCombined.getField("gyro_rad");
+            accField = sensorCombined.getField("accelerometer_m_s2");
+            combinedMagField = sensorCombined.getField("magnetometer_ga");
+            combinedBaroAltField = sensorCombined.getField("baro_alt_meter");
+        }
+        magnetometer = stream.subscribe("vehicle_magnetometer");
+        if (magnetometer != null) {
+            magField = magnetometer.getField("magnetometer_ga");
+        }
+        airData = stream.subscribe("vehicle_air_data");
+        if (airData != null) {
+            baroAltField = airData.getField("baro_alt_meter");
+            baroPressureField = airData.getField("baro_pressure_pa");
+        }
+        gpsPosition = stream.subscribe("vehicle_gps_position");
+        if (gpsPosition != null) {
+            latField = gpsPosition.getField("latitude_deg");
+            if (latField != null) {
+                lonField = gpsPosition.getField("longitude_deg");
+                altField = gpsPosition.getField("altitude_msl_m");
+                latScale = 1.0;
+                altScale = 1.0;
+            } else {
+                latField = gpsPosition.getField("lat");
+                lonField = gpsPosition.getField("lon");
+                altField = gpsPosition.getField("alt");
+                latScale = 1e-7;
+                altScale = 1e-3;
+            }
+            ephField = gpsPosition.getField("eph");
+            epvField = gpsPosition.getField("epv");
+            velNField = gpsPosition.getField("vel_n_m_s");
+            velEField = gpsPosition.getField("vel_e_m_s");
+            velDField = gpsPosition.getField("vel_d_m_s");
+            fixField = gpsPosition.getField("fix_type");
+            timeUtcField = gpsPosition.getField("time_utc_usec");
+        }
+    }
+
+    /**
+     * Jump to time in the log, replay continues from there.
+     *
+     * @param time time since log start [ms]
+     */
+    public void seek(long time) {
+        if (stream != null) {
+            long logTime = stream.getStartMicroseconds() + time * 1000;
+            logOffset = logTime - lastT * 1000;
+            stream.seek(logTime);
+        }
+    }
+
+    /**
+     * @return current time since log start [ms]
+     */
+    public long getLogTime() {
+        return stream == null ? 0 : (lastT * 1000 + logOffset - stream.getStartMicroseconds()) / 1000;
+    }
+
+    @Override
+    public void setObject(DynamicObject object, long t) {
+    }
+
+    @Override
+    public void setGPSStartTime(long time) {}
+
+    @Override
+    public long getGPSStartTime() {
+        return 0;
+    }
+
+    @Override
+    public SensorFrame getFrame() {
+        return frame;
+    }
+
+    @Override
+    public Vector3d getAcc() {
+        return frame.acc;
+    }
+
+    @Override
+    public Vector3d getGyro() {
+        return frame.gyro;
+    }
+
+    @Override
+    public Vector3d getMag() {
+        return frame.mag;
+    }
+
+    @Override
+    public double getPressureAlt() {
+        return frame.pressureAlt;
+    }
+
+    @Override
+    public double getPressure() {
+        return frame.pressure;
+    }
+
+    @Override
+    public GNSSReport getGNSS() {
+        return gnss;
+    }
+
+    @Override
+    public Rangefinder getRangefinder() {
+        return null;
+    }
+
+    @Override
+    public LatLonAlt getGlobalPosition() {
+        return globalPosition;
+    }
+
+    @Override
+    public void getGlobalPosition(MutableLatLonAlt pos) {
+        pos.set(globalPosition);
+    }
+
+    @Override
+    public boolean isGPSUpdated() {
+        boolean res = gpsUpdated;
+        gpsUpdated = false;
+        return res;
+    }
+
+    @Override
+    public void update(long t, boolean paused) {
+        lastT = t;
+        if (stream == null) {
+            return;
+        }
+        frame.time = t;
+        frame.fieldsUpdated = 0;
+        long logTime = t * 1000 + logOffset;
+        try {
+            ULogStream.Topic topic;
+            while ((topic = stream.read(logTime)) != null) {
+                if (topic == sensorCombined) {
+                    readSensorCombined();
+                } else if (topic == magnetometer) {
+                    if (magField != null) {
+                        frame.fieldsUpdated |= SensorFrame.MAG;
+                        readVector(magField, frame.mag);
+                    }
+                } else if (topic == airData) {
+                    if (baroAltField != null) {
+                        readBaro(baroAltField, baroPressureField);
+                    }
+                } else if (topic == gpsPosition) {
+                    readGPS();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            stream = null;
+        }
+    }
+
+    private void readSensorCombined() {
+        if (gyroField != null) {
+            frame.fieldsUpdated |= SensorFrame.GYRO;
+            readVector(gyroField, frame.gyro);
+        }
+        if (accField != null) {
+            frame.fieldsUpdated |= SensorFrame.ACC;
+            readVector(accField, frame.acc);
+        }
+        if (combinedMagField != null) {
+            frame.fieldsUpdated |= SensorFrame.MAG;
+            readVector(combinedMagField, frame.mag);
+        }
+        if (combinedBaroAltField != null) {
+            readBaro(combinedBaroAltField, null);
+        }
+    }
+
+    private void readVector(ULogStream.Field field, Vector3d result) {
+        result.set(stream.getDouble(field, 0), stream.getDouble(field, 1), stream.getDouble(field, 2));
+    }
+
+    private void readBaro(ULogStream.Field altitude, ULogStream.Field pressure) {
+        frame.fieldsUpdated |= SensorFrame.BARO;
+        frame.pressureAlt = stream.getDouble(altitude);
+        frame.pressure = pressure != null ? stream.getDouble(pressure) :
+                         SimpleEnvironment.alt2baro(frame.pressureAlt);
+    }
+
+    private void readGPS() {
+        if (latField == null || lonField == null || altField == null) {
+            return;
+        }
+        gpsUpdated = true;
+        gnss.position.set(stream.getDouble(latField) * latScale, stream.getDouble(lonField) * latScale,
+                          stream.getDouble(altField) * altScale);
+        gnss.eph = ephField != null ? (float) stream.getDouble(ephField) : 1.0f;
+        gnss.epv = epvField != null ? (float) stream.getDouble(epvField) : 1.0f;
+        if (velNField != null && velEField != null && velDField != null) {
+            gnss.velocity.set(stream.getDouble(velNField), stream.getDouble(velEField), stream.getDouble(velDField));
+        }
+        gnss.fix = fixField != null ? (int) stream.getDouble(fixField) : 3;
+        gnss.time = timeUtcField != null ? stream.getLong(timeUtcField) : 0;
+
+        globalPosition = gnss.position.toLatLonAlt();
+    }
+
+    @Override
+    public boolean isReset() {
+        return reset;
+    }
+
+    @Override
+    public void setReset(boolean reset) {
+        this.reset = reset;
+    }
+
+    @Override
+    public void setParameter(String name, float value) {}
+
+    @Override
+    public float param(String name) {
+        return 0.0f;
+    }
+
+}
@@ -0,0 +1,563 @@
+package me.drton.jmavsim;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming ULog decoder.
+ * <p/>
+ * The file is memory mapped in fixed size windows, so decoding runs in constant memory for any log size. Only
+ * subscribed topics are decoded: read() skips other messages by their size, fields of the returned message are
+ * read in place through Field handles with offsets precomputed from the format definitions.
+ * <p/>
+ * A sparse time index (file offset of the first data message of every INDEX_INTERVAL) and the logged topics are
+ * built in one pass on first open and saved next to the log (log name + ".idx"), seek() jumps through it.
+ * <p/>
+ * Index format, big endian:
+ * <pre>
+ * int   magic "JMUI", int version (1)
+ * long  log file size, log file modification time [ms], first and last data timestamp [us]
+ * int   entry count, entries: long timestamp [us], long file offset
+ * int   logged topic count, topics: int msg_id, int multi_id, int length, byte name[length] (UTF-8)
+ * </pre>
+ */
+public class ULogStream {
+    public static final int INDEX_MAGIC = 0x4A4D5549;  // "JMUI"
+    public static final int INDEX_VERSION = 1;
+    public static final String INDEX_SUFFIX = ".idx";
+    public static final long INDEX_INTERVAL = 1000000;  // [us]
+    private static final int WINDOW_SIZE = 64 << 20;
+    private static final int HEADER_SIZE = 16;
+    private static final byte[] MAGIC = new byte[] {'U', 'L', 'o', 'g', 0x01, 0x12, 0x35};
+
+    // field types
+    private static final int INT8 = 0;
+    private static final int UINT8 = 1;
+    private static final int INT16 = 2;
+    private static final int UINT16 = 3;
+    private static final int INT32 = 4;
+    private static final int UINT32 = 5;
+    private static final int INT64 = 6;
+    private static final int UINT64 = 7;
+    private static final int FLOAT = 8;
+    private static final int DOUBLE = 9;
+    private static final int NESTED = 10;
+
+    private final String fileName;
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private int windowSize = 0;
+    private long dataStart;
+    private long position;
+    private int current;  // start of the current message data in the window
+    private long startTime;
+    private long endTime;
+    private long[] indexTimes;
+    private long[] indexOffsets;
+    // format definitions, "name" -> "type field;type field;..."
+    private final Map<String, String> formats = new HashMap<String, String>();
+    private final Map<String, Integer> formatSizes = new HashMap<String, Integer>();
+    // logged topics: msg_id -> name, multi_id
+    private final Map<Integer, String> loggedNames = new HashMap<Integer, String>();
+    private final Map<Integer, Integer> loggedMultiIds = new HashMap<Integer, Integer>();
+    private final Map<String, Topic> subscriptions = new HashMap<String, Topic>();
+    private Topic[] topicsById = new Topic[0];
+
+    /**
+     * Field of a topic, resolved once and then read from each message of the topic.
+     */
+    public static final class Field {
+        private final int offset;
+        private final int type;
+        private final int length;
+
+        private Field(int offset, int type, int length) {
+            this.offset = offset;
+            this.type = type;
+            this.length = length;
+        }
+
+        /**
+         * @return number of elements, 1 for scalar fields
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Subscribed topic, first instance (multi_id 0) only.
+     */
+    public static final class Topic {
+        private final String name;
+        private final Map<String, Field> fields = new HashMap<String, Field>();
+        private Field timestamp;
+
+        private Topic(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return field handle or null if the topic has no such field
+         */
+        public Field getField(String fieldName) {
+            return fields.get(fieldName);
+        }
+    }
+
+    /**
+     * Open log, read definitions and load or build the index.
+     *
+     * @throws IOException if the file can't be read or isn't a ULog file
+     */
+    public ULogStream(String fileName) throws IOException {
+        this.fileName = fileName;
+        File file = new File(fileName);
+        channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            fileSize = channel.size();
+            readDefinitions();
+            if (!readIndex(file)) {
+                buildIndex();
+                try {
+                    writeIndex(file);
+                } catch (IOException e) {
+                    System.err.println("Can't write log index " + fileName + INDEX_SUFFIX + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        position = dataStart;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return timestamp of the first data message [us]
+     */
+    public long getStartMicroseconds() {
+        return startTime;
+    }
+
+    /**
+     * @return timestamp of the last data message [us]
+     */
+    public long getEndMicroseconds() {
+        return endTime;
+    }
+
+    /**
+     * Make sure the message at pos is completely inside of the mapped window.
+     */
+    private void map(long pos, int len) throws IOException {
+        if (window != null && pos >= windowStart && pos + len <= windowStart + windowSize) {
+            return;
+        }
+        windowStart = pos;
+        windowSize = (int) Math.min(Math.max(WINDOW_SIZE, len), fileSize - pos);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private String readString(int offset, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = window.get(offset + i);
+        }
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private void readDefinitions() throws IOException {
+        if (fileSize < HEADER_SIZE) {
+            throw new IOException("Not a ULog file: " + fileName);
+        }
+        map(0, HEADER_SIZE);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (window.get(i) != MAGIC[i]) {
+                throw new IOException("Not a ULog file: " + fileName);
+            }
+        }
+        long pos = HEADER_SIZE;
+        while (pos + 3 <= fileSize) {
+            map(pos, 3);
+            int size = window.getShort((int) (pos - windowStart)) & 0xFFFF;
+            int type = window.get((int) (pos - windowStart) + 2);
+            if (type == 'A' || type == 'D') {
+                break;
+            }
+            if (pos + 3 + size > fileSize) {
+                break;
+            }
+            if (type == 'F') {
+                map(pos, 3 + size);
+                String format = readString((int) (pos - windowStart) + 3, size);
+                int colon = format.indexOf(':');
+                if (colon > 0) {
+                    formats.put(format.substring(0, colon), format.substring(colon + 1));
+                }
+            }
+            pos += 3 + size;
+        }
+        dataStart = pos;
+    }
+
+    /**
+     * One pass over the data: timestamps for the index and logged topics.
+     */
+    private void buildIndex() throws IOException {
+        List<long[]> entries = new ArrayList<long[]>();
+        long nextIndexTime = Long.MIN_VALUE;
+        startTime = -1;
+        endTime = 0;
+        long pos = dataStart;
+        while (pos + 3 <= fileSize) {
+            map(pos, 3);
+            int size = window.getShort((int) (pos - windowStart)) & 0xFFFF;
+            int type = window.get((int) (pos - windowStart) + 2);
+            if (pos + 3 + size > fileSize) {
+                break;
+            }
+            map(pos, 3 + size);
+            int p = (int) (pos - windowStart) + 3;
+            if (type == 'A' && size >= 3) {
+                int msgId = window.getShort(p + 1) & 0xFFFF;
+                loggedNames.put(msgId, readString(p + 3, size - 3));
+                loggedMultiIds.put(msgId, window.get(p) & 0xFF);
+            } else if (type == 'D' && size >= 10) {
+                long t = window.getLong(p + 2);
+                if (startTime < 0) {
+                    startTime = t;
+                }
+                endTime = Math.max(endTime, t);
+                if (t >= nextIndexTime) {
+                    entries.add(new long[] {t, pos});
+                    nextIndexTime = (t / INDEX_INTERVAL + 1) * INDEX_INTERVAL;
+                }
+            }
+            pos += 3 + size;
+        }
+        if (startTime < 0) {
+            startTime = 0;
+        }
+        indexTimes = new long[entries.size()];
+        indexOffsets = new long[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            indexTimes[i] = entries.get(i)[0];
+            indexOffsets[i] = entries.get(i)[1];
+        }
+    }
+
+    private boolean readIndex(File logFile) throws IOException {
+        File indexFile = new File(fileName + INDEX_SUFFIX);
+        if (!indexFile.isFile()) {
+            return false;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+                FileChannel indexChannel = file.getChannel()) {
+            ByteBuffer buffer = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            if (buffer.remaining() < 44 || buffer.getInt() != INDEX_MAGIC || buffer.getInt() != INDEX_VERSION ||
+                    buffer.getLong() != logFile.length() || buffer.getLong() != logFile.lastModified()) {
+                return false;
+            }
+            startTime = buffer.getLong();
+            endTime = buffer.getLong();
+            int n = buffer.getInt();
+            indexTimes = new long[n];
+            indexOffsets = new long[n];
+            for (int i = 0; i < n; i++) {
+                indexTimes[i] = buffer.getLong();
+                indexOffsets[i] = buffer.getLong();
+            }
+            int topics = buffer.getInt();
+            for (int i = 0; i < topics; i++) {
+                int msgId = buffer.getInt();
+                int multiId = buffer.getInt();
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                loggedNames.put(msgId, new String(name, StandardCharsets.UTF_8));
+                loggedMultiIds.put(msgId, multiId);
+            }
+            return true;
+        } catch (RuntimeException e) {
+            // truncated or corrupted index
+            return false;
+        }
+    }
+
+    /**
+     * Write the index into a temporary file and rename it, so a crash doesn't leave a truncated index and a
+     * concurrent open never reads a partially written one.
+     */
+    private void writeIndex(File logFile) throws IOException {
+        File indexFile = new File(fileName + INDEX_SUFFIX);
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(logFile.length());
+            out.writeLong(logFile.lastModified());
+            out.writeLong(startTime);
+            out.writeLong(endTime);
+            out.writeInt(indexTimes.length);
+            for (int i = 0; i < indexTimes.length; i++) {
+                out.writeLong(indexTimes[i]);
+                out.writeLong(indexOffsets[i]);
+            }
+            out.writeInt(loggedNames.size());
+            for (Map.Entry<Integer, String> e : loggedNames.entrySet()) {
+                byte[] name = e.getValue().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(e.getKey());
+                out.writeInt(loggedMultiIds.get(e.getKey()));
+                out.writeInt(name.length);
+                out.write(name);
+            }
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            indexFile.delete();
+            if (!tmpFile.renameTo(indexFile)) {
+                throw new IOException("Can't rename " + tmpFile);
+            }
+        }
+    }
+
+    private static int typeCode(String type) {
+        switch (type) {
+            case "int8_t":
+                return INT8;
+            case "uint8_t":
+            case "bool":
+            case "char":
+                return UINT8;
+            case "int16_t":
+                return INT16;
+            case "uint16_t":
+                return UINT16;
+            case "int32_t":
+                return INT32;
+            case "uint32_t":
+                return UINT32;
+            case "int64_t":
+                return INT64;
+            case "uint64_t":
+                return UINT64;
+            case "float":
+                return FLOAT;
+            case "double":
+                return DOUBLE;
+            default:
+                return NESTED;
+        }
+    }
+
+    private static final int[] TYPE_SIZES = new int[] {1, 1, 2, 2, 4, 4, 8, 8, 4, 8};
+
+    private int typeSize(String type) throws IOException {
+        int code = typeCode(type);
+        return code != NESTED ? TYPE_SIZES[code] : formatSize(type);
+    }
+
+    private int formatSize(String name) throws IOException {
+        Integer size = formatSizes.get(name);
+        if (size != null) {
+            return size;
+        }
+        String format = formats.get(name);
+        if (format == null) {
+            throw new IOException("Undefined ULog type: " + name);
+        }
+        formatSizes.put(name, 0);  // breaks recursive definitions
+        int s = 0;
+        for (String def : format.split(";")) {
+            String[] typeName = parseField(def);
+            if (typeName != null) {
+                s += typeSize(typeName[0]) * Integer.parseInt(typeName[2]);
+            }
+        }
+        formatSizes.put(name, s);
+        return s;
+    }
+
+    /**
+     * @return {type, name, array length} or null for empty definition
+     */
+    private static String[] parseField(String def) {
+        def = def.trim();
+        int space = def.indexOf(' ');
+        if (space < 0) {
+            return null;
+        }
+        String type = def.substring(0, space);
+        String name = def.substring(space + 1).trim();
+        String length = "1";
+        int bracket = type.indexOf('[');
+        if (bracket >= 0) {
+            length = type.substring(bracket + 1, type.indexOf(']'));
+            type = type.substring(0, bracket);
+        }
+        return new String[] {type, name, length};
+    }
+
+    /**
+     * Subscribe to topic, read() returns messages of subscribed topics only.
+     *
+     * @return topic or null if it isn't defined in the log
+     */
+    public Topic subscribe(String name) throws IOException {
+        Topic topic = subscriptions.get(name);
+        if (topic != null) {
+            return topic;
+        }
+        String format = formats.get(name);
+        if (format == null) {
+            return null;
+        }
+        topic = new Topic(name);
+        int offset = 0;
+        for (String def : format.split(";")) {
+            String[] typeName = parseField(def);
+            if (typeName == null) {
+                continue;
+            }
+            int length = Integer.parseInt(typeName[2]);
+            topic.fields.put(typeName[1], new Field(offset, typeCode(typeName[0]), length));
+            offset += typeSize(typeName[0]) * length;
+        }
+        topic.timestamp = topic.fields.get("timestamp");
+        if (topic.timestamp == null || topic.timestamp.type != UINT64) {
+            throw new IOException("ULog topic has no timestamp: " + name);
+        }
+        subscriptions.put(name, topic);
+        for (Map.Entry<Integer, String> e : loggedNames.entrySet()) {
+            if (e.getValue().equals(name) && loggedMultiIds.get(e.getKey()) == 0) {
+                setTopicById(e.getKey(), topic);
+            }
+        }
+        return topic;
+    }
+
+    private void setTopicById(int msgId, Topic topic) {
+        if (msgId >= topicsById.length) {
+            topicsById = Arrays.copyOf(topicsById, msgId + 1);
+        }
+        topicsById[msgId] = topic;
+    }
+
+    /**
+     * Read next message of subscribed topics if it's not later than the time.
+     *
+     * @param maxTime max timestamp [us]
+     * @return topic of the message, its fields can be read until the next read() or seek(), null if the next
+     * message is later or the log ended
+     */
+    public Topic read(long maxTime) throws IOException {
+        while (position + 3 <= fileSize) {
+            map(position, 3);
+            int size = window.getShort((int) (position - windowStart)) & 0xFFFF;
+            int type = window.get((int) (position - windowStart) + 2);
+            if (position + 3 + size > fileSize) {
+                break;
+            }
+            if (type == 'D' && size >= 2) {
+                map(position, 3 + size);
+                int p = (int) (position - windowStart) + 3;
+                int msgId = window.getShort(p) & 0xFFFF;
+                Topic topic = msgId < topicsById.length ? topicsById[msgId] : null;
+                if (topic != null) {
+                    if (window.getLong(p + 2 + topic.timestamp.offset) > maxTime) {
+                        return null;
+                    }
+                    current = p + 2;
+                    position += 3 + size;
+                    return topic;
+                }
+            }
+            position += 3 + size;
+        }
+        return null;
+    }
+
+    /**
+     * Move to the indexed position before the time, following read() calls skip messages up to the time.
+     *
+     * @param time timestamp [us]
+     */
+    public void seek(long time) {
+        int i = Arrays.binarySearch(indexTimes, time);
+        i = i >= 0 ? i : -i - 2;
+        position = i >= 0 ? indexOffsets[i] : dataStart;
+    }
+
+    /**
+     * @return timestamp of the current message [us]
+     */
+    public long getTimestamp(Topic topic) {
+        return window.getLong(current + topic.timestamp.offset);
+    }
+
+    public double getDouble(Field field) {
+        return getDouble(field, 0);
+    }
+
+    /**
+     * Read element of the field from the current message.
+     *
+     * @param field field handle of the topic of the current message
+     * @param index element index for array fields
+     */
+    public double getDouble(Field field, int index) {
+        if (field.type == NESTED) {
+            throw new IllegalArgumentException("Nested field can't be read as number");
+        }
+        int p = current + field.offset + index * TYPE_SIZES[field.type];
+        switch (field.type) {
+            case INT8:
+                return window.get(p);
+            case UINT8:
+                return window.get(p) & 0xFF;
+            case INT16:
+                return window.getShort(p);
+            case UINT16:
+                return window.getShort(p) & 0xFFFF;
+            case INT32:
+                return window.getInt(p);
+            case UINT32:
+                return window.getInt(p) & 0xFFFFFFFFL;
+            case INT64:
+            case UINT64:
+                return window.getLong(p);
+            case FLOAT:
+                return window.getFloat(p);
+            default:
+                return window.getDouble(p);
+        }
+    }
+
+    public long getLong(Field field) {
+        return field.type == INT64 || field.type == UINT64 ? window.getLong(current + field.offset) :
+               (long) getDouble(field, 0);
+    }
+}
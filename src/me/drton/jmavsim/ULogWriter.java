@@ -0,0 +1,144 @@
+package me.drton.jmavsim;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal ULog file writer: header, format definitions, info messages, logged topics and data messages.
+ * <p/>
+ * Messages are encoded into a buffer that is written to the file when it's full, so data messages cost no system
+ * call each. Not thread safe, meant to be used by one writer thread.
+ */
+public class ULogWriter {
+    private static final byte[] MAGIC = new byte[] {'U', 'L', 'o', 'g', 0x01, 0x12, 0x35};
+    private static final int VERSION = 1;
+    private static final int FLAG_BITS_SIZE = 40;
+    private static final int TIMESTAMP_OFFSET = 8;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private int nextMsgId = 0;
+    private boolean flushed = false;
+
+    /**
+     * Create file and write header.
+     *
+     * @param fileName   output file
+     * @param timestamp  log start timestamp [us]
+     * @param bufferSize write buffer size [bytes]
+     */
+    public ULogWriter(String fileName, long timestamp, int bufferSize) throws IOException {
+        channel = new FileOutputStream(fileName).getChannel();
+        buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 1 << 16)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.putLong(timestamp);
+        // flag bits: no compat/incompat flags, no appended data
+        begin('B', FLAG_BITS_SIZE);
+        buffer.put(new byte[FLAG_BITS_SIZE]);
+    }
+
+    private void begin(char type, int size) throws IOException {
+        if (size > 0xFFFF) {
+            throw new IllegalArgumentException("ULog message too long: " + size);
+        }
+        if (buffer.remaining() < size + 3) {
+            flush();
+        }
+        buffer.putShort((short) size);
+        buffer.put((byte) type);
+    }
+
+    /**
+     * Write format definition.
+     *
+     * @param name   message name
+     * @param fields field definitions, e.g. "uint64_t timestamp;float[3] position;"
+     */
+    public void writeFormat(String name, String fields) throws IOException {
+        byte[] b = (name + ":" + fields).getBytes(StandardCharsets.UTF_8);
+        begin('F', b.length);
+        buffer.put(b);
+    }
+
+    /**
+     * Write string info message, e.g. "sys_name".
+     */
+    public void writeInfo(String key, String value) throws IOException {
+        byte[] k = ("char[" + value.getBytes(StandardCharsets.UTF_8).length + "] " + key)
+                   .getBytes(StandardCharsets.UTF_8);
+        byte[] v = value.getBytes(StandardCharsets.UTF_8);
+        begin('I', 1 + k.length + v.length);
+        buffer.put((byte) k.length);
+        buffer.put(k);
+        buffer.put(v);
+    }
+
+    /**
+     * Start logging of a defined format, first instance.
+     *
+     * @return msg_id for data messages
+     */
+    public int addLogged(String name) throws IOException {
+        byte[] b = name.getBytes(StandardCharsets.UTF_8);
+        int msgId = nextMsgId++;
+        begin('A', 3 + b.length);
+        buffer.put((byte) 0);
+        buffer.putShort((short) msgId);
+        buffer.put(b);
+        return msgId;
+    }
+
+    /**
+     * Start data message, its fields must be put into the returned buffer in the order of the format definition,
+     * starting with the uint64 timestamp.
+     *
+     * @param msgId msg_id returned by addLogged()
+     * @param size  data size without msg_id [bytes]
+     * @return little endian buffer to put the data into
+     */
+    public ByteBuffer beginData(int msgId, int size) throws IOException {
+        begin('D', size + 2);
+        buffer.putShort((short) msgId);
+        return buffer;
+    }
+
+    /**
+     * Overwrite log start timestamp of the header, e.g. with the timestamp of the first data message when it isn't
+     * known at creation.
+     *
+     * @param timestamp log start timestamp [us]
+     */
+    public void setTimestamp(long timestamp) throws IOException {
+        if (!flushed) {
+            buffer.putLong(TIMESTAMP_OFFSET, timestamp);
+            return;
+        }
+        ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        b.putLong(0, timestamp);
+        while (b.hasRemaining()) {
+            channel.write(b, TIMESTAMP_OFFSET + b.position());
+        }
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        flushed = true;
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -1198,6 +1198,40 @@ public class Visualizer3D extends JFrame {
                     simulator.pauseToggle();
                     break;
 
+                // Dump black box
+                case KeyEvent.VK_B :
+                    simulator.dumpBlackBox();
+                    break;
+
+                // Log replay controls
+                case KeyEvent.VK_COMMA :
+                    simulator.seekReplay(-Simulator.REPLAY_SEEK_STEP);
+                    break;
+
+                case KeyEvent.VK_PERIOD :
+                    simulator.seekReplay(Simulator.REPLAY_SEEK_STEP);
+                    break;
+
+                case KeyEvent.VK_OPEN_BRACKET :
+                    simulator.stepReplay(-1);
+                    break;
+
+                case KeyEvent.VK_CLOSE_BRACKET :
+                    simulator.stepReplay(1);
+                    break;
+
+                case KeyEvent.VK_J :
+                    simulator.scaleReplaySpeed(0.5);
+                    break;
+
+                case KeyEvent.VK_L :
+                    simulator.scaleReplaySpeed(2.0);
+                    break;
+
+                case KeyEvent.VK_K :
+                    simulator.reverseReplay();
+                    break;
+
                 // exit app
                 case KeyEvent.VK_ESCAPE :
                     dispatchEvent(new WindowEvent(getWindows()[0], WindowEvent.WINDOW_CLOSING));
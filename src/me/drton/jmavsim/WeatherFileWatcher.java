@@ -0,0 +1,92 @@
+package me.drton.jmavsim;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Watches weather file and reloads WeatherProvider schedule when the file changes.
+ * <p/>
+ * The file is parsed in the watcher thread, the simulation thread only picks up the compiled schedule
+ * at the next tick. If the new file is invalid the old schedule stays in use.
+ */
+public class WeatherFileWatcher {
+    private static final long SETTLE_TIME = 200;  // [ms] coalesce events of one save
+
+    private final WeatherProvider provider;
+    private final Path file;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    public WeatherFileWatcher(String fileName, WeatherProvider provider) throws IOException {
+        this.provider = provider;
+        this.file = Paths.get(fileName).toAbsolutePath();
+        Path dir = file.getParent();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        // editors often replace the file instead of writing it, so watch the directory
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(new Watcher(), "WeatherFileWatcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean isWeatherFileEvent(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (context instanceof Path && file.getFileName().equals(context)) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload() {
+        try {
+            WeatherSchedule schedule = WeatherSchedule.fromFile(file.toString());
+            provider.reloadSchedule(schedule);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Weather file reload failed, keeping previous schedule: " + e.getMessage());
+        }
+    }
+
+    private class Watcher implements Runnable {
+        public void run() {
+            try {
+                while (true) {
+                    boolean changed = isWeatherFileEvent(watchService.take());
+                    if (!changed) {
+                        continue;
+                    }
+                    // wait until writing is finished, drain the rest of events
+                    Thread.sleep(SETTLE_TIME);
+                    WatchKey key;
+                    while ((key = watchService.poll()) != null) {
+                        isWeatherFileEvent(key);
+                    }
+                    reload();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // watcher closed
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ import java.io.BufferedReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReference;
 import java.io.File;
 import java.io.FileReader;
 import javax.json.Json;
@@ -22,23 +23,24 @@ import javax.json.JsonObjectBuilder;
 import java.io.StringReader;
 
 
-public class WeatherProvider implements ReportingObject, MissionDataConsumer {
-    private static final String WIND_KEY = "wind";
-    private static final String TEMP_KEY = "temperature";
-    private static final Vector3d NO_WIND = new Vector3d();
+public class WeatherProvider implements WeatherSource {
+    private static final String WIND_KEY = WeatherSchedule.WIND_KEY;
+    private static final String TEMP_KEY = WeatherSchedule.TEMP_KEY;
     private static final double STANDARD_TEMPERATURE = 25.0;
     private static final String LINE = "================";
     
     private AbstractVehicle vehicle;
-    private Vector3d currentWind = NO_WIND;
-    private Vector3d lastWindSetpoint = NO_WIND;
+    private final Vector3d currentWind = new Vector3d();
     private double currentTemp = STANDARD_TEMPERATURE;
-    private double lastTemperatureSetpoint = STANDARD_TEMPERATURE;
     private int currentSeq = -1;
-    private Vector3d waypointLocation = new Vector3d(-1,-1,-1);
+    private final Vector3d waypointLocation = new Vector3d(-1,-1,-1);
     private double initialDistance = 0;
+    private double invInitialDistance = 0;
 
-    private JsonObject obj;
+    private WeatherSchedule schedule;
+    // schedule waiting to be swapped in at the next tick, set from the reloader thread
+    private final AtomicReference<WeatherSchedule> pendingSchedule = new AtomicReference<WeatherSchedule>();
+    private int scheduleReloads = 0;
 
     private static JsonArray windTriplet(double x, double y, double z) {
         JsonArrayBuilder builder = Json.createArrayBuilder();
@@ -66,13 +68,13 @@ public class WeatherProvider implements ReportingObject, MissionDataConsumer {
     }
 
     public WeatherProvider(AbstractVehicle vehicle) {
-        this.obj = null;
+        this.schedule = WeatherSchedule.empty();
         this.vehicle = vehicle;
     }
 
     public WeatherProvider(String fileHandle, AbstractVehicle vehicle) {
-        try (JsonReader jsonReader = Json.createReader(new FileReader(new File(fileHandle)))){
-            this.obj = jsonReader.readObject();
+        try {
+            this.schedule = WeatherSchedule.fromFile(fileHandle);
             this.vehicle = vehicle;
         } catch (Exception e) {
             System.out.println("Error in processing weather file. Mission items not initialised!");
@@ -80,88 +82,48 @@ public class WeatherProvider implements ReportingObject, MissionDataConsumer {
             System.exit(-42);
         }
     }
-    
-    private Vector3d windDataforSeq(int seq) {
-        if (this.obj == null) {  return NO_WIND; }
-        if (seq >= 0) {
-            try {
-                JsonArray winds = obj.getJsonArray(WIND_KEY);
-                    
-                if (seq >= winds.size()) {
-                    System.out.println("Sequence number ("+seq+") not present for wind data. Size "+winds.size());
-                    return NO_WIND;
-                } 
-    
-                List<JsonNumber> winds_d = winds.getJsonArray(seq).getValuesAs(JsonNumber.class);
-                return new Vector3d(winds_d.get(0).doubleValue(), winds_d.get(1).doubleValue(), winds_d.get(2).doubleValue());
-    
-            } catch(Exception e) {
-                System.out.print("Failed in reading wind data");
-                System.out.print(e);
-            } 
-        } return NO_WIND;
-    }
-
-    private double temperatureDataFromSeq(int seq) {
-        if (this.obj == null) {  return STANDARD_TEMPERATURE; }
-        if (seq >= 0) {
-            try {
-                JsonArray temps = obj.getJsonArray(TEMP_KEY);
-                
-                if (seq >= temps.size() || seq < 0) {
-                    System.out.println("Sequence number ("+seq+") not present for temperature data. Size "+temps.size());
-                    return STANDARD_TEMPERATURE;
-                } 
-
-                return temps.getJsonNumber(seq).doubleValue();
-
-            } catch(Exception e) {
-                System.out.print("Failed in reading temperature data");
-                System.out.print(e);
-            }
-         } return STANDARD_TEMPERATURE;
-    }
 
-    private double interpolateScalar(double a, double b, double completion) {
-        return (1-completion) * a + completion * b;
+    public WeatherSchedule getSchedule() {
+        return schedule;
     }
 
-    private Vector3d interpolateVectors(Vector3d a, Vector3d b, double completion) {
-        return new Vector3d(
-            this.interpolateScalar(a.x, b.x, completion),
-            this.interpolateScalar(a.y, b.y, completion),
-            this.interpolateScalar(a.z, b.z, completion)
-        );
+    /**
+     * Replace weather schedule, e.g. after the weather file has been changed.
+     * May be called from any thread, the schedule is swapped in at the next updateWeather().
+     * Progress of the current mission leg is kept.
+     */
+    public void reloadSchedule(WeatherSchedule schedule) {
+        pendingSchedule.set(schedule);
     }
 
+    @Override
     public double getTemperature() {
-        if (initialDistance == 0) return this.temperatureDataFromSeq(this.currentSeq);
         return currentTemp;
     }
 
+    /**
+     * Get current wind setpoint.
+     * The returned vector is updated in place on every updateWeather(), copy it if it needs to be kept.
+     */
+    @Override
     public Vector3d getWind() {
-        if (initialDistance == 0) return this.windDataforSeq(this.currentSeq);
         return currentWind;
     }
 
-    private double euclideanDistance(Vector3d a, Vector3d b) {
-        // Horizontal distance only
-        return Math.sqrt(Math.pow(a.x - b.x, 2) + Math.pow(a.y - b.y, 2) + Math.pow(a.z - b.z, 2));
-    }
-
     private double getLegCompletion() {
         if (initialDistance < 0.1) return 0;
-        double distance = this.euclideanDistance(vehicle.getPosition(), this.waypointLocation);
-        return Math.min(Math.max(1 - (distance / this.initialDistance), 0), 1.0);
+        Vector3d p = vehicle.getPosition();
+        double dx = p.x - waypointLocation.x;
+        double dy = p.y - waypointLocation.y;
+        double dz = p.z - waypointLocation.z;
+        double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        return Math.min(Math.max(1 - (distance * this.invInitialDistance), 0), 1.0);
     }
 
     @Override
     public void missionDataUpdated(int seq, Vector3d wpLocation, LatLonAlt globalPosition) {
         if (currentSeq < seq && Math.abs(wpLocation.x) < 100000 && Math.abs(wpLocation.y) < 100000) {
 
-            this.lastWindSetpoint = seq > 0 ? this.windDataforSeq(seq - 1) : NO_WIND;
-            this.lastTemperatureSetpoint =  seq > 0 ? this.temperatureDataFromSeq(seq - 1) : STANDARD_TEMPERATURE;
-            
             Vector3d position = this.vehicle.getPosition();
             Vector3d localWpPosition = wpLocation;
             
@@ -171,10 +133,22 @@ public class WeatherProvider implements ReportingObject, MissionDataConsumer {
             }
             
             this.currentSeq = seq;
+            // Leg geometry is computed once here, updateWeather() only needs the distance to the waypoint
+            double dx = position.x - localWpPosition.x;
+            double dy = position.y - localWpPosition.y;
+            double dz = position.z - localWpPosition.z;
             // *0.9 to account for acceptance radius (Drone won't traverse the waypoint exactly most of the time)
-            this.initialDistance = this.euclideanDistance(position, localWpPosition) * 0.9;
-            this.waypointLocation = localWpPosition;
-            
+            this.initialDistance = Math.sqrt(dx * dx + dy * dy + dz * dz) * 0.9;
+            this.invInitialDistance = this.initialDistance > 0 ? 1.0 / this.initialDistance : 0;
+            this.waypointLocation.set(localWpPosition);
+
+            if (!schedule.hasWind(seq)) {
+                System.out.println("Sequence number ("+seq+") not present for wind data. Size "+schedule.getWindCount());
+            }
+            if (!schedule.hasTemperature(seq)) {
+                System.out.println("Sequence number ("+seq+") not present for temperature data. Size "+schedule.getTemperatureCount());
+            }
+
             // DEBUG PRINTS ---
             System.out.println(String.format("Global position alt %f", globalPosition.alt));
             System.out.println(String.format("Drone position %f %f %f", position.x, position.y, position.z));
@@ -187,8 +161,6 @@ public class WeatherProvider implements ReportingObject, MissionDataConsumer {
     @Override
     public void report(StringBuilder builder) {
         
-        Vector3d windSetpoint = this.windDataforSeq(this.currentSeq);
-        double tempSetpoint = this.temperatureDataFromSeq(this.currentSeq);
         builder.append("Weather Provider");
         builder.append(newLine);
         builder.append(LINE);
@@ -197,27 +169,55 @@ public class WeatherProvider implements ReportingObject, MissionDataConsumer {
         builder.append(newLine);
         builder.append(String.format("Mission leg completion: %f", this.getLegCompletion()));
         builder.append(newLine);
+        builder.append(String.format("Schedule reloads: %d", this.scheduleReloads));
+        builder.append(newLine);
         
         builder.append(LINE);
         builder.append(newLine);
-        builder.append(String.format("Wind setpoint: %f %f %f", windSetpoint.x, windSetpoint.y, windSetpoint.z));
+        builder.append(String.format("Wind setpoint: %f %f %f", schedule.windX(currentSeq), schedule.windY(currentSeq), schedule.windZ(currentSeq)));
         builder.append(newLine);
         builder.append(String.format("Current wind: %f %f %f", currentWind.x, currentWind.y, currentWind.z));
         builder.append(newLine);
         builder.append(LINE);
         builder.append(newLine);
-        builder.append(String.format("Temperature setpoint: %f", tempSetpoint));
+        builder.append(String.format("Temperature setpoint: %f", schedule.temperature(currentSeq, STANDARD_TEMPERATURE)));
         builder.append(newLine);
         builder.append(String.format("Current temperature: %f", currentTemp));
         builder.append(newLine);
         builder.append(newLine);
     }
 
-    void updateWeather() {
-        double newTemp = this.interpolateScalar(this.lastTemperatureSetpoint, this.temperatureDataFromSeq(this.currentSeq), this.getLegCompletion());
-        this.currentTemp = newTemp;
-        
-        Vector3d newWind = this.interpolateVectors(this.lastWindSetpoint, this.windDataforSeq(this.currentSeq), this.getLegCompletion());
-        this.currentWind = newWind;
+    /**
+     * Interpolate wind and temperature between the setpoints of the previous and the current mission item.
+     * Only reads primitive arrays of the compiled schedule, doesn't allocate.
+     */
+    @Override
+    public void updateWeather(long t) {
+        WeatherSchedule pending = pendingSchedule.getAndSet(null);
+        if (pending != null) {
+            this.schedule = pending;
+            this.scheduleReloads++;
+            System.out.println("Weather schedule reloaded (" + pending.getWindCount() + " wind, " +
+                               pending.getTemperatureCount() + " temperature setpoints)");
+        }
+        WeatherSchedule s = this.schedule;
+        int seq = this.currentSeq;
+        if (initialDistance == 0) {
+            // no leg started yet, use setpoint of current item directly
+            currentWind.set(s.windX(seq), s.windY(seq), s.windZ(seq));
+            currentTemp = s.temperature(seq, STANDARD_TEMPERATURE);
+            return;
+        }
+        double c = this.getLegCompletion();
+        double lastTemp = seq > 0 ? s.temperature(seq - 1, STANDARD_TEMPERATURE) : STANDARD_TEMPERATURE;
+        this.currentTemp = this.interpolateScalar(lastTemp, s.temperature(seq, STANDARD_TEMPERATURE), c);
+        // windX() etc. return zero for seq - 1 < 0
+        currentWind.x = this.interpolateScalar(s.windX(seq - 1), s.windX(seq), c);
+        currentWind.y = this.interpolateScalar(s.windY(seq - 1), s.windY(seq), c);
+        currentWind.z = this.interpolateScalar(s.windZ(seq - 1), s.windZ(seq), c);
+    }
+
+    private double interpolateScalar(double a, double b, double completion) {
+        return (1-completion) * a + completion * b;
     }
 }
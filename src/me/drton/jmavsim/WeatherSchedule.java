@@ -0,0 +1,129 @@
+package me.drton.jmavsim;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Wind and temperature setpoints per mission item, compiled once from the weather JSON into primitive arrays.
+ * Lookups by mission sequence number are plain array reads, no JSON access or allocation at runtime.
+ * Immutable, so a new schedule can be swapped in while the simulation is running.
+ * <p/>
+ * JSON format: {"wind": [[x, y, z], ...], "temperature": [t, ...]}, wind in [m/s] NED, temperature in [C].
+ */
+public final class WeatherSchedule {
+    public static final String WIND_KEY = "wind";
+    public static final String TEMP_KEY = "temperature";
+
+    private final double[] windX;
+    private final double[] windY;
+    private final double[] windZ;
+    private final double[] temperature;
+
+    private WeatherSchedule(double[] windX, double[] windY, double[] windZ, double[] temperature) {
+        this.windX = windX;
+        this.windY = windY;
+        this.windZ = windZ;
+        this.temperature = temperature;
+    }
+
+    /**
+     * Schedule without any setpoints.
+     */
+    public static WeatherSchedule empty() {
+        return new WeatherSchedule(new double[0], new double[0], new double[0], new double[0]);
+    }
+
+    /**
+     * Compile weather JSON object.
+     *
+     * @throws IllegalArgumentException if the object doesn't follow the weather file format
+     */
+    public static WeatherSchedule fromJSONObject(JsonObject obj) {
+        try {
+            JsonArray winds = obj.getJsonArray(WIND_KEY);
+            JsonArray temps = obj.getJsonArray(TEMP_KEY);
+            int windCount = winds != null ? winds.size() : 0;
+            int tempCount = temps != null ? temps.size() : 0;
+
+            double[] windX = new double[windCount];
+            double[] windY = new double[windCount];
+            double[] windZ = new double[windCount];
+            for (int i = 0; i < windCount; i++) {
+                JsonArray w = winds.getJsonArray(i);
+                if (w.size() < 3) {
+                    throw new IllegalArgumentException("Wind entry #" + i + " needs 3 components");
+                }
+                windX[i] = w.getJsonNumber(0).doubleValue();
+                windY[i] = w.getJsonNumber(1).doubleValue();
+                windZ[i] = w.getJsonNumber(2).doubleValue();
+            }
+
+            double[] temperature = new double[tempCount];
+            for (int i = 0; i < tempCount; i++) {
+                temperature[i] = temps.getJsonNumber(i).doubleValue();
+            }
+            return new WeatherSchedule(windX, windY, windZ, temperature);
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Invalid weather data: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read and compile weather file.
+     *
+     * @throws IOException if the file can't be read or parsed
+     */
+    public static WeatherSchedule fromFile(String fileName) throws IOException {
+        try (JsonReader jsonReader = Json.createReader(new FileReader(new File(fileName)))) {
+            return fromJSONObject(jsonReader.readObject());
+        } catch (RuntimeException e) {
+            throw new IOException("Could not parse weather file " + fileName + ": " + e.getMessage(), e);
+        }
+    }
+
+    public int getWindCount() {
+        return windX.length;
+    }
+
+    public int getTemperatureCount() {
+        return temperature.length;
+    }
+
+    public boolean hasWind(int seq) {
+        return seq >= 0 && seq < windX.length;
+    }
+
+    public boolean hasTemperature(int seq) {
+        return seq >= 0 && seq < temperature.length;
+    }
+
+    /**
+     * Wind setpoint components for mission item, zero if not present.
+     */
+    public double windX(int seq) {
+        return hasWind(seq) ? windX[seq] : 0.0;
+    }
+
+    public double windY(int seq) {
+        return hasWind(seq) ? windY[seq] : 0.0;
+    }
+
+    public double windZ(int seq) {
+        return hasWind(seq) ? windZ[seq] : 0.0;
+    }
+
+    /**
+     * Temperature setpoint for mission item.
+     *
+     * @param defaultValue value returned if the mission item has no temperature
+     */
+    public double temperature(int seq, double defaultValue) {
+        return hasTemperature(seq) ? temperature[seq] : defaultValue;
+    }
+}
@@ -0,0 +1,26 @@
+package me.drton.jmavsim;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Source of wind and temperature setpoints used by the environment.
+ */
+public interface WeatherSource extends ReportingObject, MissionDataConsumer {
+    /**
+     * Advance weather to the given simulation time. Called once per tick by the environment.
+     *
+     * @param t simulation time [ms]
+     */
+    void updateWeather(long t);
+
+    /**
+     * Get current wind setpoint in NED frame [m/s].
+     * The returned vector may be reused by the source, copy it if it needs to be kept.
+     */
+    Vector3d getWind();
+
+    /**
+     * Get current temperature [C].
+     */
+    double getTemperature();
+}
@@ -0,0 +1,232 @@
+package me.drton.jmavsim;
+
+import javax.vecmath.Vector3d;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Gridded 4D (x, y, z, t) wind field, memory mapped from a binary file.
+ * <p/>
+ * Wind is interpolated trilinearly in space and linearly in time. Points outside the grid use the nearest grid
+ * value, time is clamped to the covered interval. Each query goes through a Cursor that caches the 16 grid values
+ * of its current cell (8 corners at 2 time slices), so consecutive queries of a vehicle moving inside one cell
+ * don't touch the mapped file at all and cost a few multiplications.
+ * <p/>
+ * File format, big endian:
+ * <pre>
+ * int   magic "JMWF", int version (1)
+ * int   nx, ny, nz, nt
+ * double x0, y0, z0      grid origin in NED frame [m]
+ * double dx, dy, dz      grid spacing [m]
+ * double t0, dt          time of first slice and slice interval [s]
+ * float  wind[nt][nz][ny][nx][3]   wind vector in NED frame [m/s]
+ * </pre>
+ */
+public class WindField {
+    public static final int MAGIC = 0x4A4D5746;  // "JMWF"
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 6 + 8 * 8;
+
+    private final String fileName;
+    private final FloatBuffer data;
+    private final int nx, ny, nz, nt;
+    private final double x0, y0, z0, t0;
+    private final double invDx, invDy, invDz, invDt;
+    // strides in floats
+    private final int strideY, strideZ, strideT;
+
+    /**
+     * Per-vehicle query state: the cached cell and its grid values.
+     * A cursor must be used by one thread only.
+     */
+    public static final class Cursor {
+        private int ix = -1, iy = -1, iz = -1, it = -1;
+        // [time slice][corner][component], corner bits: x | y << 1 | z << 2
+        private final float[] corners = new float[2 * 8 * 3];
+        private final Vector3d result = new Vector3d();
+        private long cellChanges = 0;
+
+        /**
+         * Number of times the cursor moved to another cell, for diagnostics.
+         */
+        public long getCellChanges() {
+            return cellChanges;
+        }
+    }
+
+    /**
+     * Map wind field file.
+     *
+     * @throws IOException if the file can't be read or has invalid format
+     */
+    public WindField(String fileName) throws IOException {
+        this.fileName = fileName;
+        try (RandomAccessFile file = new RandomAccessFile(new File(fileName), "r");
+                FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Wind field file too short: " + fileName);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Wind field file larger than 2 GB is not supported: " + fileName);
+            }
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Unknown wind field format: " + fileName);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported wind field version " + version + ": " + fileName);
+            }
+            nx = buffer.getInt();
+            ny = buffer.getInt();
+            nz = buffer.getInt();
+            nt = buffer.getInt();
+            x0 = buffer.getDouble();
+            y0 = buffer.getDouble();
+            z0 = buffer.getDouble();
+            double dx = buffer.getDouble();
+            double dy = buffer.getDouble();
+            double dz = buffer.getDouble();
+            t0 = buffer.getDouble();
+            double dt = buffer.getDouble();
+            if (nx < 1 || ny < 1 || nz < 1 || nt < 1) {
+                throw new IOException("Invalid wind field dimensions " + nx + "x" + ny + "x" + nz + "x" + nt);
+            }
+            if (!(dx > 0.0 && dy > 0.0 && dz > 0.0 && (dt > 0.0 || nt == 1))) {
+                throw new IOException("Wind field spacing must be positive");
+            }
+            long values = 3L * nx * ny * nz * nt;
+            if (HEADER_SIZE + values * 4 != size) {
+                throw new IOException("Wind field size mismatch, expected " + (HEADER_SIZE + values * 4) +
+                                      " bytes, got " + size);
+            }
+            invDx = 1.0 / dx;
+            invDy = 1.0 / dy;
+            invDz = 1.0 / dz;
+            invDt = nt > 1 ? 1.0 / dt : 0.0;
+            strideY = 3 * nx;
+            strideZ = strideY * ny;
+            strideT = strideZ * nz;
+            buffer.position(HEADER_SIZE);
+            data = buffer.slice().asFloatBuffer();
+        }
+    }
+
+    public Cursor createCursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Get wind in point.
+     *
+     * @param cursor query state of the caller
+     * @param point  point in NED frame
+     * @param time   time [s]
+     * @return wind vector, owned by the cursor and overwritten by its next query
+     */
+    public Vector3d getWind(Cursor cursor, Vector3d point, double time) {
+        return getWind(cursor, point.x, point.y, point.z, time);
+    }
+
+    public Vector3d getWind(Cursor cursor, double x, double y, double z, double time) {
+        double gx = clamp((x - x0) * invDx, nx);
+        double gy = clamp((y - y0) * invDy, ny);
+        double gz = clamp((z - z0) * invDz, nz);
+        double gt = clamp((time - t0) * invDt, nt);
+        int ix = cellIndex(gx, nx);
+        int iy = cellIndex(gy, ny);
+        int iz = cellIndex(gz, nz);
+        int it = cellIndex(gt, nt);
+        if (ix != cursor.ix || iy != cursor.iy || iz != cursor.iz || it != cursor.it) {
+            loadCell(cursor, ix, iy, iz, it);
+        }
+        double fx = gx - ix;
+        double fy = gy - iy;
+        double fz = gz - iz;
+        double ft = gt - it;
+
+        float[] c = cursor.corners;
+        double rx = 0.0, ry = 0.0, rz = 0.0;
+        for (int s = 0; s < 2; s++) {
+            double ws = s == 0 ? 1.0 - ft : ft;
+            if (ws == 0.0) {
+                continue;
+            }
+            for (int k = 0; k < 8; k++) {
+                double w = ws * ((k & 1) != 0 ? fx : 1.0 - fx) * ((k & 2) != 0 ? fy : 1.0 - fy) *
+                           ((k & 4) != 0 ? fz : 1.0 - fz);
+                int i = (s * 8 + k) * 3;
+                rx += w * c[i];
+                ry += w * c[i + 1];
+                rz += w * c[i + 2];
+            }
+        }
+        cursor.result.set(rx, ry, rz);
+        return cursor.result;
+    }
+
+    /**
+     * Get wind for many points at once.
+     *
+     * @param cursors one cursor per point, keeps cell caches of the individual vehicles
+     * @param points  points in NED frame
+     * @param count   number of points to query
+     * @param time    time [s]
+     * @param result  wind vectors are written to result[0..count-1]
+     */
+    public void getWind(Cursor[] cursors, Vector3d[] points, int count, double time, Vector3d[] result) {
+        for (int i = 0; i < count; i++) {
+            result[i].set(getWind(cursors[i], points[i], time));
+        }
+    }
+
+    private void loadCell(Cursor cursor, int ix, int iy, int iz, int it) {
+        int sx = nx > 1 ? 3 : 0;
+        int sy = ny > 1 ? strideY : 0;
+        int sz = nz > 1 ? strideZ : 0;
+        int st = nt > 1 ? strideT : 0;
+        int base = it * strideT + iz * strideZ + iy * strideY + ix * 3;
+        float[] c = cursor.corners;
+        for (int s = 0; s < 2; s++) {
+            for (int k = 0; k < 8; k++) {
+                int src = base + s * st + ((k & 1) != 0 ? sx : 0) + ((k & 2) != 0 ? sy : 0) +
+                          ((k & 4) != 0 ? sz : 0);
+                int dst = (s * 8 + k) * 3;
+                c[dst] = data.get(src);
+                c[dst + 1] = data.get(src + 1);
+                c[dst + 2] = data.get(src + 2);
+            }
+        }
+        cursor.ix = ix;
+        cursor.iy = iy;
+        cursor.iz = iz;
+        cursor.it = it;
+        cursor.cellChanges++;
+    }
+
+    private static double clamp(double g, int n) {
+        return g < 0.0 ? 0.0 : (g > n - 1 ? n - 1 : g);
+    }
+
+    private static int cellIndex(double g, int n) {
+        // lower corner of the cell, last cell includes its upper boundary
+        return n > 1 ? Math.min((int) g, n - 2) : 0;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %dx%dx%d cells, %d time slices", fileName, nx, ny, nz, nt);
+    }
+}
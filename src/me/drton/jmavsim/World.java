@@ -12,6 +12,7 @@ public class World {
     private List<WorldObject> objects = new ArrayList<WorldObject>();
     private Environment environment = null;
     private LatLonAlt globalReference = new LatLonAlt(0.0, 0.0, 0.0);
+    private BlackBox blackBox = null;
 
     public void addObject(WorldObject obj) {
         objects.add(obj);
@@ -28,9 +29,23 @@ public class World {
         return environment;
     }
 
+    /**
+     * Set black box that is dumped if an update fails.
+     */
+    public void setBlackBox(BlackBox blackBox) {
+        this.blackBox = blackBox;
+    }
+
     public synchronized void update(long t, boolean paused) {
-        for (WorldObject obj : objects) {
-            obj.update(t, paused);
+        try {
+            for (WorldObject obj : objects) {
+                obj.update(t, paused);
+            }
+        } catch (RuntimeException e) {
+            if (blackBox != null) {
+                blackBox.dump("exception " + e.getClass().getSimpleName());
+            }
+            throw e;
         }
     }
 
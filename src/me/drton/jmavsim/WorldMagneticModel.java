@@ -0,0 +1,364 @@
+package me.drton.jmavsim;
+
+import javax.vecmath.Vector3d;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Offline World Magnetic Model, spherical harmonic evaluation of the main field.
+ * <p/>
+ * Coefficients are read from a standard NOAA .COF file, the bundled one is environment/WMM.COF and can be replaced
+ * by a newer release. A model is valid for VALIDITY years from its epoch, a warning is printed for dates outside.
+ * Evaluation follows the reference implementation: geodetic to geocentric conversion, recursive associated Legendre
+ * functions, rotation back to the geodetic frame. It costs a few thousand flops, so for the simulation loop the field
+ * is sampled into a MagneticFieldGrid.
+ */
+public class WorldMagneticModel {
+    public static final String DEFAULT_COEFFICIENTS_FILE = "environment/WMM.COF";
+    public static final double VALIDITY = 5.0;  // [years]
+    private static final int MAX_PARENT_DIRS = 3;
+
+    private static final double A = 6378.137;        // WGS84 semi-major axis [km]
+    private static final double B = 6356.7523142;    // WGS84 semi-minor axis [km]
+    private static final double RE = 6371.2;         // geomagnetic reference radius [km]
+    private static final double A2 = A * A;
+    private static final double B2 = B * B;
+    private static final double C2 = A2 - B2;
+    private static final double A4 = A2 * A2;
+    private static final double B4 = B2 * B2;
+    private static final double C4 = A4 - B4;
+    private static final double NT_TO_GAUSS = 1e-5;
+
+    private final int maxOrder;
+    private final double epoch;
+    private final String name;
+    // Schmidt quasi-normalized coefficients converted to unnormalized, g in c[m][n], h in c[n][m-1]
+    private final double[][] c;
+    private final double[][] cd;
+    private final double[][] k;
+    private final double[] fn;
+    private final double[] fm;
+
+    // evaluation scratch
+    private final double[][] p;
+    private final double[][] dp;
+    private final double[][] tc;
+    private final double[] pp;
+    private final double[] sp;
+    private final double[] cp;
+    private boolean validityWarned = false;
+
+    /**
+     * Load coefficients file, relative paths are resolved as by openResource().
+     *
+     * @throws IOException if the file can't be read or parsed
+     */
+    public WorldMagneticModel(String fileName) throws IOException {
+        int maxN = 0;
+        double fileEpoch = 0.0;
+        String fileModel = "";
+        double[][] g = new double[13][13];
+        double[][] h = new double[13][13];
+        double[][] gd = new double[13][13];
+        double[][] hd = new double[13][13];
+        try (BufferedReader reader = openResource(fileName)) {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Empty magnetic model file " + fileName);
+            }
+            String[] header = line.trim().split("\\s+");
+            fileEpoch = Double.parseDouble(header[0]);
+            fileModel = header.length > 1 ? header[1] : "";
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("9999")) {
+                    break;
+                }
+                String[] cols = line.split("\\s+");
+                if (cols.length < 6) {
+                    throw new IOException("Invalid magnetic model line: " + line);
+                }
+                int n = Integer.parseInt(cols[0]);
+                int m = Integer.parseInt(cols[1]);
+                if (n < 1 || m < 0 || m > n) {
+                    throw new IOException("Invalid degree/order in magnetic model line: " + line);
+                }
+                if (n >= g.length) {
+                    g = grow(g, n + 1);
+                    h = grow(h, n + 1);
+                    gd = grow(gd, n + 1);
+                    hd = grow(hd, n + 1);
+                }
+                g[n][m] = Double.parseDouble(cols[2]);
+                h[n][m] = Double.parseDouble(cols[3]);
+                gd[n][m] = Double.parseDouble(cols[4]);
+                hd[n][m] = Double.parseDouble(cols[5]);
+                maxN = Math.max(maxN, n);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number in magnetic model file " + fileName + ": " + e.getMessage());
+        }
+        if (maxN == 0) {
+            throw new IOException("No coefficients in magnetic model file " + fileName);
+        }
+
+        maxOrder = maxN;
+        epoch = fileEpoch;
+        name = fileModel;
+        int size = maxOrder + 1;
+        c = new double[size][size];
+        cd = new double[size][size];
+        k = new double[size][size];
+        fn = new double[size];
+        fm = new double[size];
+        p = new double[size][size];
+        dp = new double[size][size];
+        tc = new double[size][size];
+        pp = new double[size];
+        sp = new double[size];
+        cp = new double[size];
+
+        for (int n = 1; n <= maxOrder; n++) {
+            for (int m = 0; m <= n; m++) {
+                c[m][n] = g[n][m];
+                cd[m][n] = gd[n][m];
+                if (m != 0) {
+                    c[n][m - 1] = h[n][m];
+                    cd[n][m - 1] = hd[n][m];
+                }
+            }
+        }
+
+        // convert Schmidt normalized Gauss coefficients to unnormalized
+        double[][] snorm = new double[size][size];
+        snorm[0][0] = 1.0;
+        for (int n = 1; n <= maxOrder; n++) {
+            snorm[0][n] = snorm[0][n - 1] * (2.0 * n - 1) / n;
+            double j = 2.0;
+            for (int m = 0; m <= n; m++) {
+                k[m][n] = (double)((n - 1) * (n - 1) - m * m) / ((2.0 * n - 1) * (2.0 * n - 3.0));
+                if (m > 0) {
+                    double flnmj = ((n - m + 1.0) * j) / (n + m);
+                    snorm[m][n] = snorm[m - 1][n] * Math.sqrt(flnmj);
+                    j = 1.0;
+                    c[n][m - 1] = snorm[m][n] * c[n][m - 1];
+                    cd[n][m - 1] = snorm[m][n] * cd[n][m - 1];
+                }
+                c[m][n] = snorm[m][n] * c[m][n];
+                cd[m][n] = snorm[m][n] * cd[m][n];
+            }
+            fn[n] = n + 1;
+            fm[n] = n;
+        }
+        k[0][1] = 0.0;
+    }
+
+    /**
+     * Open bundled file: relative to the working directory, next to the jar or classes directory (or up to
+     * MAX_PARENT_DIRS above it, e.g. the project root for out/production/jmavsim.jar) or from the classpath.
+     *
+     * @throws IOException if the file is not found in any of the locations
+     */
+    static BufferedReader openResource(String fileName) throws IOException {
+        File file = new File(fileName);
+        if (file.isAbsolute() || file.isFile()) {
+            return new BufferedReader(new FileReader(file));
+        }
+        File dir = null;
+        try {
+            dir = new File(WorldMagneticModel.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (dir.isFile()) {
+                dir = dir.getParentFile();
+            }
+        } catch (Exception ignored) {
+            // no code source location, e.g. restricted by security manager
+        }
+        for (int i = 0; dir != null && i <= MAX_PARENT_DIRS; i++, dir = dir.getParentFile()) {
+            File candidate = new File(dir, fileName);
+            if (candidate.isFile()) {
+                return new BufferedReader(new FileReader(candidate));
+            }
+        }
+        String resource = "/" + fileName.replace(File.separatorChar, '/');
+        InputStream in = WorldMagneticModel.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Magnetic model file " + fileName + " not found");
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+    }
+
+    private static double[][] grow(double[][] a, int size) {
+        double[][] r = new double[size][size];
+        for (int i = 0; i < a.length; i++) {
+            System.arraycopy(a[i], 0, r[i], 0, a[i].length);
+        }
+        return r;
+    }
+
+    public double getEpoch() {
+        return epoch;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if the decimal year is in the validity window [epoch, epoch + VALIDITY) of the model
+     */
+    public boolean isValid(double year) {
+        return year >= epoch && year < epoch + VALIDITY;
+    }
+
+    /**
+     * Get current date as decimal year.
+     */
+    public static double currentDecimalYear() {
+        GregorianCalendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        int year = cal.get(Calendar.YEAR);
+        double days = cal.isLeapYear(year) ? 366.0 : 365.0;
+        double dayOfYear = cal.get(Calendar.DAY_OF_YEAR) - 1 + cal.get(Calendar.HOUR_OF_DAY) / 24.0;
+        return year + dayOfYear / days;
+    }
+
+    /**
+     * Evaluate magnetic field.
+     *
+     * @param lat    geodetic latitude [deg]
+     * @param lon    longitude [deg]
+     * @param alt    height above WGS84 ellipsoid [m]
+     * @param year   decimal year
+     * @param result magnetic field in NED frame [Gauss]
+     */
+    public synchronized void getField(double lat, double lon, double alt, double year, Vector3d result) {
+        if (!validityWarned && !isValid(year)) {
+            validityWarned = true;
+            System.err.println(String.format("WARNING: magnetic model %s is valid for %.1f to %.1f, " +
+                                             "extrapolating to %.1f. Replace %s with a current NOAA release.",
+                                             name, epoch, epoch + VALIDITY, year, DEFAULT_COEFFICIENTS_FILE));
+        }
+        double dt = year - epoch;
+        double altKm = alt / 1000.0;
+        double rlat = Math.toRadians(lat);
+        double rlon = Math.toRadians(lon);
+        double srlon = Math.sin(rlon);
+        double srlat = Math.sin(rlat);
+        double crlon = Math.cos(rlon);
+        double crlat = Math.cos(rlat);
+        double srlat2 = srlat * srlat;
+        double crlat2 = crlat * crlat;
+        sp[0] = 0.0;
+        cp[0] = 1.0;
+        sp[1] = srlon;
+        cp[1] = crlon;
+        p[0][0] = 1.0;
+        dp[0][0] = 0.0;
+        pp[0] = 1.0;
+
+        // geodetic to spherical coordinates
+        double q = Math.sqrt(A2 - C2 * srlat2);
+        double q1 = altKm * q;
+        double q2 = ((q1 + A2) / (q1 + B2)) * ((q1 + A2) / (q1 + B2));
+        double ct = srlat / Math.sqrt(q2 * crlat2 + srlat2);
+        double st = Math.sqrt(1.0 - ct * ct);
+        double r2 = altKm * altKm + 2.0 * q1 + (A4 - C4 * srlat2) / (q * q);
+        double r = Math.sqrt(r2);
+        double d = Math.sqrt(A2 * crlat2 + B2 * srlat2);
+        double ca = (altKm + d) / r;
+        double sa = C2 * crlat * srlat / (r * d);
+        for (int m = 2; m <= maxOrder; m++) {
+            sp[m] = sp[1] * cp[m - 1] + cp[1] * sp[m - 1];
+            cp[m] = cp[1] * cp[m - 1] - sp[1] * sp[m - 1];
+        }
+
+        double aor = RE / r;
+        double ar = aor * aor;
+        double br = 0.0;
+        double bt = 0.0;
+        double bp = 0.0;
+        double bpp = 0.0;
+        for (int n = 1; n <= maxOrder; n++) {
+            ar = ar * aor;
+            for (int m = 0; m <= n; m++) {
+                // unnormalized associated Legendre polynomials and derivatives by recursion
+                if (n == m) {
+                    p[m][n] = st * p[m - 1][n - 1];
+                    dp[m][n] = st * dp[m - 1][n - 1] + ct * p[m - 1][n - 1];
+                } else if (n == 1 && m == 0) {
+                    p[m][n] = ct * p[m][n - 1];
+                    dp[m][n] = ct * dp[m][n - 1] - st * p[m][n - 1];
+                } else if (n > 1 && n != m) {
+                    if (m > n - 2) {
+                        p[m][n - 2] = 0.0;
+                        dp[m][n - 2] = 0.0;
+                    }
+                    p[m][n] = ct * p[m][n - 1] - k[m][n] * p[m][n - 2];
+                    dp[m][n] = ct * dp[m][n - 1] - st * p[m][n - 1] - k[m][n] * dp[m][n - 2];
+                }
+
+                // coefficients at requested time
+                tc[m][n] = c[m][n] + dt * cd[m][n];
+                if (m != 0) {
+                    tc[n][m - 1] = c[n][m - 1] + dt * cd[n][m - 1];
+                }
+
+                // accumulate spherical harmonic expansion
+                double par = ar * p[m][n];
+                double temp1;
+                double temp2;
+                if (m == 0) {
+                    temp1 = tc[m][n] * cp[m];
+                    temp2 = tc[m][n] * sp[m];
+                } else {
+                    temp1 = tc[m][n] * cp[m] + tc[n][m - 1] * sp[m];
+                    temp2 = tc[m][n] * sp[m] - tc[n][m - 1] * cp[m];
+                }
+                bt = bt - ar * temp1 * dp[m][n];
+                bp += fm[m] * temp2 * par;
+                br += fn[n] * temp1 * par;
+
+                // special case at geographic poles
+                if (st == 0.0 && m == 1) {
+                    if (n == 1) {
+                        pp[n] = pp[n - 1];
+                    } else {
+                        pp[n] = ct * pp[n - 1] - k[m][n] * pp[n - 2];
+                    }
+                    double parp = ar * pp[n];
+                    bpp += fm[m] * temp2 * parp;
+                }
+            }
+        }
+        if (st == 0.0) {
+            bp = bpp;
+        } else {
+            bp /= st;
+        }
+
+        // spherical to geodetic frame
+        double bx = -bt * ca - br * sa;
+        double by = bp;
+        double bz = bt * sa - br * ca;
+        result.set(bx * NT_TO_GAUSS, by * NT_TO_GAUSS, bz * NT_TO_GAUSS);
+    }
+
+    /**
+     * Get magnetic declination.
+     *
+     * @return declination [deg]
+     */
+    public double getDeclination(double lat, double lon, double alt, double year) {
+        Vector3d field = new Vector3d();
+        getField(lat, lon, alt, year, field);
+        return Math.toDegrees(Math.atan2(field.y, field.x));
+    }
+}
@@ -1,7 +1,7 @@
 package me.drton.jmavsim.vehicle;
 import java.util.Map;
 
-public class APM {
+public class APM implements Cloneable {
 
     public double wing_span = 0.0;
     public double wing_area = 0.0;
@@ -100,4 +100,15 @@ public class APM {
         builder.append("m_Cn_delta_r: " + this.m_Cn_delta_r);
         return builder.toString();
     }
+
+    /**
+     * Create independent copy, all coefficients are primitive fields.
+     */
+    public APM copy() {
+        try {
+            return (APM) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
 }
\ No newline at end of file
@@ -1,9 +1,9 @@
 package me.drton.jmavsim.vehicle;
 
+import me.drton.jmavsim.Atmosphere;
 import me.drton.jmavsim.Propeller;
 import me.drton.jmavsim.ReportUtil;
 import me.drton.jmavsim.Rotor;
-import me.drton.jmavsim.SimpleEnvironment;
 import me.drton.jmavsim.World;
 
 import javax.vecmath.Vector3d;
@@ -173,6 +173,20 @@ public abstract class AbstractFixedWing extends AbstractMulticopter {
      */
     protected abstract Vector3d getPusherRotorPosition(int i);
 
+    /**
+     * Pusher rotors follow the lift rotors.
+     */
+    @Override
+    public int getRotorCount() {
+        return super.getRotorCount() + pusher_rotors.length;
+    }
+
+    @Override
+    public Rotor getRotor(int i) {
+        int lift = super.getRotorCount();
+        return i < lift ? super.getRotor(i) : pusher_rotors[i - lift];
+    }
+
     @Override
     public void update(long t, boolean paused) {
         if (paused) {
@@ -186,19 +200,17 @@ public abstract class AbstractFixedWing extends AbstractMulticopter {
         // Control for pusher rotors is #4
         final int rotor_offset = 4;
         for (int i = 0; i < pusher_rotors.length; i++) {
-            double c = control.size() > i ? control.get(i+rotor_offset) : 0.0;
-            pusher_rotors[i].setControl(c);
+            pusher_rotors[i].setControl(getControl(i + rotor_offset));
         }
 
         // Control for ailerons is #5 &&  #6 (aileron left and right)
         final int aileron_offset = rotor_offset + this.pusher_rotors.length;
         for (int i = 0; i < ailerons_control.length; i++) {
-            double c = control.size() > i ? control.get(i+aileron_offset) : 0.0;
-            ailerons_control[i] = c;
+            ailerons_control[i] = getControl(i + aileron_offset);
         }
         
         final int elevator_offset = aileron_offset + this.ailerons_control.length;
-        this.elevator_control = control.size() > elevator_offset ? control.get(elevator_offset) : 0.0;
+        this.elevator_control = getControl(elevator_offset);
     }
 
     private double surfaceControlToAngle(double control) {
@@ -279,8 +291,7 @@ public abstract class AbstractFixedWing extends AbstractMulticopter {
         double tempC = this.getWorld().getEnvironment().getCurrentTemperature();
         double tempK  = (tempC + 273.15);
         double alt = (tempK - 288.15)/(-6.5);
-        double rGamma = 287.053;
-        return SimpleEnvironment.alt2baro(alt) / (rGamma * tempK);
+        return Atmosphere.pressure(alt) / (Atmosphere.R_AIR * tempK);
     }
 
     private Vector3d getAeroForce() {
@@ -107,6 +107,16 @@ public abstract class AbstractMulticopter extends AbstractVehicle {
      */
     protected abstract Vector3d getRotorPosition(int i);
 
+    @Override
+    public int getRotorCount() {
+        return rotors.length;
+    }
+
+    @Override
+    public Rotor getRotor(int i) {
+        return rotors[i];
+    }
+
     public void setDragMove(double dragMove) {
         this.dragMove = dragMove;
     }
@@ -125,8 +135,7 @@ public abstract class AbstractMulticopter extends AbstractVehicle {
         }
         super.update(t, paused);
         for (int i = 0; i < rotors.length; i++) {
-            double c = control.size() > i ? control.get(i) : 0.0;
-            rotors[i].setControl(c);
+            rotors[i].setControl(getControl(i));
         }
     }
 
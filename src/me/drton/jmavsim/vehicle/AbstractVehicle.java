@@ -2,8 +2,11 @@ package me.drton.jmavsim.vehicle;
 
 import me.drton.jmavlib.geo.LatLonAlt;
 import me.drton.jmavsim.DynamicObject;
+import me.drton.jmavsim.GNSSReport;
 import me.drton.jmavsim.ReportUtil;
 import me.drton.jmavsim.ReportingObject;
+import me.drton.jmavsim.Rotor;
+import me.drton.jmavsim.SensorFrame;
 import me.drton.jmavsim.Sensors;
 import me.drton.jmavsim.World;
 
@@ -13,21 +16,37 @@ import javax.json.JsonValue;
 import javax.vecmath.Matrix3d;
 import javax.vecmath.Vector3d;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.AbstractList;
 import java.util.List;
 
 
 /**
  * Abstract vehicle class, should be used for creating vehicle of any type.
- * Child class should use member 'control' as control input for actuators.
+ * Child class should use getControl(i) as control input for actuators.
  * 'update()' method of AbstractVehicle must be called from child class implementation if overridden.
  */
 public abstract class AbstractVehicle extends DynamicObject implements ReportingObject {
 
     protected static final String MAIN_PARAMS_KEY = "drone_config";
+    protected static final String COLLISION_RADIUS_KEY = "collision_radius";
 
-    protected List<Double> control = Collections.emptyList();
+    // control inputs are stored unboxed, setting and reading them doesn't allocate
+    private double[] controlValues = new double[16];
+    private int controlCount = 0;
+    private final List<Double> controlView = new AbstractList<Double>() {
+        @Override
+        public Double get(int index) {
+            if (index < 0 || index >= controlCount) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + controlCount);
+            }
+            return controlValues[index];
+        }
+
+        @Override
+        public int size() {
+            return controlCount;
+        }
+    };
     protected Sensors sensors = null;
 
     protected static JsonObject requiredJsonObject(JsonObject obj, String key) {
@@ -92,8 +111,8 @@ public abstract class AbstractVehicle extends DynamicObject implements Reporting
         builder.append(newLine);
         builder.append("========");
         builder.append(newLine);
-        for (int i = 0; i < this.control.size(); i++) {
-            builder.append(String.format("#%d: %f", i, this.control.get(i)));
+        for (int i = 0; i < getControlCount(); i++) {
+            builder.append(String.format("#%d: %f", i, getControl(i)));
             builder.append(newLine);
         }
         builder.append(newLine);
@@ -128,12 +147,13 @@ public abstract class AbstractVehicle extends DynamicObject implements Reporting
         builder.append(newLine);
 
         if (sensors != null) {
+            SensorFrame frame = sensors.getFrame();
             builder.append("SENSORS");
             builder.append(newLine);
             builder.append("--------");
             builder.append(newLine);
 
-            tv = sensors.getAcc();
+            tv = frame.acc;
             builder.append("ACC: ");
             builder.append(ReportUtil.vector2str(tv));
             builder.append(newLine);
@@ -144,7 +164,7 @@ public abstract class AbstractVehicle extends DynamicObject implements Reporting
                                                                               -tv.z))), ReportUtil.d2str(Math.toDegrees(Math.atan2(-tv.y, -tv.z)))));
             builder.append(newLine + newLine);
 
-            tv = sensors.getGyro();
+            tv = frame.gyro;
             builder.append("GYO: ");
             builder.append(ReportUtil.vector2str(tv));
             builder.append(newLine);
@@ -152,7 +172,7 @@ public abstract class AbstractVehicle extends DynamicObject implements Reporting
                                          ReportUtil.d2str(Math.sqrt(tv.x * tv.x + tv.y * tv.y + tv.z * tv.z))));
             builder.append(newLine + newLine);
 
-            tv = sensors.getMag();
+            tv = frame.mag;
             builder.append("MAG: ");
             builder.append(ReportUtil.vector2str(tv));
             builder.append(newLine);
@@ -160,29 +180,86 @@ public abstract class AbstractVehicle extends DynamicObject implements Reporting
                                          ReportUtil.d2str(Math.sqrt(tv.x * tv.x + tv.y * tv.y + tv.z * tv.z))));
             builder.append(newLine + newLine);
 
-            LatLonAlt pos;
-            if (sensors.getGNSS() != null && sensors.getGNSS().position != null) {
-                pos = sensors.getGNSS().position;
+            GNSSReport gnss = sensors.getGNSS();
+            double lat, lon, alt;
+            if (gnss != null) {
+                lat = gnss.position.lat;
+                lon = gnss.position.lon;
+                alt = gnss.position.alt;
             } else {
-                pos = sensors.getGlobalPosition();
+                LatLonAlt pos = sensors.getGlobalPosition();
+                lat = pos.lat;
+                lon = pos.lon;
+                alt = pos.alt;
             }
-            builder.append(String.format("GPS Lat: %+013.8f;\n    Lon: %+013.8f\n    Alt: %07.3f", pos.lat,
-                                         pos.lon, pos.alt));
+            builder.append(String.format("GPS Lat: %+013.8f;\n    Lon: %+013.8f\n    Alt: %07.3f", lat,
+                                         lon, alt));
             builder.append(newLine);
-            builder.append(String.format("Baro Alt: %07.3f; Pa: %08.2f", sensors.getPressureAlt(),
-                                         sensors.getPressure()));
+            builder.append(String.format("Baro Alt: %07.3f; Pa: %08.2f", frame.pressureAlt,
+                                         frame.pressure));
             builder.append(newLine + newLine);
         }
 
     }
 
     public void setControl(List<Double> control) {
-        this.control = new ArrayList<Double>(control);
+        int n = control.size();
+        ensureControlCapacity(n);
+        for (int i = 0; i < n; i++) {
+            controlValues[i] = control.get(i);
+        }
+        controlCount = n;
+    }
+
+    /**
+     * Set control inputs without allocation, the values are copied.
+     *
+     * @param count number of values used from the array
+     */
+    public void setControl(double[] control, int count) {
+        ensureControlCapacity(count);
+        System.arraycopy(control, 0, controlValues, 0, count);
+        controlCount = count;
+    }
 
+    private void ensureControlCapacity(int n) {
+        if (n > controlValues.length) {
+            double[] values = new double[n];
+            System.arraycopy(controlValues, 0, values, 0, controlCount);
+            controlValues = values;
+        }
     }
 
+    /**
+     * @return read-only view of the control inputs, boxes values on access, use getControl(i) in the simulation loop
+     */
     public List<Double> getControl() {
-        return control;
+        return controlView;
+    }
+
+    public int getControlCount() {
+        return controlCount;
+    }
+
+    /**
+     * @return control input, 0 if not set
+     */
+    public double getControl(int i) {
+        return i < controlCount ? controlValues[i] : 0.0;
+    }
+
+    /**
+     * @return number of rotors, 0 if the vehicle has none
+     */
+    public int getRotorCount() {
+        return 0;
+    }
+
+    /**
+     * @param i rotor number, 0..getRotorCount()-1
+     */
+    public Rotor getRotor(int i) {
+        throw new IndexOutOfBoundsException("Rotor " + i + " of " + getRotorCount());
     }
 
     /**
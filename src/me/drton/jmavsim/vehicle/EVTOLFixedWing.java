@@ -1,7 +1,6 @@
 package me.drton.jmavsim.vehicle;
 import me.drton.jmavsim.Propeller;
 import me.drton.jmavsim.Rotor;
-import me.drton.jmavsim.SimpleSensors;
 import me.drton.jmavsim.World;
 import java.util.Map;
 import javax.json.JsonNumber;
@@ -24,48 +23,20 @@ public class EVTOLFixedWing extends AbstractFixedWing {
     private Vector3d[] pusherRotorPositions = new Vector3d[PUSHER_ROTOR_N];
     private int[] pusherRotorRotations = new int[PUSHER_ROTOR_N];
 
+    /**
+     * Build a single vehicle directly from a JSON configuration.
+     * To spawn many vehicles from the same configuration use VehicleCatalog or VehiclePrototype instead.
+     */
     public static EVTOLFixedWing fromJSONObject(World w, boolean showGui, JsonObject obj, double payload_mass) {
-        
-        JsonObject main_config = requiredJsonObject(obj, AbstractVehicle.MAIN_PARAMS_KEY);
-        double mass = requiredDoubleValue(main_config, AbstractMulticopter.MASS_KEY);
-        double armLength = requiredDoubleValue(main_config, AbstractMulticopter.ARM_LENGTH_KEY);
-        double maxRPM = requiredDoubleValue(main_config, AbstractMulticopter.MAX_RPM_KEY);
-        double maxTorque = requiredDoubleValue(main_config, AbstractMulticopter.MAX_TORQUE_KEY);
-        double dragMove = optionalDoubleValue(main_config, AbstractMulticopter.DRAG_MOVE_KEY, 0.01);
-        double tailLength = optionalDoubleValue(main_config, AbstractFixedWing.TAIL_LENGTH_KEY, 0.4);
-        Propeller propeller = Propeller.fromJSONObject(requiredJsonObject(main_config, Propeller.PROPELLER_KEY));
-
-        Matrix3d inertia_matrix = partseInertiaMatrix(main_config);
-        APM aeroData = AbstractFixedWing.parseAeroData(requiredJsonObject(obj, AbstractFixedWing.AERODYNAMICS_KEY));
-
-        SimpleSensors sensors = new SimpleSensors();
-        sensors.setGPSInterval(50);
-        sensors.setGPSDelay(200);
-        sensors.setNoise_Acc(0.05f);
-        sensors.setNoise_Gyo(0.01f);
-        sensors.setNoise_Mag(0.005f);
-        sensors.setNoise_Prs(0.1f);
-        
-        EVTOLFixedWing q = new EVTOLFixedWing(
-            w,
-            aeroData,
-            AbstractFixedWing.MODEL_NAME,
-            armLength,
-            tailLength,
-            maxRPM,
-            maxTorque,
-            AbstractMulticopter.ROTOR_TIME_CONSTANT,
-            AbstractMulticopter.ROTOR_OFFSET,
-            propeller,
-            showGui
-        );
-        
-        q.setMass(mass + payload_mass);
-        q.setMomentOfInertia(inertia_matrix);
-        q.setDragMove(dragMove);
-        q.setSensors(sensors, 0);
-
-        return q;
+        try {
+            VehiclePrototype prototype = VehiclePrototype.fromJSONObject("EVTOLFixedWing", obj);
+            return (EVTOLFixedWing) prototype.spawn(w, showGui, payload_mass);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            System.out.println("Could not build EVTOLFixedWing from JSON object");
+            System.out.println(e);
+            System.exit(1);
+            return null;
+        }
     }
 
     public EVTOLFixedWing(
@@ -137,6 +108,6 @@ public class EVTOLFixedWing extends AbstractFixedWing {
     
     @Override
     protected Vector3d getGyroSensor() {
-        return this.sensors.getGyro();
+        return this.sensors.getFrame().gyro;
     }
 }
@@ -3,7 +3,6 @@ package me.drton.jmavsim.vehicle;
 import me.drton.jmavsim.Propeller;
 import me.drton.jmavsim.Rotor;
 import me.drton.jmavsim.Sensors;
-import me.drton.jmavsim.SimpleSensors;
 import me.drton.jmavsim.World;
 
 import javax.json.JsonNumber;
@@ -20,42 +19,20 @@ public class Quadcopter extends AbstractMulticopter {
     private int[] rotorRotations = new int[rotorsNum];
     private static final String MODEL_NAME = "models/3dr_arducopter_quad_x.obj";
 
+    /**
+     * Build a single vehicle directly from a JSON configuration.
+     * To spawn many vehicles from the same configuration use VehicleCatalog or VehiclePrototype instead.
+     */
     public static Quadcopter fromJSONObject(World w, boolean showGui, JsonObject obj, double payload_mass) {
-        
-        JsonObject main_params = obj.getJsonObject(AbstractVehicle.MAIN_PARAMS_KEY);
-        JsonObject propeller_details = requiredJsonObject(main_params, Propeller.PROPELLER_KEY);
-        double mass = main_params.getJsonNumber(AbstractMulticopter.MASS_KEY).doubleValue();
-        double armLength = main_params.getJsonNumber(AbstractMulticopter.ARM_LENGTH_KEY).doubleValue();
-        double maxRPM = main_params.getJsonNumber(AbstractMulticopter.MAX_RPM_KEY).doubleValue();
-        double maxTorque = main_params.getJsonNumber(AbstractMulticopter.MAX_TORQUE_KEY).doubleValue();
-        double dragMove = optionalDoubleValue(main_params, AbstractMulticopter.DRAG_MOVE_KEY, 0.01);
-
-        Matrix3d inertia_matrix = partseInertiaMatrix(main_params);
-        
-        SimpleSensors sensors = new SimpleSensors();
-        sensors.setGPSInterval(50);
-        sensors.setGPSDelay(200);
-        sensors.setNoise_Acc(0.05f);
-        sensors.setNoise_Gyo(0.01f);
-        sensors.setNoise_Mag(0.005f);
-        sensors.setNoise_Prs(0.1f);
-        
-        Quadcopter q = new Quadcopter(
-            w,
-            armLength,
-            maxRPM,
-            maxTorque,
-            AbstractMulticopter.ROTOR_TIME_CONSTANT,
-            AbstractMulticopter.ROTOR_OFFSET,
-            Propeller.fromJSONObject(propeller_details),
-            showGui
-        );
-        q.setMass(mass + payload_mass);
-        q.setMomentOfInertia(inertia_matrix);
-        q.setDragMove(dragMove);
-        q.setSensors(sensors, 0);
-
-        return q;
+        try {
+            VehiclePrototype prototype = VehiclePrototype.fromJSONObject("Quadcopter", obj);
+            return (Quadcopter) prototype.spawn(w, showGui, payload_mass);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            System.out.println("Could not build Quadcopter from JSON object");
+            System.out.println(e);
+            System.exit(1);
+            return null;
+        }
     }
 
     /**
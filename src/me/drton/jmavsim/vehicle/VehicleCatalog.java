@@ -0,0 +1,112 @@
+package me.drton.jmavsim.vehicle;
+
+import me.drton.jmavsim.World;
+
+import javax.json.Json;
+import javax.json.JsonReader;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Catalog of available drone configurations.
+ * The drones directory is indexed once, every JSON config is parsed and validated up front and kept as
+ * VehiclePrototype, so spawning many vehicles (swarms, Monte Carlo runs) never re-reads the same file.
+ * Invalid configs are collected with their error instead of terminating the simulator.
+ */
+public class VehicleCatalog {
+    private static final String CONFIG_EXTENSION = ".json";
+
+    private final File directory;
+    private final Map<String, VehiclePrototype> prototypes = new ConcurrentHashMap<String, VehiclePrototype>();
+    private final Map<String, String> errors = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Index and validate all drone configs in the directory.
+     *
+     * @param directory directory containing drone JSON files
+     * @throws IOException if the directory can't be listed
+     */
+    public VehicleCatalog(File directory) throws IOException {
+        this.directory = directory;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list drones directory " + directory);
+        }
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(CONFIG_EXTENSION)) {
+                load(file.getName());
+            }
+        }
+    }
+
+    private VehiclePrototype load(String name) {
+        try (JsonReader reader = Json.createReader(new FileReader(new File(directory, name)))) {
+            VehiclePrototype prototype = VehiclePrototype.fromJSONObject(name, reader.readObject());
+            prototypes.put(name, prototype);
+            errors.remove(name);
+            return prototype;
+        } catch (IOException | RuntimeException e) {
+            errors.put(name, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Get prototype of the config with given name (file name relative to the drones directory).
+     * Configs not found while indexing (e.g. in subdirectories) are loaded and cached on first request.
+     *
+     * @throws IllegalArgumentException if the config doesn't exist or is invalid
+     */
+    public VehiclePrototype getPrototype(String name) {
+        VehiclePrototype prototype = prototypes.get(name);
+        if (prototype == null && !errors.containsKey(name)) {
+            prototype = load(name);
+        }
+        if (prototype == null) {
+            throw new IllegalArgumentException("Invalid vehicle config '" + name + "': " + errors.get(name));
+        }
+        return prototype;
+    }
+
+    /**
+     * Spawn new vehicle from the config with given name.
+     *
+     * @throws IllegalArgumentException if the config doesn't exist or is invalid
+     */
+    public AbstractVehicle spawn(String name, World world, boolean showGui, double payloadMass) {
+        return getPrototype(name).spawn(world, showGui, payloadMass);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get names of all valid configs.
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(new TreeMap<String, VehiclePrototype>(prototypes).keySet());
+    }
+
+    /**
+     * Get validation errors by config name.
+     */
+    public Map<String, String> getErrors() {
+        return Collections.unmodifiableMap(new TreeMap<String, String>(errors));
+    }
+
+    public void printSummary() {
+        System.out.println("Vehicle catalog " + directory + ": " + prototypes.size() + " valid, " +
+                           errors.size() + " invalid config(s)");
+        for (Map.Entry<String, String> error : getErrors().entrySet()) {
+            System.out.println("  " + error.getKey() + ": " + error.getValue());
+        }
+    }
+}
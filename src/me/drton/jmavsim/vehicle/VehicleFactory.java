@@ -1,63 +1,62 @@
 package me.drton.jmavsim.vehicle;
-import java.io.FileReader;
-
-import javax.json.Json;
-import javax.json.JsonReader;
+import java.io.File;
+import java.io.IOException;
 
 import me.drton.jmavsim.World;
-import javax.json.JsonObject;
 
 public class VehicleFactory {
 
     private World world;
     private boolean showGUI;
-    
-    private static final String TYPE_KEY = "type";
-    private static final String DRONE_TYPE_QUADCOPTER = "QUADCOPTER";
-    private static final String DRONE_TYPE_EVTOL_FW = "EVTOL_FW";
 
-    public VehicleFactory(World world, boolean showGUI) { 
+    // drones directory is indexed once and shared by all factories
+    private static VehicleCatalog catalog = null;
+
+    public VehicleFactory(World world, boolean showGUI) {
         this.world = world;
         this.showGUI = showGUI;
     }
 
-    private AbstractFixedWing evtolFwFromObject(JsonObject obj, double payload_mass) {
-        System.out.println("Building EVTOL FixedWing");
-        return EVTOLFixedWing.fromJSONObject(this.world, this.showGUI, obj, payload_mass);
-    }
-
-    private AbstractMulticopter multicopterFromObject(JsonObject obj, double payload_mass) {
-        System.out.println("Building Multicopter");
-        return Quadcopter.fromJSONObject(this.world, this.showGUI, obj, payload_mass);
+    /**
+     * Get catalog of the drones directory given by environment variable AVAILABLE_DRONES_DIR.
+     *
+     * @throws IOException if the variable is not defined or the directory can't be read
+     */
+    public static synchronized VehicleCatalog getCatalog() throws IOException {
+        if (catalog == null) {
+            String available_drones_dir = System.getenv("AVAILABLE_DRONES_DIR");
+            if (available_drones_dir == null) {
+                throw new IOException("Environment variable AVAILABLE_DRONES_DIR is not defined.");
+            }
+            catalog = new VehicleCatalog(new File(available_drones_dir));
+            catalog.printSummary();
+        }
+        return catalog;
     }
 
     public AbstractVehicle vehicleFromFile(String filename) {
         String payload_mass_s = System.getenv("PAYLOAD_MASS");
-        String available_drones_dir = System.getenv("AVAILABLE_DRONES_DIR");
-        if (available_drones_dir == null) {
-            System.out.println("Could not locate available drones directory. Environment variable AVAILABLE_DRONES_DIR is not defined.");
+        VehicleCatalog vehicles = null;
+        try {
+            vehicles = getCatalog();
+        } catch (IOException e) {
+            System.out.println("Could not locate available drones directory. " + e.getMessage());
             System.exit(1);
         }
         double payload_mass = Double.parseDouble(payload_mass_s != null ? payload_mass_s : "0");
 
-        try (JsonReader reader = Json.createReader(new FileReader(available_drones_dir + "/" + filename))) {
-            JsonObject obj = reader.readObject();
+        try {
+            VehiclePrototype prototype = vehicles.getPrototype(filename);
             System.out.println("Successfully read drone file '"  + filename +"'");
-            
+
             if (payload_mass_s == null) {
                 System.out.println("Drone is flying *without* payload.");
             } else {
                 System.out.println("Payload mass is "+ payload_mass_s + "kg.");
             }
-            
-            switch (obj.getString(TYPE_KEY)) {
-                case DRONE_TYPE_QUADCOPTER:
-                    return this.multicopterFromObject(obj, payload_mass);
-                case DRONE_TYPE_EVTOL_FW:
-                    return this.evtolFwFromObject(obj, payload_mass);
-                default:
-                    throw new Exception("Unknown drone type!");
-            }
+
+            System.out.println(prototype.isFixedWing() ? "Building EVTOL FixedWing" : "Building Multicopter");
+            return prototype.spawn(this.world, this.showGUI, payload_mass);
         } catch(Exception e) {
             System.out.println("Error when trying to read vehicle information from "+filename);
             System.out.println(e.toString());
@@ -0,0 +1,249 @@
+package me.drton.jmavsim.vehicle;
+
+import me.drton.jmavsim.ImuErrorModel;
+import me.drton.jmavsim.Propeller;
+import me.drton.jmavsim.Rangefinder;
+import me.drton.jmavsim.Rotor;
+import me.drton.jmavsim.SensorDelayLine;
+import me.drton.jmavsim.SimpleSensors;
+import me.drton.jmavsim.World;
+
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.vecmath.Matrix3d;
+
+/**
+ * Validated vehicle configuration parsed from a drone JSON file.
+ * All parsing, validation and derived constants (rotor force constant, inverse inertia matrix) are done once,
+ * vehicles are then spawned from the prototype without touching the file again.
+ * Prototypes are immutable and may be shared between threads, every vehicle gets its own copy of the mutable
+ * propeller, aerodynamic and rangefinder parameters.
+ */
+public final class VehiclePrototype {
+    public static final String TYPE_KEY = "type";
+    public static final String DRONE_TYPE_QUADCOPTER = "QUADCOPTER";
+    public static final String DRONE_TYPE_EVTOL_FW = "EVTOL_FW";
+    public static final long GPS_INTERVAL = 50;  // [ms]
+
+    private final String name;
+    private final String type;
+    private final double mass;
+    private final double armLength;
+    private final double tailLength;
+    private final double maxRPM;
+    private final double maxTorque;
+    private final double dragMove;
+    private final double collisionRadius;
+    private final Propeller propeller;  // copied for every vehicle
+    private final APM aeroData;  // copied for every vehicle, null for multicopters
+    private final Matrix3d inertia;
+    private final Matrix3d inertiaInv;
+    private final double imuRate;
+    private final double magRate;
+    private final double baroRate;
+    private final long gpsDelay;  // [ms]
+    private final long baroDelay;  // [ms]
+    private final ImuErrorModel.Parameters accelErrors;
+    private final ImuErrorModel.Parameters gyroErrors;
+    private final Long noiseSeed;  // null for a random seed per vehicle
+    private final Rangefinder rangefinder;  // parameters only, copied for every vehicle, may be null
+
+    private VehiclePrototype(String name, JsonObject obj) {
+        this.name = name;
+        this.type = obj.getString(TYPE_KEY, null);
+        if (!DRONE_TYPE_QUADCOPTER.equals(type) && !DRONE_TYPE_EVTOL_FW.equals(type)) {
+            throw new IllegalArgumentException("Unknown drone type '" + type + "'");
+        }
+        boolean fixedWing = DRONE_TYPE_EVTOL_FW.equals(type);
+
+        JsonObject mainParams = requiredObject(obj, AbstractVehicle.MAIN_PARAMS_KEY);
+        mass = requiredPositive(mainParams, AbstractMulticopter.MASS_KEY);
+        armLength = requiredPositive(mainParams, AbstractMulticopter.ARM_LENGTH_KEY);
+        maxRPM = requiredPositive(mainParams, AbstractMulticopter.MAX_RPM_KEY);
+        maxTorque = required(mainParams, AbstractMulticopter.MAX_TORQUE_KEY);
+        dragMove = AbstractVehicle.optionalDoubleValue(mainParams, AbstractMulticopter.DRAG_MOVE_KEY, 0.01);
+        tailLength = AbstractVehicle.optionalDoubleValue(mainParams, AbstractFixedWing.TAIL_LENGTH_KEY, 0.4);
+
+        JsonObject propellerParams = requiredObject(mainParams, Propeller.PROPELLER_KEY);
+        propeller = new Propeller(requiredPositive(propellerParams, Propeller.DIAMETER_KEY),
+                                  requiredPositive(propellerParams, Propeller.PITCH_KEY),
+                                  (int) requiredPositive(propellerParams, Propeller.BLADES_N_KEY));
+        if (!Rotor.isPropellerSupported(propeller)) {
+            throw new IllegalArgumentException("Propeller diameter " + propeller.propeller_diameter_cm +
+                                               " cm is not covered by the thrust model");
+        }
+        // computes and caches the force constant shared by all rotors built from this propeller
+        new Rotor(propeller);
+
+        inertia = AbstractVehicle.partseInertiaMatrix(mainParams);
+        if (Math.abs(inertia.determinant()) < 1e-12) {
+            throw new IllegalArgumentException("Inertia matrix is singular");
+        }
+        inertiaInv = new Matrix3d();
+        inertiaInv.invert(inertia);
+
+        aeroData = fixedWing ? AbstractFixedWing.parseAeroData(requiredObject(obj,
+                                                                              AbstractFixedWing.AERODYNAMICS_KEY)) : null;
+
+        double rotorsRadius = armLength + propeller.propeller_diameter_cm / 200.0;
+        double defaultRadius = fixedWing ? Math.max(Math.max(rotorsRadius, aeroData.wing_span / 2.0), tailLength) :
+                               rotorsRadius;
+        collisionRadius = AbstractVehicle.optionalDoubleValue(mainParams, AbstractVehicle.COLLISION_RADIUS_KEY,
+                                                              defaultRadius);
+
+        // sensor rates [Hz], defaults are typical for autopilot hardware
+        JsonObject sensorParams = obj.getJsonObject(SimpleSensors.SENSORS_KEY);
+        imuRate = optionalRate(sensorParams, SimpleSensors.IMU_RATE_KEY, 1000.0);
+        magRate = optionalRate(sensorParams, SimpleSensors.MAG_RATE_KEY, 100.0);
+        baroRate = optionalRate(sensorParams, SimpleSensors.BARO_RATE_KEY, 50.0);
+        // sensor latencies [ms]
+        gpsDelay = optionalDelay(sensorParams, SimpleSensors.GPS_DELAY_KEY, 200);
+        baroDelay = optionalDelay(sensorParams, SimpleSensors.BARO_DELAY_KEY, 0);
+        checkDelay(SimpleSensors.GPS_DELAY_KEY, gpsDelay, GPS_INTERVAL);
+        checkDelay(SimpleSensors.BARO_DELAY_KEY, baroDelay, Math.round(1e6 / baroRate) / 1000.0);
+        accelErrors = ImuErrorModel.Parameters.fromJSONObject(sensorParams == null ? null :
+                                                              sensorParams.getJsonObject(ImuErrorModel.ACCEL_KEY));
+        gyroErrors = ImuErrorModel.Parameters.fromJSONObject(sensorParams == null ? null :
+                                                             sensorParams.getJsonObject(ImuErrorModel.GYRO_KEY));
+        JsonNumber seed = sensorParams == null ? null : sensorParams.getJsonNumber(SimpleSensors.NOISE_SEED_KEY);
+        noiseSeed = seed == null ? null : seed.longValue();
+        JsonObject rangefinderParams = sensorParams == null ? null :
+                                       sensorParams.getJsonObject(Rangefinder.RANGEFINDER_KEY);
+        rangefinder = rangefinderParams == null ? null : Rangefinder.fromJSONObject(rangefinderParams);
+    }
+
+    /**
+     * Parse and validate vehicle configuration.
+     *
+     * @param name name of the configuration, usually file name
+     * @param obj  contents of the drone JSON file
+     * @throws IllegalArgumentException if the configuration is incomplete or invalid
+     */
+    public static VehiclePrototype fromJSONObject(String name, JsonObject obj) {
+        try {
+            return new VehiclePrototype(name, obj);
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Invalid value type in '" + name + "': " + e.getMessage(), e);
+        }
+    }
+
+    private static JsonObject requiredObject(JsonObject obj, String key) {
+        JsonObject value = obj.getJsonObject(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing key '" + key + "'");
+        }
+        return value;
+    }
+
+    private static double required(JsonObject obj, String key) {
+        JsonNumber value = obj.getJsonNumber(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing key '" + key + "'");
+        }
+        return value.doubleValue();
+    }
+
+    private static double requiredPositive(JsonObject obj, String key) {
+        double value = required(obj, key);
+        if (!(value > 0.0)) {
+            throw new IllegalArgumentException("Value for key '" + key + "' must be positive, got " + value);
+        }
+        return value;
+    }
+
+    private static double optionalRate(JsonObject obj, String key, double defaultValue) {
+        if (obj == null || !obj.containsKey(key)) {
+            return defaultValue;
+        }
+        return requiredPositive(obj, key);
+    }
+
+    private static long optionalDelay(JsonObject obj, String key, long defaultValue) {
+        if (obj == null || !obj.containsKey(key)) {
+            return defaultValue;
+        }
+        double value = required(obj, key);
+        if (!(value >= 0.0)) {
+            throw new IllegalArgumentException("Value for key '" + key + "' must not be negative, got " + value);
+        }
+        return Math.round(value);
+    }
+
+    /**
+     * Check that the delay line of a sensor sampled every interval [ms] can hold all samples in flight.
+     */
+    private static void checkDelay(String key, long delay, double interval) {
+        if (SensorDelayLine.capacityFor(delay, interval) > SensorDelayLine.MAX_CAPACITY) {
+            throw new IllegalArgumentException("Value for key '" + key + "' is too long for the sensor rate, got " +
+                                               delay + " ms");
+        }
+    }
+
+    private SimpleSensors createSensors() {
+        SimpleSensors sensors = new SimpleSensors();
+        sensors.setSensorRates(imuRate, magRate, baroRate);
+        sensors.setGPSInterval(GPS_INTERVAL);
+        sensors.setGPSDelay(gpsDelay);
+        sensors.setBaroDelay(baroDelay);
+        // noise densities replace the default white noise
+        sensors.setNoise_Acc(accelErrors.getNoiseDensity() > 0.0 ? 0.0f : 0.05f);
+        sensors.setNoise_Gyo(gyroErrors.getNoiseDensity() > 0.0 ? 0.0f : 0.01f);
+        sensors.setNoise_Mag(0.005f);
+        sensors.setNoise_Prs(0.1f);
+        if (noiseSeed != null) {
+            sensors.setNoiseSeed(noiseSeed);
+        }
+        if (accelErrors != ImuErrorModel.Parameters.NONE || gyroErrors != ImuErrorModel.Parameters.NONE) {
+            sensors.setImuErrorModel(accelErrors, gyroErrors);
+        }
+        if (rangefinder != null) {
+            sensors.setRangefinder(new Rangefinder(rangefinder));
+        }
+        return sensors;
+    }
+
+    /**
+     * Create new vehicle instance with its own sensors.
+     *
+     * @param world        world where to place the vehicle
+     * @param showGui      false if the GUI has been disabled
+     * @param payloadMass  additional mass [kg]
+     */
+    public AbstractVehicle spawn(World world, boolean showGui, double payloadMass) {
+        AbstractMulticopter vehicle;
+        if (isFixedWing()) {
+            vehicle = new EVTOLFixedWing(world, aeroData.copy(), AbstractFixedWing.MODEL_NAME, armLength,
+                                         tailLength, maxRPM, maxTorque, AbstractMulticopter.ROTOR_TIME_CONSTANT,
+                                         AbstractMulticopter.ROTOR_OFFSET, new Propeller(propeller), showGui);
+        } else {
+            vehicle = new Quadcopter(world, armLength, maxRPM, maxTorque, AbstractMulticopter.ROTOR_TIME_CONSTANT,
+                                     AbstractMulticopter.ROTOR_OFFSET, new Propeller(propeller), showGui);
+        }
+        vehicle.setMass(mass + payloadMass);
+        vehicle.setMomentOfInertia(inertia, inertiaInv);
+        vehicle.setDragMove(dragMove);
+        vehicle.setCollisionRadius(collisionRadius);
+        vehicle.setSensors(createSensors(), 0);
+        return vehicle;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public boolean isFixedWing() {
+        return aeroData != null;
+    }
+
+    public double getMass() {
+        return mass;
+    }
+
+    public double getCollisionRadius() {
+        return collisionRadius;
+    }
+}
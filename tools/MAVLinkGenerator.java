@@ -0,0 +1,506 @@
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Generates typed MAVLink message classes from a message definition XML, run by the "generate" target of build.xml.
+ * <p/>
+ * Each message becomes a class with public primitive fields named as in the XML, constants for id, CRC extra and
+ * payload lengths, and encode/decode methods reading and writing the payload in wire order (fields sorted by type
+ * size, extensions last) at fixed offsets, so no field is looked up by name at runtime. The Dialect class indexes
+ * CRC extras and lengths of all messages by id.
+ * <p/>
+ * Usage: MAVLinkGenerator definition.xml output_dir
+ */
+public class MAVLinkGenerator {
+    private static final String PACKAGE = "me.drton.jmavsim.mavlink";
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "abstract", "boolean", "break", "byte", "case", "catch", "char", "class", "const", "continue", "default",
+            "do", "double", "else", "enum", "extends", "final", "finally", "float", "for", "goto", "if", "implements",
+            "import", "instanceof", "int", "interface", "long", "native", "new", "package", "private", "protected",
+            "public", "return", "short", "static", "super", "switch", "synchronized", "this", "throw", "throws",
+            "transient", "try", "void", "volatile", "while"));
+
+    static final class Field {
+        String name;
+        String javaName;
+        String type;  // base type without array length, e.g. "uint8_t"
+        int arrayLength;  // 0 if not an array
+        boolean extension;
+        int offset;
+
+        int typeSize() {
+            switch (type) {
+                case "char":
+                case "int8_t":
+                case "uint8_t":
+                    return 1;
+                case "int16_t":
+                case "uint16_t":
+                    return 2;
+                case "int32_t":
+                case "uint32_t":
+                case "float":
+                    return 4;
+                case "int64_t":
+                case "uint64_t":
+                case "double":
+                    return 8;
+                default:
+                    throw new IllegalArgumentException("Unknown MAVLink type " + type);
+            }
+        }
+
+        int size() {
+            return typeSize() * Math.max(arrayLength, 1);
+        }
+
+        String javaType() {
+            switch (type) {
+                case "char":
+                case "int8_t":
+                case "uint8_t":
+                    return arrayLength > 0 ? "byte" : "int";
+                case "int16_t":
+                case "uint16_t":
+                case "int32_t":
+                    return "int";
+                case "uint32_t":
+                case "int64_t":
+                case "uint64_t":
+                    return "long";
+                default:
+                    return type;
+            }
+        }
+
+        String put(String buffer, String position, String value) {
+            switch (type) {
+                case "char":
+                case "int8_t":
+                case "uint8_t":
+                    return buffer + ".put(" + position + ", (byte) " + value + ")";
+                case "int16_t":
+                case "uint16_t":
+                    return buffer + ".putShort(" + position + ", (short) " + value + ")";
+                case "int32_t":
+                    return buffer + ".putInt(" + position + ", " + value + ")";
+                case "uint32_t":
+                    return buffer + ".putInt(" + position + ", (int) " + value + ")";
+                case "int64_t":
+                case "uint64_t":
+                    return buffer + ".putLong(" + position + ", " + value + ")";
+                case "float":
+                    return buffer + ".putFloat(" + position + ", " + value + ")";
+                default:
+                    return buffer + ".putDouble(" + position + ", " + value + ")";
+            }
+        }
+
+        String get(String buffer, String position) {
+            switch (type) {
+                case "char":
+                case "int8_t":
+                    return buffer + ".get(" + position + ")";
+                case "uint8_t":
+                    return arrayLength > 0 ? buffer + ".get(" + position + ")" : buffer + ".get(" + position +
+                           ") & 0xFF";
+                case "int16_t":
+                    return buffer + ".getShort(" + position + ")";
+                case "uint16_t":
+                    return buffer + ".getShort(" + position + ") & 0xFFFF";
+                case "int32_t":
+                    return buffer + ".getInt(" + position + ")";
+                case "uint32_t":
+                    return buffer + ".getInt(" + position + ") & 0xFFFFFFFFL";
+                case "int64_t":
+                case "uint64_t":
+                    return buffer + ".getLong(" + position + ")";
+                case "float":
+                    return buffer + ".getFloat(" + position + ")";
+                default:
+                    return buffer + ".getDouble(" + position + ")";
+            }
+        }
+
+        /**
+         * Getter of MAVLinkMessage for the scalar type.
+         */
+        String messageGetter() {
+            switch (javaType()) {
+                case "long":
+                    return "getLong";
+                case "float":
+                    return "getFloat";
+                case "double":
+                    return "getDouble";
+                default:
+                    return "getInt";
+            }
+        }
+    }
+
+    static final class Message {
+        int id;
+        String name;
+        String className;
+        String description;
+        List<Field> fields = new ArrayList<Field>();  // wire order
+        int minLength;
+        int maxLength;
+        int crcExtra;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: MAVLinkGenerator definition.xml output_dir");
+            System.exit(1);
+        }
+        File definition = new File(args[0]);
+        TreeMap<Integer, Message> messages = new TreeMap<Integer, Message>();
+        parse(definition, messages, new HashSet<File>());
+        File dir = new File(args[1], PACKAGE.replace('.', File.separatorChar));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        for (Message message : messages.values()) {
+            writeMessage(dir, message, definition.getName());
+        }
+        writeDialect(dir, messages, definition.getName());
+        System.out.println("Generated " + messages.size() + " MAVLink messages from " + definition + " to " + dir);
+    }
+
+    private static void parse(File file, TreeMap<Integer, Message> messages, Set<File> parsed) throws Exception {
+        if (!parsed.add(file.getCanonicalFile())) {
+            return;
+        }
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+        Element root = doc.getDocumentElement();
+        NodeList includes = root.getElementsByTagName("include");
+        for (int i = 0; i < includes.getLength(); i++) {
+            parse(new File(file.getParentFile(), includes.item(i).getTextContent().trim()), messages, parsed);
+        }
+        NodeList nodes = root.getElementsByTagName("message");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Message message = parseMessage((Element) nodes.item(i));
+            if (messages.put(message.id, message) != null) {
+                throw new IOException("Duplicate MAVLink message id " + message.id + " in " + file);
+            }
+        }
+    }
+
+    private static Message parseMessage(Element element) {
+        Message message = new Message();
+        message.id = Integer.parseInt(element.getAttribute("id"));
+        message.name = element.getAttribute("name");
+        message.className = "Msg" + camelCase(message.name);
+        List<Field> base = new ArrayList<Field>();
+        List<Field> extensions = new ArrayList<Field>();
+        boolean extension = false;
+        NodeList children = element.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node node = children.item(i);
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            Element child = (Element) node;
+            if (child.getTagName().equals("description")) {
+                message.description = child.getTextContent().trim().replaceAll("\\s+", " ");
+            } else if (child.getTagName().equals("extensions")) {
+                extension = true;
+            } else if (child.getTagName().equals("field")) {
+                Field field = new Field();
+                field.name = child.getAttribute("name");
+                field.javaName = KEYWORDS.contains(field.name) ? field.name + "_" : field.name;
+                String type = child.getAttribute("type");
+                int bracket = type.indexOf('[');
+                if (bracket >= 0) {
+                    field.arrayLength = Integer.parseInt(type.substring(bracket + 1, type.indexOf(']')));
+                    type = type.substring(0, bracket);
+                }
+                field.type = type.equals("uint8_t_mavlink_version") ? "uint8_t" : type;
+                field.extension = extension;
+                (extension ? extensions : base).add(field);
+            }
+        }
+        // wire order: largest types first, stable, extensions in definition order
+        List<Field> sorted = new ArrayList<Field>(base);
+        sorted.sort(new Comparator<Field>() {
+            @Override
+            public int compare(Field a, Field b) {
+                return b.typeSize() - a.typeSize();
+            }
+        });
+        message.fields.addAll(sorted);
+        message.fields.addAll(extensions);
+        int offset = 0;
+        for (Field field : message.fields) {
+            if (field.extension && message.minLength == 0) {
+                message.minLength = offset;
+            }
+            field.offset = offset;
+            offset += field.size();
+        }
+        message.maxLength = offset;
+        if (extensions.isEmpty()) {
+            message.minLength = offset;
+        }
+
+        int crc = crcString(0xFFFF, message.name + " ");
+        for (Field field : sorted) {
+            crc = crcString(crc, field.type + " ");
+            crc = crcString(crc, field.name + " ");
+            if (field.arrayLength > 0) {
+                crc = crcAccumulate(field.arrayLength, crc);
+            }
+        }
+        message.crcExtra = (crc & 0xFF) ^ (crc >> 8);
+        return message;
+    }
+
+    private static int crcAccumulate(int b, int crc) {
+        int tmp = (b ^ crc) & 0xFF;
+        tmp = (tmp ^ (tmp << 4)) & 0xFF;
+        return ((crc >> 8) ^ (tmp << 8) ^ (tmp << 3) ^ (tmp >> 4)) & 0xFFFF;
+    }
+
+    private static int crcString(int crc, String s) {
+        for (byte b : s.getBytes(StandardCharsets.US_ASCII)) {
+            crc = crcAccumulate(b & 0xFF, crc);
+        }
+        return crc;
+    }
+
+    private static String camelCase(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : name.toLowerCase().split("_")) {
+            if (!part.isEmpty()) {
+                sb.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String at(int offset) {
+        return offset == 0 ? "p" : "p + " + offset;
+    }
+
+    private static String escape(String s) {
+        return s == null ? "" : s.replace("*/", "* /").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static void writeMessage(File dir, Message m, String source) throws IOException {
+        try (PrintWriter out = new PrintWriter(new File(dir, m.className + ".java"), "UTF-8")) {
+            out.println("package " + PACKAGE + ";");
+            out.println();
+            out.println("import me.drton.jmavlib.mavlink.MAVLinkMessage;");
+            out.println("import me.drton.jmavsim.MAVLinkPayload;");
+            out.println();
+            out.println("import java.nio.ByteBuffer;");
+            out.println("import java.nio.charset.StandardCharsets;");
+            out.println();
+            out.println("/**");
+            out.println(" * " + m.name + " (" + m.id + "): " + escape(m.description));
+            out.println(" * <p/>");
+            out.println(" * Generated from " + source + " by MAVLinkGenerator, do not edit.");
+            out.println(" */");
+            out.println("public final class " + m.className + " implements MAVLinkPayload {");
+            out.println("    public static final int MSG_ID = " + m.id + ";");
+            out.println("    public static final int CRC_EXTRA = " + m.crcExtra + ";");
+            out.println("    public static final int MIN_LENGTH = " + m.minLength + ";");
+            out.println("    public static final int MAX_LENGTH = " + m.maxLength + ";");
+            out.println();
+            for (Field f : m.fields) {
+                String comment = "  // " + f.type + (f.arrayLength > 0 ? "[" + f.arrayLength + "]" : "") +
+                                 (f.extension ? ", extension" : "");
+                if (f.arrayLength > 0) {
+                    out.println("    public final " + f.javaType() + "[] " + f.javaName + " = new " + f.javaType() +
+                                "[" + f.arrayLength + "];" + comment);
+                } else {
+                    out.println("    public " + f.javaType() + " " + f.javaName + ";" + comment);
+                }
+            }
+            out.println();
+            out.println("    @Override");
+            out.println("    public int getMsgId() {");
+            out.println("        return MSG_ID;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public int getCrcExtra() {");
+            out.println("        return CRC_EXTRA;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public int getMinLength() {");
+            out.println("        return MIN_LENGTH;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public int getMaxLength() {");
+            out.println("        return MAX_LENGTH;");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public void encode(ByteBuffer b) {");
+            out.println("        int p = b.position();");
+            for (Field f : m.fields) {
+                if (f.arrayLength > 0) {
+                    out.println("        for (int i = 0; i < " + f.arrayLength + "; i++) {");
+                    out.println("            " + f.put("b", at(f.offset) + " + i * " + f.typeSize(),
+                                                       f.javaName + "[i]") + ";");
+                    out.println("        }");
+                } else {
+                    out.println("        " + f.put("b", at(f.offset), f.javaName) + ";");
+                }
+            }
+            out.println("        b.position(p + MAX_LENGTH);");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public void decode(ByteBuffer b) {");
+            out.println("        int p = b.position();");
+            for (Field f : m.fields) {
+                if (f.arrayLength > 0) {
+                    out.println("        for (int i = 0; i < " + f.arrayLength + "; i++) {");
+                    out.println("            " + f.javaName + "[i] = " +
+                                f.get("b", at(f.offset) + " + i * " + f.typeSize()) + ";");
+                    out.println("        }");
+                } else {
+                    out.println("        " + f.javaName + " = " + f.get("b", at(f.offset)) + ";");
+                }
+            }
+            out.println("        b.position(p + MAX_LENGTH);");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public void decode(MAVLinkMessage msg) {");
+            for (Field f : m.fields) {
+                if (f.arrayLength > 0 && f.type.equals("char")) {
+                    out.println("        set" + camelCase(f.name) + "(msg.getString(\"" + f.name + "\"));");
+                } else if (f.arrayLength > 0) {
+                    out.println("        MAVLinkPayload.copy(msg.get(\"" + f.name + "\"), " + f.javaName + ");");
+                } else {
+                    out.println("        " + f.javaName + " = msg." + f.messageGetter() + "(\"" + f.name + "\");");
+                }
+            }
+            out.println("    }");
+
+            for (Field f : m.fields) {
+                if (f.arrayLength > 0 && f.type.equals("char")) {
+                    String n = camelCase(f.name);
+                    out.println();
+                    out.println("    public String get" + n + "() {");
+                    out.println("        int n = 0;");
+                    out.println("        while (n < " + f.javaName + ".length && " + f.javaName + "[n] != 0) {");
+                    out.println("            n++;");
+                    out.println("        }");
+                    out.println("        return new String(" + f.javaName + ", 0, n, StandardCharsets.UTF_8);");
+                    out.println("    }");
+                    out.println();
+                    out.println("    public void set" + n + "(String s) {");
+                    out.println("        byte[] bytes = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);");
+                    out.println("        for (int i = 0; i < " + f.javaName + ".length; i++) {");
+                    out.println("            " + f.javaName + "[i] = i < bytes.length ? bytes[i] : 0;");
+                    out.println("        }");
+                    out.println("    }");
+                }
+            }
+            out.println("}");
+        }
+    }
+
+    private static void writeDialect(File dir, TreeMap<Integer, Message> messages, String source)
+        throws IOException {
+        try (PrintWriter out = new PrintWriter(new File(dir, "Dialect.java"), "UTF-8")) {
+            out.println("package " + PACKAGE + ";");
+            out.println();
+            out.println("import java.util.Arrays;");
+            out.println();
+            out.println("/**");
+            out.println(" * Ids, CRC extras and payload lengths of all messages of the dialect.");
+            out.println(" * <p/>");
+            out.println(" * Generated from " + source + " by MAVLinkGenerator, do not edit.");
+            out.println(" */");
+            out.println("public final class Dialect {");
+            StringBuilder ids = new StringBuilder();
+            StringBuilder crcs = new StringBuilder();
+            StringBuilder mins = new StringBuilder();
+            StringBuilder maxs = new StringBuilder();
+            for (Message m : messages.values()) {
+                ids.append(m.id).append(", ");
+                crcs.append(m.crcExtra).append(", ");
+                mins.append(m.minLength).append(", ");
+                maxs.append(m.maxLength).append(", ");
+            }
+            printArray(out, "IDS", ids);
+            printArray(out, "CRC_EXTRAS", crcs);
+            printArray(out, "MIN_LENGTHS", mins);
+            printArray(out, "MAX_LENGTHS", maxs);
+            out.println();
+            out.println("    private Dialect() {");
+            out.println("    }");
+            out.println();
+            out.println("    private static int index(int msgId) {");
+            out.println("        return Arrays.binarySearch(IDS, msgId);");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * @return CRC extra of the message, -1 if the message is unknown");
+            out.println("     */");
+            out.println("    public static int getCrcExtra(int msgId) {");
+            out.println("        int i = index(msgId);");
+            out.println("        return i >= 0 ? CRC_EXTRAS[i] : -1;");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * @return payload length without extensions, -1 if the message is unknown");
+            out.println("     */");
+            out.println("    public static int getMinLength(int msgId) {");
+            out.println("        int i = index(msgId);");
+            out.println("        return i >= 0 ? MIN_LENGTHS[i] : -1;");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * @return payload length with extensions, -1 if the message is unknown");
+            out.println("     */");
+            out.println("    public static int getMaxLength(int msgId) {");
+            out.println("        int i = index(msgId);");
+            out.println("        return i >= 0 ? MAX_LENGTHS[i] : -1;");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    private static void printArray(PrintWriter out, String name, StringBuilder values) {
+        out.println("    private static final int[] " + name + " = {");
+        String s = values.toString();
+        int start = 0;
+        while (start < s.length()) {
+            int end = Math.min(start + 100, s.length());
+            if (end < s.length()) {
+                end = s.lastIndexOf(", ", end) + 2;
+            }
+            out.println("        " + s.substring(start, end).trim());
+            start = end;
+        }
+        out.println("    };");
+    }
+}